@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//JMH 版的 Benchmark: 每个阶段单独测,JMH 负责 fork、预热和 Blackhole(返回值交给 Blackhole)
+//Throughput 给出每毫秒次数,SampleTime 给出每次耗时的 p50/p90/p99;statements 32/256/2048 对应 small/medium/huge
+//mvn -Pjmh package && java -jar target/benchmarks.jar -prof gc -rf json -rff jmh-$(date +%Y%m%d-%H%M%S).json [-p stage=parse]
+//-prof gc 报告分配速率和每次分配的字节数,-rf json -rff 把结果写成 JSON 文件,每次运行一个文件,留作历史记录
+//编译器的类都在默认包里,JMH 要求基准类有包名,所以通过反射拿到 Benchmark.stage 返回的函数
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class StageBenchmark {
+    @Param({"tokenize", "parse", "xml", "vm", "end-to-end"})
+    public String stage;
+    //JackGenerator 每个 subroutine 的语句数,其余参数用默认值
+    @Param({"32", "256", "2048"})
+    public int statements;
+    @Param({"false", "true"})
+    public boolean optimize;
+
+    private LongSupplier run;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        run = (LongSupplier) Class.forName("Benchmark").getMethod("stage", String.class, int.class, boolean.class)
+                .invoke(null, stage, statements, optimize);
+    }
+
+    @Benchmark
+    public long run() {
+        return run.getAsLong();
+    }
+}
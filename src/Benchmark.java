@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+//性能测试: 分别测 tokenize / parse / xml / vm 每个阶段和端到端的耗时
+//java Benchmark [--warmup N] [--iterations N] [-O] [--json FILE] <file.jack | dir>...
+//每个参数是一组输入(例如 small/medium/huge 三个目录),文件先全部读进内存,测的是编译器本身,不含磁盘读写;
+//每次迭代把这组输入完整跑一遍,记录耗时和当前线程分配的字节数,报告吞吐量、百分位和分配速率
+//--json 把这次的结果作为一行 JSON 追加到 FILE,多次运行的结果留在同一个文件里方便对比
+//--complexity: 不读文件,用 JackGenerator 生成输入,每次只把一个参数放大一倍(其余不变),按 log(耗时) 对 log(参数值)
+//做最小二乘拟合得到每个阶段的增长指数;只拟合较大的一半输入,小输入的耗时主要是固定开销,而且受 JIT 的影响很大;有阶段超过 --max-exponent(默认 1.3,n·log n 在这个范围内约为 1.1)时退出码为 1
+//需要 fork、预热控制和 Blackhole 时用 jmh/ 下的 JMH 版本: mvn -Pjmh package && java -jar target/benchmarks.jar
+public class Benchmark {
+    static final String[] STAGES = {"tokenize", "parse", "xml", "vm", "end-to-end"};
+    //--complexity 时每个参数翻倍的次数
+    static final int SCALE_STEPS = 6;
+
+    //防止 JIT 把没有用到的结果整个消除
+    static volatile long sink;
+
+    static class Input {
+        public String name;
+        public List<ByteBuffer> sources = new ArrayList<>();
+        public long bytes;
+        //各阶段的输入提前准备好,单独测一个阶段时不包含前面的阶段
+        public List<TokenBuffer> tokens = new ArrayList<>();
+        public List<JackNode.ClassNode> classes = new ArrayList<>();
+    }
+
+    static class Result {
+        public String input;
+        public String stage;
+        public int files;
+        public long bytes;
+        //每次迭代的纳秒数,排好序
+        public long[] times;
+        //平均每次迭代分配的字节数,不支持时为 -1
+        public long allocated;
+
+        double mean() {
+            return Arrays.stream(times).average().orElse(0);
+        }
+
+        long percentile(double p) {
+            return times[Math.max(0, (int) Math.ceil(p * times.length) - 1)];
+        }
+
+        double opsPerSecond() {
+            return 1e9 / mean();
+        }
+
+        double mbPerSecond() {
+            return bytes / mean() * 1e9 / (1 << 20);
+        }
+
+        double allocMbPerSecond() {
+            return allocated < 0 ? -1 : allocated / mean() * 1e9 / (1 << 20);
+        }
+    }
+
+    //--complexity: 一个参数放大时一个阶段的增长指数
+    static class Growth {
+        public String parameter;
+        public String stage;
+        public double exponent;
+        //每个参数值和对应的最短耗时
+        public String points;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-14s %-10s %8.2f%s", parameter, stage, exponent, points);
+        }
+    }
+
+    int warmup = 5;
+    int iterations = 20;
+    private boolean optimize = false;
+    private String json;
+    private boolean complexity = false;
+    private double maxExponent = 1.3;
+    private final List<String> paths = new ArrayList<>();
+    private final SymbolPool pool = new SymbolPool();
+    private final VmEmitter emitter = new VmEmitter();
+    private final com.sun.management.ThreadMXBean threads = threadBean();
+
+    public static void main(String[] args) throws IOException {
+        Benchmark benchmark = new Benchmark();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--warmup"))
+                benchmark.warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--iterations"))
+                benchmark.iterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-O"))
+                benchmark.optimize = true;
+            else if (args[i].equals("--json"))
+                benchmark.json = args[++i];
+            else if (args[i].equals("--complexity"))
+                benchmark.complexity = true;
+            else if (args[i].equals("--max-exponent"))
+                benchmark.maxExponent = Double.parseDouble(args[++i]);
+            else if (args[i].startsWith("-"))
+                throw new RuntimeException("unknown option " + args[i]);
+            else
+                benchmark.paths.add(args[i]);
+        }
+        if (benchmark.paths.isEmpty() != benchmark.complexity || benchmark.iterations <= 0)
+            throw new RuntimeException("usage: java Benchmark [--warmup N] [--iterations N] [-O] [--json FILE] <file.jack | dir>...\n"
+                    + "       java Benchmark --complexity [--max-exponent X] [--warmup N] [--iterations N] [-O]");
+        if (benchmark.complexity) {
+            if (!benchmark.checkComplexity())
+                System.exit(1);
+            return;
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (String path : benchmark.paths) {
+            Input input = benchmark.load(Paths.get(path));
+            for (String stage : STAGES)
+                results.add(benchmark.measure(input, stage));
+        }
+        System.out.println(table(results));
+        if (benchmark.json != null) {
+            Files.write(Paths.get(benchmark.json), (benchmark.toJson(results) + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported())
+            return null;
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+    Input load(Path path) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*.jack")) {
+                stream.forEach(files::add);
+            }
+            files.sort(null);
+        } else
+            files.add(path);
+        if (files.isEmpty())
+            throw new RuntimeException("no .jack file in " + path);
+        List<ByteBuffer> sources = new ArrayList<>();
+        for (Path file : files)
+            sources.add(JackSource.read(file));
+        return input(path.getFileName().toString(), sources);
+    }
+
+    Input input(String name, List<ByteBuffer> sources) {
+        Input input = new Input();
+        input.name = name;
+        for (ByteBuffer bytes : sources) {
+            input.sources.add(bytes);
+            input.bytes += bytes.remaining();
+            char[] chars = JackSource.decode(bytes.duplicate());
+            TokenBuffer tokens = new JackTokenizer(chars, pool).getTokens();
+            input.tokens.add(tokens);
+            input.classes.add(new JackParser().parse(tokens));
+        }
+        return input;
+    }
+
+    Result measure(Input input, String stage) {
+        return measure(List.of(input), stage).get(0);
+    }
+
+    //几组输入先一起预热,再轮流测量,保证每组输入测量时 JIT 的状态相同
+    List<Result> measure(List<Input> inputs, String stage) {
+        for (int i = 0; i < warmup; i++) {
+            for (Input input : inputs)
+                sink += run(input, stage);
+        }
+        List<Result> results = new ArrayList<>();
+        long[] allocated = new long[inputs.size()];
+        for (Input input : inputs) {
+            Result result = new Result();
+            result.input = input.name;
+            result.stage = stage;
+            result.files = input.sources.size();
+            result.bytes = input.bytes;
+            result.times = new long[iterations];
+            results.add(result);
+        }
+        for (int i = 0; i < iterations; i++) {
+            for (int j = 0; j < inputs.size(); j++) {
+                long allocStart = allocatedBytes();
+                long start = System.nanoTime();
+                sink += run(inputs.get(j), stage);
+                results.get(j).times[i] = System.nanoTime() - start;
+                allocated[j] += allocatedBytes() - allocStart;
+            }
+        }
+        for (int j = 0; j < inputs.size(); j++) {
+            Arrays.sort(results.get(j).times);
+            results.get(j).allocated = threads == null ? -1 : allocated[j] / iterations;
+        }
+        return results;
+    }
+
+    //打印每个参数、每个阶段的增长指数;返回 false 表示有阶段增长得太快
+    boolean checkComplexity() {
+        System.out.println(String.format("%-14s %-10s %8s  %s", "parameter", "stage", "exponent", "value -> min ms"));
+        boolean ok = true;
+        for (Growth growth : complexity(growth -> System.out.println(growth + (growth.exponent > maxExponent ? "  FAILED" : ""))))
+            ok &= growth.exponent <= maxExponent;
+        System.out.println(ok ? "complexity: ok" : "complexity: some stage grows faster than n^" + maxExponent);
+        return ok;
+    }
+
+    //每个参数单独放大,其余参数保持 JackGenerator 的默认值(只生成一个类,留出翻倍的余地);
+    //每得到一个结果就交给 progress,测试里用它检查增长的上限
+    List<Growth> complexity(Consumer<Growth> progress) {
+        List<Growth> growths = new ArrayList<>();
+        for (String parameter : JackGenerator.PARAMETERS) {
+            List<Input> inputs = new ArrayList<>();
+            List<Integer> values = new ArrayList<>();
+            for (int step = 0; step <= SCALE_STEPS; step++) {
+                JackGenerator generator = scaled(parameter, step);
+                List<ByteBuffer> sources = new ArrayList<>();
+                for (String source : generator.generate().values())
+                    sources.add(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+                inputs.add(input(parameter + "=" + generator.get(parameter), sources));
+                values.add(generator.get(parameter));
+            }
+            for (String stage : STAGES) {
+                double[] x = new double[inputs.size()], y = new double[inputs.size()];
+                StringBuilder points = new StringBuilder();
+                List<Result> results = measure(inputs, stage);
+                for (int i = 0; i < inputs.size(); i++) {
+                    Result result = results.get(i);
+                    x[i] = Math.log(values.get(i));
+                    //最短耗时受 GC 和 JIT 的干扰最小
+                    y[i] = Math.log(result.times[0]);
+                    points.append(String.format(Locale.ROOT, "  %d->%.3f", values.get(i), result.times[0] / 1e6));
+                }
+                int from = x.length / 2;
+                Growth growth = new Growth();
+                growth.parameter = parameter;
+                growth.stage = stage;
+                growth.exponent = slope(Arrays.copyOfRange(x, from, x.length), Arrays.copyOfRange(y, from, y.length));
+                growth.points = points.toString();
+                growths.add(growth);
+                progress.accept(growth);
+            }
+        }
+        return growths;
+    }
+
+    //只有一个类、parameter 放大 2^step 倍的生成器
+    static JackGenerator scaled(String parameter, int step) {
+        JackGenerator generator = new JackGenerator();
+        generator.classes = 1;
+        generator.set(parameter, (long) generator.get(parameter) << step);
+        return generator;
+    }
+
+    //最小二乘拟合 y = a + b·x,返回 b
+    static double slope(double[] x, double[] y) {
+        double meanX = Arrays.stream(x).average().orElse(0), meanY = Arrays.stream(y).average().orElse(0);
+        double sxy = 0, sxx = 0;
+        for (int i = 0; i < x.length; i++) {
+            sxy += (x[i] - meanX) * (y[i] - meanY);
+            sxx += (x[i] - meanX) * (x[i] - meanX);
+        }
+        return sxx == 0 ? 0 : sxy / sxx;
+    }
+
+    private long allocatedBytes() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    //给 jmh/ 下的 JMH 基准用的入口: 用 JackGenerator 生成输入,返回把这组输入跑一遍 stage 的函数;
+    //JMH 不允许基准类放在默认包里,基准类只能通过反射拿到它
+    public static LongSupplier stage(String stage, int statements, boolean optimize) {
+        if (!Arrays.asList(STAGES).contains(stage))
+            throw new RuntimeException("unknown stage " + stage);
+        Benchmark benchmark = new Benchmark();
+        benchmark.optimize = optimize;
+        JackGenerator generator = new JackGenerator();
+        generator.statements = statements;
+        List<ByteBuffer> sources = new ArrayList<>();
+        for (String source : generator.generate().values())
+            sources.add(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+        Input input = benchmark.input("statements=" + statements, sources);
+        return () -> benchmark.run(input, stage);
+    }
+
+    //把一组输入完整跑一遍,返回结果的摘要,调用的地方要用到它,防止 JIT 把整个计算消除
+    private long run(Input input, String stage) {
+        long hash = 0;
+        for (int i = 0; i < input.sources.size(); i++) {
+            switch (stage) {
+                case "tokenize":
+                    hash += new JackTokenizer(JackSource.decode(input.sources.get(i).duplicate()), pool).getTokens().size();
+                    break;
+                case "parse":
+                    hash += new JackParser().parse(input.tokens.get(i)).subroutines.size();
+                    break;
+                case "xml":
+                    hash += printXml(input.classes.get(i));
+                    break;
+                case "vm":
+                    hash += compileVm(input.classes.get(i));
+                    break;
+                default:
+                    TokenBuffer tokens = new JackTokenizer(JackSource.decode(input.sources.get(i).duplicate()), pool).getTokens();
+                    JackNode.ClassNode classNode = new JackParser().parse(tokens);
+                    hash += printXml(classNode) + compileVm(classNode);
+            }
+        }
+        return hash;
+    }
+
+    private long printXml(JackNode.ClassNode classNode) {
+        CountingWriter counter = new CountingWriter();
+        try (JackXmlPrinter.XmlWriter out = new JackXmlPrinter.XmlWriter(counter)) {
+            new JackXmlPrinter(out).print(classNode);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return counter.count;
+    }
+
+    private long compileVm(JackNode.ClassNode classNode) {
+        emitter.reset();
+        VmEmitter out = optimize ? new PeepholeOptimizer(emitter) : emitter;
+        new CompilationEngine(optimize, false).compile(classNode, out);
+        out.flush();
+        return classNode.subroutines.size();
+    }
+
+    //丢掉输出,只记字符数
+    static class CountingWriter extends Writer {
+        public long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static String table(List<Result> results) {
+        StringBuilder sb = new StringBuilder(String.format("%-12s %-10s %10s %9s %9s %9s %9s %9s %12s %10s%n",
+                "input", "stage", "ops/s", "MB/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "alloc/op", "alloc MB/s"));
+        for (Result r : results) {
+            sb.append(String.format("%-12s %-10s %10.1f %9.2f %9.3f %9.3f %9.3f %9.3f %12s %10s%n",
+                    r.input, r.stage, r.opsPerSecond(), r.mbPerSecond(), r.mean() / 1e6,
+                    r.percentile(0.5) / 1e6, r.percentile(0.9) / 1e6, r.percentile(0.99) / 1e6,
+                    r.allocated < 0 ? "-" : String.valueOf(r.allocated),
+                    r.allocated < 0 ? "-" : String.format("%.1f", r.allocMbPerSecond())));
+        }
+        return sb.toString().stripTrailing();
+    }
+
+    String toJson(List<Result> results) {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"timestamp\":\"").append(Instant.now()).append("\",");
+        sb.append("\"java\":\"").append(System.getProperty("java.version")).append("\",");
+        sb.append("\"warmup\":").append(warmup).append(",\"iterations\":").append(iterations);
+        sb.append(",\"optimize\":").append(optimize).append(",\"results\":[");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            sb.append(i == 0 ? "" : ",").append('{');
+            sb.append("\"input\":\"").append(escape(r.input)).append("\",\"stage\":\"").append(r.stage).append('"');
+            sb.append(",\"files\":").append(r.files).append(",\"bytes\":").append(r.bytes);
+            sb.append(String.format(Locale.ROOT, ",\"opsPerSecond\":%.3f,\"mbPerSecond\":%.3f,\"meanMs\":%.4f",
+                    r.opsPerSecond(), r.mbPerSecond(), r.mean() / 1e6));
+            sb.append(String.format(Locale.ROOT, ",\"p50Ms\":%.4f,\"p90Ms\":%.4f,\"p99Ms\":%.4f,\"maxMs\":%.4f",
+                    r.percentile(0.5) / 1e6, r.percentile(0.9) / 1e6, r.percentile(0.99) / 1e6, r.percentile(1) / 1e6));
+            sb.append(",\"allocBytesPerOp\":").append(r.allocated);
+            sb.append(String.format(Locale.ROOT, ",\"allocMbPerSecond\":%.3f", r.allocMbPerSecond())).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
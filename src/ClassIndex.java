@@ -0,0 +1,381 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+//增量编译的索引,放在缓存目录里,两次运行之间保留: 每个源文件记下大小和修改时间、输出文件的大小和修改时间,
+//以及类的签名(每个 subroutine 的种类和参数个数、field 和 static 的个数)和调用点;由调用点建立依赖图(被调用的类 -> 调用它的文件)。
+//源文件和输出都没有变的文件直接跳过,连读都不用读;改动过的文件编译后签名有变化时,只有调用了变化部分的类需要重新检查。
+//一个类生成的 vm 只取决于它自己的源文件(调用点自带参数个数),所以依赖它的类只重新检查调用点(种类、参数个数),不用重新生成代码
+public class ClassIndex {
+    private static final String HEADER = "jack-index 1";
+
+    //一个类对外的签名和它的调用点,由 CompilationEngine 编译时填写
+    public static class Signature {
+        public final String className;
+        public final int fieldCount;
+        public final int staticCount;
+        //subroutine 名 -> 种类 / 参数个数(method 不算对象本身)
+        public final Map<String, JackNode.SubroutineNode.Kind> kinds = new LinkedHashMap<>();
+        public final Map<String, Integer> arities = new LinkedHashMap<>();
+        //每种用法(类、名字、种类、参数个数)只记第一次出现的调用点,同样的调用重复很多次时索引不会跟着变大
+        public final List<Call> calls = new ArrayList<>();
+        private final Set<String> uses = new HashSet<>();
+
+        public Signature(String className, int fieldCount, int staticCount) {
+            this.className = className;
+            this.fieldCount = fieldCount;
+            this.staticCount = staticCount;
+        }
+
+        public void addCall(Call call) {
+            if (uses.add(call.className + "." + call.name + " " + call.method + " " + call.arguments))
+                calls.add(call);
+        }
+
+        //class/sub/call 开头的若干行,缓存和索引文件都用这个格式
+        void write(StringBuilder sb) {
+            sb.append("class ").append(className).append(' ').append(fieldCount).append(' ').append(staticCount).append('\n');
+            for (Map.Entry<String, JackNode.SubroutineNode.Kind> entry : kinds.entrySet())
+                sb.append("sub ").append(entry.getValue().keyword).append(' ').append(entry.getKey()).append(' ')
+                        .append(arities.get(entry.getKey())).append('\n');
+            for (Call call : calls)
+                sb.append("call ").append(call.className).append(' ').append(call.name).append(' ')
+                        .append(call.method ? "method" : "function").append(' ').append(call.arguments).append(' ')
+                        .append(call.line).append('\n');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            write(sb);
+            return sb.toString();
+        }
+
+        public static Signature parse(String text) {
+            Signature signature = null;
+            for (String line : text.split("\n")) {
+                if (!line.isEmpty())
+                    signature = parseLine(line.split(" "), signature);
+            }
+            return signature;
+        }
+
+        //class 行开始一个新的签名,sub/call 行加到 signature 中
+        private static Signature parseLine(String[] parts, Signature signature) {
+            switch (parts[0]) {
+                case "class":
+                    return new Signature(parts[1], Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+                case "sub":
+                    JackNode.SubroutineNode.Kind kind = JackNode.SubroutineNode.Kind.of(parts[1]);
+                    if (kind == null)
+                        throw new RuntimeException("unknown subroutine kind: " + parts[1]);
+                    signature.kinds.put(parts[2], kind);
+                    signature.arities.put(parts[2], Integer.parseInt(parts[3]));
+                    return signature;
+                case "call":
+                    signature.addCall(new Call(parts[1], parts[2], parts[3].equals("method"),
+                            Integer.parseInt(parts[4]), Integer.parseInt(parts[5])));
+                    return signature;
+                default:
+                    throw new RuntimeException("bad signature line: " + String.join(" ", parts));
+            }
+        }
+    }
+
+    //一个调用点: method 为 true 时通过对象调用(包括省略了 this 的调用),arguments 不算对象本身
+    public static class Call {
+        public final String className;
+        public final String name;
+        public final boolean method;
+        public final int arguments;
+        public final int line;
+
+        public Call(String className, String name, boolean method, int arguments, int line) {
+            this.className = className;
+            this.name = name;
+            this.method = method;
+            this.arguments = arguments;
+            this.line = line;
+        }
+    }
+
+    private static class Entry {
+        final String path;
+        final long size;
+        final long modified;
+        //和 suffixes 一一对应
+        final long[] outputSizes;
+        final long[] outputModified;
+        final Signature signature;
+
+        Entry(String path, long size, long modified, long[] outputSizes, long[] outputModified, Signature signature) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.outputSizes = outputSizes;
+            this.outputModified = outputModified;
+            this.signature = signature;
+        }
+    }
+
+    private final Path file;
+    private final String[] suffixes;
+    //源文件的绝对路径 -> 记录
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Entry> classes = new HashMap<>();
+    //依赖图: 被调用的类名 -> 调用它的源文件
+    private final Map<String, Set<String>> callers = new HashMap<>();
+    //这一批重新编译或删除的文件在改动前的签名,新文件为 null
+    private final Map<String, Signature> previous = new HashMap<>();
+    //编译前取的源文件大小和修改时间,编译成功后才写进索引;编译期间文件又被改了时下次还会重新编译
+    private final Map<String, long[]> pending = new HashMap<>();
+    private int upToDate;
+    private boolean dirty;
+
+    private ClassIndex(Path file, String[] suffixes) {
+        this.file = file;
+        this.suffixes = suffixes;
+    }
+
+    //索引文件不存在或者读不懂时从空的索引开始,所有文件都会重新编译
+    public static ClassIndex load(Path file, String[] suffixes) throws IOException {
+        ClassIndex index = new ClassIndex(file, suffixes);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return index;
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER))
+            return index;
+        try {
+            index.read(lines);
+        } catch (RuntimeException e) {
+            index = new ClassIndex(file, suffixes);
+        }
+        return index;
+    }
+
+    //source <size> <modified> <path>,后面是每个输出一行 output <size> <modified>,然后是签名
+    private void read(List<String> lines) {
+        int i = 1;
+        while (i < lines.size()) {
+            String[] source = lines.get(i++).split(" ", 4);
+            if (!source[0].equals("source"))
+                throw new RuntimeException("bad index line: " + lines.get(i - 1));
+            long[] outputSizes = new long[suffixes.length];
+            long[] outputModified = new long[suffixes.length];
+            for (int k = 0; k < suffixes.length; k++) {
+                String[] output = lines.get(i++).split(" ");
+                if (!output[0].equals("output"))
+                    throw new RuntimeException("bad index line: " + lines.get(i - 1));
+                outputSizes[k] = Long.parseLong(output[1]);
+                outputModified[k] = Long.parseLong(output[2]);
+            }
+            Signature signature = null;
+            while (i < lines.size() && !lines.get(i).startsWith("source "))
+                signature = Signature.parseLine(lines.get(i++).split(" "), signature);
+            if (signature == null)
+                throw new RuntimeException("no signature for " + source[3]);
+            put(new Entry(source[3], Long.parseLong(source[1]), Long.parseLong(source[2]), outputSizes, outputModified, signature));
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((a, b) -> a.path.compareTo(b.path));
+        StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        for (Entry entry : sorted) {
+            sb.append("source ").append(entry.size).append(' ').append(entry.modified).append(' ').append(entry.path).append('\n');
+            for (int i = 0; i < suffixes.length; i++)
+                sb.append("output ").append(entry.outputSizes[i]).append(' ').append(entry.outputModified[i]).append('\n');
+            entry.signature.write(sb);
+        }
+        Path temp = CompileCache.tempFile(file);
+        try {
+            Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        dirty = false;
+    }
+
+    //返回需要编译的文件: 源文件或者输出和上次编译成功时不一样的;其余的跳过
+    public synchronized List<File> stale(List<File> files) throws IOException {
+        List<File> result = new ArrayList<>();
+        for (File f : files) {
+            String path = f.getAbsolutePath();
+            long[] stamp = stamp(f.toPath());
+            Entry entry = entries.get(path);
+            if (entry != null && stamp != null && entry.size == stamp[0] && entry.modified == stamp[1] && outputsUnchanged(entry, f)) {
+                upToDate++;
+                continue;
+            }
+            remove(path);
+            if (stamp != null)
+                pending.put(path, stamp);
+            result.add(f);
+        }
+        return result;
+    }
+
+    //files 是整个项目时调用,去掉已经不在项目里的文件
+    public synchronized void retain(List<File> files) {
+        Set<String> paths = new HashSet<>();
+        for (File f : files)
+            paths.add(f.getAbsolutePath());
+        for (String path : new ArrayList<>(entries.keySet())) {
+            if (!paths.contains(path))
+                remove(path);
+        }
+    }
+
+    public synchronized void remove(String path) {
+        Entry entry = entries.remove(path);
+        if (!previous.containsKey(path))
+            previous.put(path, entry == null ? null : entry.signature);
+        if (entry == null)
+            return;
+        dirty = true;
+        if (classes.get(entry.signature.className) == entry)
+            classes.remove(entry.signature.className);
+        for (Call call : entry.signature.calls) {
+            Set<String> paths = callers.get(call.className);
+            if (paths != null)
+                paths.remove(path);
+        }
+    }
+
+    //编译成功(包括从缓存取出)后调用,outputs 和 suffixes 一一对应
+    public synchronized void update(File source, File[] outputs, Signature signature) throws IOException {
+        String path = source.getAbsolutePath();
+        long[] stamp = pending.remove(path);
+        if (stamp == null || signature == null)
+            return;
+        long[] outputSizes = new long[outputs.length];
+        long[] outputModified = new long[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            long[] output = stamp(outputs[i].toPath());
+            if (output == null)
+                return;
+            outputSizes[i] = output[0];
+            outputModified[i] = output[1];
+        }
+        put(new Entry(path, stamp[0], stamp[1], outputSizes, outputModified, signature));
+    }
+
+    private void put(Entry entry) {
+        entries.put(entry.path, entry);
+        classes.put(entry.signature.className, entry);
+        for (Call call : entry.signature.calls)
+            callers.computeIfAbsent(call.className, k -> new HashSet<>()).add(entry.path);
+        dirty = true;
+    }
+
+    //一批编译完以后调用: 检查这一批编译的类,以及调用了签名有变化的 subroutine 的类;
+    //返回警告和统计,然后清空这一批的记录
+    public synchronized String report() {
+        Set<String> check = new TreeSet<>();
+        int compiled = 0;
+        //类名 -> 种类或参数个数变了(包括新增和删除)的 subroutine
+        Map<String, Set<String>> changed = new HashMap<>();
+        for (Map.Entry<String, Signature> entry : previous.entrySet()) {
+            Entry current = entries.get(entry.getKey());
+            if (current != null) {
+                check.add(entry.getKey());
+                compiled++;
+            }
+            Signature before = entry.getValue();
+            Signature after = current == null ? null : current.signature;
+            addChanges(before, after, changed);
+            addChanges(after, before, changed);
+        }
+        int dependents = 0;
+        for (Map.Entry<String, Set<String>> entry : changed.entrySet()) {
+            for (String path : callers.getOrDefault(entry.getKey(), Collections.emptySet())) {
+                if (check.contains(path))
+                    continue;
+                for (Call call : entries.get(path).signature.calls) {
+                    if (call.className.equals(entry.getKey()) && entry.getValue().contains(call.name)) {
+                        check.add(path);
+                        dependents++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String path : check) {
+            String name = new File(path).getName();
+            for (Call call : entries.get(path).signature.calls) {
+                String problem = check(call);
+                if (problem != null)
+                    sb.append("warning: ").append(name).append(" line ").append(call.line).append(": ").append(problem).append('\n');
+            }
+        }
+        sb.append(String.format("incremental: %d file(s) up to date, %d compiled, %d dependent(s) rechecked",
+                upToDate, compiled, dependents));
+        previous.clear();
+        pending.clear();
+        upToDate = 0;
+        return sb.toString();
+    }
+
+    //from 中和 to 不一样的 subroutine 记到 changed 里
+    private static void addChanges(Signature from, Signature to, Map<String, Set<String>> changed) {
+        if (from == null)
+            return;
+        boolean sameClass = to != null && to.className.equals(from.className);
+        for (String name : from.kinds.keySet()) {
+            if (!sameClass || from.kinds.get(name) != to.kinds.get(name) || !from.arities.get(name).equals(to.arities.get(name)))
+                changed.computeIfAbsent(from.className, k -> new HashSet<>()).add(name);
+        }
+    }
+
+    //调用的类不在这个项目里(例如 OS 的类)时不检查
+    private String check(Call call) {
+        Entry target = classes.get(call.className);
+        if (target == null)
+            return null;
+        String name = call.className + "." + call.name;
+        JackNode.SubroutineNode.Kind kind = target.signature.kinds.get(call.name);
+        if (kind == null)
+            return name + " is not defined";
+        if (call.method != (kind == JackNode.SubroutineNode.Kind.METHOD))
+            return name + " is a " + kind.keyword + " but is called as a " + (call.method ? "method" : "function");
+        int arity = target.signature.arities.get(call.name);
+        if (arity != call.arguments)
+            return name + " takes " + arity + " argument(s) but is called with " + call.arguments;
+        return null;
+    }
+
+    private boolean outputsUnchanged(Entry entry, File source) throws IOException {
+        for (int i = 0; i < suffixes.length; i++) {
+            long[] output = stamp(Main.outputFile(source, suffixes[i]).toPath());
+            if (output == null || output[0] != entry.outputSizes[i] || output[1] != entry.outputModified[i])
+                return false;
+        }
+        return true;
+    }
+
+    //{大小, 修改时间(纳秒)},文件不存在时为 null
+    private static long[] stamp(Path path) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new long[]{attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)};
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
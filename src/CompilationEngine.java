@@ -1,549 +1,549 @@
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Objects;
 
 public class CompilationEngine {
     private String className;
-    private int expressionListSize = -1;
     private String funcName;
     private int whileStatementGlobalsCount = -1;
     private int ifStatementsGlobalCount = -1;
+    private int stringGlobalCount = -1;
 
-    private HashMap<String, VarModel> defaultVars = new HashMap<>();
-    private HashMap<String, VarModel> staticVars = new HashMap<>();
-    private HashMap<String, VarModel> filedVars = new HashMap<>();
-    private HashMap<String, VarModel> argumentVars = new HashMap<>();
-    private HashMap<String, VarModel> localVars = new HashMap<>();
+    //每个 subroutine 编译前先把变量名绑定到编号,生成代码时按编号取 segment 和下标
+    private final SymbolBinder binder = new SymbolBinder();
+    //这个类的签名和调用点,增量编译时记到 ClassIndex 中
+    private ClassIndex.Signature signature;
 
     private boolean isConstructor;
     private boolean isMethod;
-    private StringBuilder result = new StringBuilder();
-    private List<TokenXmlLine> lines = new ArrayList<>();
-    private String lineSeparator = System.lineSeparator();
+    private VmEmitter out = new VmEmitter();
+    //-O: 常量折叠和乘法的强度削减
+    private boolean optimize;
+    //--string-pool: 同一个类里相同的字符串常量只在第一次用到时创建一次,保存在 static 变量中
+    private boolean poolStrings;
+    //字符串常量 -> 保存它的 static 下标(排在类里声明的 static 变量之后)
+    private HashMap<String, Integer> stringSlots = new HashMap<>();
+    //-O: 算过的 term 的常量值(不是常量时为 null);每一层括号都会问一次里面的 term,不记下来时深层嵌套是平方复杂度
+    private IdentityHashMap<JackNode.TermNode, Integer> constants = new IdentityHashMap<>();
+    //编译语句、term 和求常量值的次数,用来检查生成代码是线性的: 应该和生成的指令数成正比
+    private long steps;
+
+    public CompilationEngine() {
+        this(false);
+    }
+
+    public CompilationEngine(boolean optimize) {
+        this(optimize, false);
+    }
+
+    public CompilationEngine(boolean optimize, boolean poolStrings) {
+        this.optimize = optimize;
+        this.poolStrings = poolStrings;
+    }
 
     private void reset() {
         className = null;
-        expressionListSize = -1;
         funcName = null;
         whileStatementGlobalsCount = -1;
         ifStatementsGlobalCount = -1;
-        staticVars.clear();
-        filedVars.clear();
-        argumentVars.clear();
-        localVars.clear();
-        result.delete(0, result.length());
-        lines.clear();
-    }
-
-
-    static class VarModel {
-        public static final int VAR_TYPE_STATIC = 0;
-        public static final int VAR_TYPE_FIELD = 1;
-        public static final int VAR_TYPE_ARGUMENT = 2;
-        public static final int VAR_TYPE_LOCAL = 3;
-        public static final int VAR_TYPE_DEFAULT = 4;
-
-        public int varType;
-        public int index;
-        public String type;
-        public String name;
-
-        public String getSegment() {
-            switch (varType) {
-                case VAR_TYPE_STATIC:
-                    return "static";
-                case VAR_TYPE_FIELD:
-                    return "this";
-                case VAR_TYPE_ARGUMENT:
-                    return "argument";
-                case VAR_TYPE_LOCAL:
-                    return "local";
-                case VAR_TYPE_DEFAULT:
-                    return "pointer";
-
-                default:
-                    throw new RuntimeException();
-            }
-
-        }
+        stringSlots.clear();
     }
 
-    static class TokenXmlLine {
-        public boolean isComplete;
-        public boolean isSingle;
-        public boolean isTagStart;
-        public boolean isTagEnd;
-        public String tag;
-        public String value;
-        public String origin;
-
-        public TokenXmlLine(String srcLine) {
-            if (srcLine == null || srcLine.isEmpty())
-                throw new RuntimeException("srcLine == null || srcLine.isEmpty()");
-            origin = srcLine;
-            srcLine = srcLine.trim();
-            isComplete = srcLine.indexOf('>') != (srcLine.length() - 1);
-            isSingle = !isComplete;
-            if (isSingle) {
-                isTagEnd = srcLine.indexOf("</") == 0;
-                isTagStart = !isTagEnd;
-            }
-
-            String startChars = (isComplete || isTagStart) ? "<" : "</";
-            int offset = isTagEnd ? 2 : 1;
-            tag = srcLine.substring(srcLine.indexOf(startChars) + offset, srcLine.indexOf('>')).trim();
 
-            if (isComplete) {
-                int index = srcLine.indexOf('>');
-                value = srcLine.substring(index + 1, srcLine.indexOf("<", index)).trim();
-
-                //对字符串特殊处理
-                if (value.startsWith("\"") && value.endsWith("\""))
-                    value = value.substring(1, value.length() - 1);
-            }
-        }
+    String compile(JackNode.ClassNode classNode) {
+        VmEmitter emitter = new VmEmitter();
+        compile(classNode, emitter);
+        return emitter.toString();
     }
 
-    String compile(String tokensXml) {
+    //直接写到 emitter 中,调用方负责 flush
+    void compile(JackNode.ClassNode classNode, VmEmitter emitter) {
+        out = emitter;
         reset();
-        String[] tokenXmlStrs = tokensXml.split(lineSeparator);
-        for (String s : tokenXmlStrs) {
-            if (s == null || s.isEmpty())
-                continue;
-            lines.add(new TokenXmlLine(s));
-        }
-        if (Objects.equals(lines.get(0).tag, "class"))
-            compileClass(0);
-        return result.toString().trim();
+        compileClass(classNode);
     }
 
-    int compileClass(int start) {
-        if (!Objects.equals(lines.get(start).tag, "class"))
-            throw new RuntimeException("start tag is not class");
+    //流式编译: 先用 begin 登记类名和类变量,再对每个 subroutine 调用 compileSubroutine
+    void begin(JackNode.ClassNode classNode, VmEmitter emitter) {
+        out = emitter;
+        reset();
+        compileClassHeader(classNode);
+    }
 
-        makeDefaultVarsMap();
+    //这一个 subroutine 的 vm 代码写到 begin 时给出的 emitter 中
+    void compileSubroutine(JackNode.SubroutineNode subroutine) {
+        compileSubRuntineDec(subroutine);
+    }
 
-        className = lines.get(start + 2).value;
-        int subruntineStartIndex = findSingleTagIndex("subroutineDec", start, true);
+    void compileClass(JackNode.ClassNode classNode) {
+        compileClassHeader(classNode);
 
-        int classVarDecStartIndex = findSingleTagIndex("classVarDec", start, true);
-        if (classVarDecStartIndex != -1)
-            makeClassVarsMap(classVarDecStartIndex, subruntineStartIndex);
+        for (JackNode.SubroutineNode subroutine : classNode.subroutines)
+            compileSubRuntineDec(subroutine);
+    }
 
-        while (Objects.equals(lines.get(subruntineStartIndex).tag, "subroutineDec"))
-            subruntineStartIndex = compileSubRuntineDec(subruntineStartIndex);
+    private void compileClassHeader(JackNode.ClassNode classNode) {
+        className = classNode.name;
+        binder.beginClass(classNode);
+        signature = new ClassIndex.Signature(className, binder.fieldCount(), binder.staticCount());
+    }
 
-        return subruntineStartIndex + 2;
+    long steps() {
+        return steps;
     }
 
-    int compileSubRuntineDec(int start) {
-        if (!Objects.equals(lines.get(start).tag, "subroutineDec"))
-            throw new RuntimeException("ex");
+    //编译过的部分的签名: 流式编译时只包括已经编译的 subroutine
+    ClassIndex.Signature signature() {
+        return signature;
+    }
 
+    void compileSubRuntineDec(JackNode.SubroutineNode subroutine) {
         ifStatementsGlobalCount = -1;
         whileStatementGlobalsCount = -1;
+        stringGlobalCount = -1;
+        constants.clear();
 
-        isConstructor = Objects.equals(lines.get(start + 1).value, "constructor");
-        isMethod = Objects.equals(lines.get(start + 1).value, "method");
-        funcName = lines.get(start + 3).value;
+        isConstructor = subroutine.kind == JackNode.SubroutineNode.Kind.CONSTRUCTOR;
+        isMethod = subroutine.kind == JackNode.SubroutineNode.Kind.METHOD;
+        funcName = subroutine.name;
+        signature.kinds.put(funcName, subroutine.kind);
+        signature.arities.put(funcName, subroutine.parameters.size());
 
-        int paraListTagStartIndex = findSingleTagIndex("parameterList", start + 3, true);
-        start = compileParaList(paraListTagStartIndex);
-        int subruntineBodyTagStartIndex = findSingleTagIndex("subroutineBody", start, true);
-        start = compileSubruntineBody(subruntineBodyTagStartIndex);
-
-        int subruntineDecTagEndIndex = findSingleTagIndex("subroutineDec", start, false);
-        return subruntineDecTagEndIndex + 1;
+        binder.bind(subroutine);
+        compileSubruntineBody(subroutine);
     }
 
     private void alloc(int size) {
-        result.append("push constant ").append(size).append(lineSeparator);
-        result.append("call Memory.alloc 1").append(lineSeparator);
+        out.push(VmEmitter.Segment.CONSTANT, size);
+        out.call("Memory", "alloc", 1);
     }
 
     private void constructorAlloc(int size) {
         alloc(size);
-        popIdentifier("this");
+        popVariable(SymbolBinder.THIS);
     }
 
 
-    int compileSubruntineBody(int start) {
-        if (!Objects.equals(lines.get(start).tag, "subroutineBody"))
-            throw new RuntimeException("ex");
-        int statementsTagStartIndex = findSingleTagIndex("statements", start + 1, true);
-        makeLocalVarsMap(start + 1, statementsTagStartIndex);
-
-        result.append("function").append(" ").
-                append(className).append(".").append(funcName).append(" ").append(localVars.size()).append(lineSeparator);
+    void compileSubruntineBody(JackNode.SubroutineNode subroutine) {
+        out.subroutineHint("void".equals(subroutine.returnType));
+        out.function(className, funcName, binder.localCount());
 
-        if (isConstructor && filedVars.size() > 0)
-            constructorAlloc(filedVars.size());
+        if (isConstructor && binder.fieldCount() > 0)
+            constructorAlloc(binder.fieldCount());
 
         if (isMethod) {
-            result.append("push argument 0").append(lineSeparator);
-            result.append("pop pointer 0").append(lineSeparator);
+            out.push(VmEmitter.Segment.ARGUMENT, 0);
+            out.pop(VmEmitter.Segment.POINTER, 0);
         }
 
-        start = compileStatements(statementsTagStartIndex);
-        return findSingleTagIndex("subroutineBody", start, false);
-    }
-
-    int makeLocalVarsMap(int start, int end) {
-        localVars.clear();
-        while (start < end) {
-            if (Objects.equals(lines.get(start).tag, "varDec")) {
-                VarModel varModel = new VarModel();
-                varModel.varType = VarModel.VAR_TYPE_LOCAL;
-                varModel.index = localVars.size();
-                varModel.name = lines.get(start + 3).value;
-                String type = varModel.type = lines.get(start + 2).value;
-                localVars.put(varModel.name, varModel);
-                int index = start + 4;
-                while (Objects.equals(lines.get(index).value, ",")) {
-                    varModel = new VarModel();
-                    varModel.varType = VarModel.VAR_TYPE_LOCAL;
-                    varModel.index = localVars.size();
-                    varModel.name = lines.get(index + 1).value;
-                    varModel.type = type;
-                    localVars.put(varModel.name, varModel);
-                    index += 2;
-                }
-
-                start = index + 2;
-            } else
-                start++;
-        }
-
-        return start;
-    }
-
-    private void makeDefaultVarsMap() {
-        defaultVars.clear();
-
-        VarModel thisVar = new VarModel();
-        thisVar.varType = VarModel.VAR_TYPE_DEFAULT;
-        thisVar.index = 0;
-        thisVar.name = "this";
-        defaultVars.put(thisVar.name, thisVar);
-
-        VarModel thatVar = new VarModel();
-        thatVar.varType = VarModel.VAR_TYPE_DEFAULT;
-        thatVar.index = 1;
-        thatVar.name = "that";
-        defaultVars.put(thatVar.name, thatVar);
-    }
-
-    void makeClassVarsMap(int start, int end) {
-        filedVars.clear();
-        staticVars.clear();
-        while (start < end) {
-            if (Objects.equals(lines.get(start).tag, "classVarDec")) {
-                int varType;
-                HashMap<String, VarModel> map;
-                VarModel varModel = new VarModel();
-                String type = lines.get(start + 2).value;
-                if (Objects.equals(lines.get(start + 1).value, "field")) {
-                    varType = VarModel.VAR_TYPE_FIELD;
-                    map = filedVars;
-                } else {
-                    varType = VarModel.VAR_TYPE_STATIC;
-                    map = staticVars;
-                }
-                varModel.name = lines.get(start + 3).value;
-                varModel.type = type;
-                varModel.varType = varType;
-                varModel.index = map.size();
-                map.put(varModel.name, varModel);
-
-                int index = start + 4;
-                while (Objects.equals(lines.get(index).value, ",")) {
-                    varModel = new VarModel();
-                    varModel.varType = varType;
-                    varModel.index = map.size();
-                    varModel.name = lines.get(index + 1).value;
-                    varModel.type = type;
-                    map.put(varModel.name, varModel);
-                    index += 2;
-                }
-
-                start = index + 2;
-            } else
-                start++;
-        }
+        compileStatements(subroutine.statements);
     }
 
-    int compileStatements(int start) {
-        if (!Objects.equals(lines.get(start).tag, "statements"))
-            throw new RuntimeException("ex");
-
-        int statementsTagEndIndex = recursiveFindTagEndIndex("statements", start);
-        int startIndex = start + 1;
-        while (startIndex < statementsTagEndIndex) {
-            if (lines.get(startIndex).tag == null)
-                throw new RuntimeException("ex");
-            switch (lines.get(startIndex).tag) {
-                case "doStatement":
-                    startIndex = compileDoStatement(startIndex);
+    void compileStatements(List<JackNode.StatementNode> statements) {
+        for (JackNode.StatementNode statement : statements) {
+            steps++;
+            switch (statement.kind) {
+                case DO:
+                    compileDoStatement(statement);
                     break;
-                case "returnStatement":
-                    startIndex = compileReturnStatement(startIndex);
+                case RETURN:
+                    compileReturnStatement(statement);
                     break;
-                case "letStatement":
-                    startIndex = compileLetStatement(startIndex);
+                case LET:
+                    compileLetStatement(statement);
                     break;
-                case "whileStatement":
-                    startIndex = compileWhileStatement(startIndex);
+                case WHILE:
+                    compileWhileStatement(statement);
                     break;
-                case "ifStatement":
-                    startIndex = compileIfStatement(startIndex);
+                case IF:
+                    compileIfStatement(statement);
                     break;
             }
         }
-
-        return startIndex;
     }
 
-    int compileIfStatement(int start) {
-        if (!Objects.equals(lines.get(start).tag, "ifStatement"))
-            throw new RuntimeException("ex");
+    void compileIfStatement(JackNode.StatementNode statement) {
         ifStatementsGlobalCount++;
         int ifStatementsCount = ifStatementsGlobalCount;
-        int expressionTagStartIndex = findSingleTagIndex("expression", start, true);
-        start = compileExpression(expressionTagStartIndex);
+        compileExpression(statement.expression);
 
-        result.append("if-goto IF_TRUE").append(ifStatementsCount).append(lineSeparator);
-        result.append("goto IF_FALSE").append(ifStatementsCount).append(lineSeparator);
+        out.ifGoto("IF_TRUE", ifStatementsCount);
+        out.gotoLabel("IF_FALSE", ifStatementsCount);
 
-        int statementsStartIndex = findSingleTagIndex("statements", start, true);
-        result.append("label IF_TRUE").append(ifStatementsCount).append(lineSeparator);
-        start = compileStatements(statementsStartIndex);
+        out.label("IF_TRUE", ifStatementsCount);
+        compileStatements(statement.statements);
 
-        if (Objects.equals(lines.get(start + 2).value, "else")) {
-            result.append("goto IF_END").append(ifStatementsCount).append(lineSeparator);
+        if (statement.elseStatements != null) {
+            out.gotoLabel("IF_END", ifStatementsCount);
 
-            statementsStartIndex = findSingleTagIndex("statements", start, true);
-            result.append("label IF_FALSE").append(ifStatementsCount).append(lineSeparator);
-            start = compileStatements(statementsStartIndex);
+            out.label("IF_FALSE", ifStatementsCount);
+            compileStatements(statement.elseStatements);
 
-            result.append("label IF_END").append(ifStatementsCount).append(lineSeparator);
+            out.label("IF_END", ifStatementsCount);
         } else
-            result.append("label IF_FALSE").append(ifStatementsCount).append(lineSeparator);
-
-        return findSingleTagIndex("ifStatement", start, false) + 1;
+            out.label("IF_FALSE", ifStatementsCount);
     }
 
-    int compileWhileStatement(int start) {
-        if (!Objects.equals(lines.get(start).tag, "whileStatement"))
-            throw new RuntimeException("ex");
+    void compileWhileStatement(JackNode.StatementNode statement) {
         whileStatementGlobalsCount++;
         int whileStatementsCount = whileStatementGlobalsCount;
-        result.append("label ").append("WHILE_EXP").append(whileStatementsCount).append(lineSeparator);
-        int expressionTagStartIndex = findSingleTagIndex("expression", start, true);
-        start = compileExpression(expressionTagStartIndex);
-
-        result.append("not").append(lineSeparator);
-        result.append("if-goto ").append("WHILE_END").append(whileStatementsCount).append(lineSeparator);
+        out.label("WHILE_EXP", whileStatementsCount);
+        compileExpression(statement.expression);
 
-        int statementsStartIndex = findSingleTagIndex("statements", start, true);
-        start = compileStatements(statementsStartIndex);
+        out.arithmetic(VmEmitter.Command.NOT);
+        out.ifGoto("WHILE_END", whileStatementsCount);
 
-        result.append("goto WHILE_EXP").append(whileStatementsCount).append(lineSeparator);
+        compileStatements(statement.statements);
 
-        result.append("label ").append("WHILE_END").append(whileStatementsCount).append(lineSeparator);
+        out.gotoLabel("WHILE_EXP", whileStatementsCount);
 
-        int whileTagEndIndex = findSingleTagIndex("whileStatement", start, false);
-
-        return whileTagEndIndex + 1;
+        out.label("WHILE_END", whileStatementsCount);
     }
 
-    int compileLetStatement(int start) {
-        if (!Objects.equals(lines.get(start).tag, "letStatement"))
-            throw new RuntimeException("ex");
-        if (!Objects.equals(lines.get(start + 1).value, "let"))
-            throw new RuntimeException("ex");
-
-        String varName = lines.get(start + 2).value;
-        boolean isArrayEntry = Objects.equals(lines.get(start + 3).value, "[");
-        if (isArrayEntry) {
+    void compileLetStatement(JackNode.StatementNode statement) {
+        if (statement.index != null) {
             //计算数组的那个位置
-            start = compileArrayReference(start + 2);
-            compileExpression(start + 1);
+            compileArrayReference(statement.binding, statement.index);
+            compileExpression(statement.expression);
             //将等号右边的expression结果临时保存一下
-            result.append("pop temp 0").append(lineSeparator);
+            out.pop(VmEmitter.Segment.TEMP, 0);
             //将计算出的数组的位置保存在pointer 0(用that 0 可以引用到这个地址)
-            result.append("pop pointer 1").append(lineSeparator);
+            out.pop(VmEmitter.Segment.POINTER, 1);
             //将等号右边的expression结果放到计算出的数组地址上
-            result.append("push temp 0").append(lineSeparator);
-            result.append("pop that 0").append(lineSeparator);
+            out.push(VmEmitter.Segment.TEMP, 0);
+            out.pop(VmEmitter.Segment.THAT, 0);
         } else {
-            compileExpression(start + 4);
-            popIdentifier(varName);
+            compileExpression(statement.expression);
+            popVariable(statement.binding);
         }
-
-        return findSingleTagIndex("letStatement", start + 4, false) + 1;
     }
 
-    private int compileArrayReference(int start) {
-        if (!Objects.equals(lines.get(start + 1).value, "["))
-            throw new RuntimeException("ex");
-        int index = compileExpression(start + 2);
-        if (!Objects.equals(lines.get(index).value, "]"))
-            throw new RuntimeException("ex");
-        pushIdentifier(lines.get(start).value);
-        result.append("add").append(lineSeparator);
-        return index + 1;
+    private void compileArrayReference(int binding, JackNode.ExpressionNode index) {
+        compileExpression(index);
+        pushVariable(binding);
+        out.arithmetic(VmEmitter.Command.ADD);
     }
 
 
-    int compileDoStatement(int start) {
-        if (!Objects.equals(lines.get(start).tag, "doStatement"))
-            throw new RuntimeException("ex");
+    void compileDoStatement(JackNode.StatementNode statement) {
+        compileSubroutineCall(statement.call);
+        out.pop(VmEmitter.Segment.TEMP, 0);
+    }
 
-        String objectName;
-        String funcName;
-        boolean isMethodOfThis = !Objects.equals(lines.get(start + 3).value, ".");
-        if (isMethodOfThis) {
-            objectName = "this";
-            funcName = lines.get(start + 2).value;
-        } else {
-            objectName = lines.get(start + 2).value;
-            funcName = lines.get(start + 4).value;
-        }
+    private void compileSubroutineCall(JackNode.TermNode call) {
+        boolean isMethodOfThis = call.target == null;
+        String objectName = call.target;
 
-        expressionListSize = 0;
-        VarModel varModel = findIdentifier(objectName);
-        if (varModel != null) {
-            pushIdentifier(objectName);
+        int expressionListSize = 0;
+        //target 是变量(没有 target 时是 this)时把对象作为第一个参数,调用它所属类的方法
+        if (call.binding != SymbolBinder.UNBOUND) {
+            pushVariable(call.binding);
             expressionListSize++;
-            objectName = varModel.type;
+            objectName = binder.type(call.binding);
         }
 
-        int expressionTagStartIndex = findSingleTagIndex("expressionList", start, true);
-        start = compileExpressionList(expressionTagStartIndex);
+        expressionListSize += compileExpressionList(call.arguments);
 
+        String target = isMethodOfThis ? className : objectName;
+        if (target != null)
+            signature.addCall(new ClassIndex.Call(target, call.value, call.binding != SymbolBinder.UNBOUND,
+                    call.arguments.size(), call.line));
+        out.call(target, call.value, expressionListSize);
+    }
 
-        result.append("call ").append(isMethodOfThis ? className : objectName).append(".").append(funcName).append(" ").append(expressionListSize).append(lineSeparator);
-        result.append("pop temp 0").append(lineSeparator);
-        return findSingleTagIndex("doStatement", start, false) + 1;
+    int compileExpressionList(List<JackNode.ExpressionNode> expressions) {
+        for (JackNode.ExpressionNode expression : expressions)
+            compileExpression(expression);
+        return expressions.size();
     }
 
-    int compileExpressionList(int start) {
-        if (!Objects.equals(lines.get(start).tag, "expressionList"))
-            throw new RuntimeException("ex");
-        int expressionListTagEndIndex = findSingleTagIndex("expressionList", start + 1, false);
-        int startIndex = start + 1;
-        while (startIndex < expressionListTagEndIndex) {
-            //加1是因为 expressionList 中的 expression 之间有分隔符
-            startIndex = compileExpression(startIndex) + 1;
-            expressionListSize++;
+    void compileExpression(JackNode.ExpressionNode expression) {
+        if (optimize) {
+            compileOptimizedExpression(expression);
+            return;
+        }
+        compileTerm(expression.terms.get(0));
+        for (int i = 1; i < expression.terms.size(); i++) {
+            compileTerm(expression.terms.get(i));
+            compileOp(expression.ops.get(i - 1));
         }
+    }
 
-        return expressionListTagEndIndex + 1;
-    }
-
-    int compileExpression(int start) {
-        if (!Objects.equals(lines.get(start).tag, "expression"))
-            throw new RuntimeException("ex");
-        int startIndex = start + 1;
-        int endIndex = recursiveFindTagEndIndex("expression", start);
-        while (startIndex < endIndex) {
-            if (Objects.equals(lines.get(startIndex).tag, "term"))
-                startIndex = compileTerm(startIndex);
-            else if (Objects.equals(lines.get(startIndex).tag, "symbol")) {
-                int symbolIndex = startIndex;
-                startIndex = compileTerm(startIndex + 1);
-                compileOp(lines.get(symbolIndex).value);
+    //jack 没有运算符优先级,从左往右算: 开头连续的常量在编译时算出来,之后遇到常量操作数时尽量不调用 Math
+    private void compileOptimizedExpression(JackNode.ExpressionNode expression) {
+        List<JackNode.TermNode> terms = expression.terms;
+        List<String> ops = expression.ops;
+        Integer value = constantValue(terms.get(0));
+        int i = 1;
+        if (value != null) {
+            for (; i < terms.size(); i++) {
+                Integer right = constantValue(terms.get(i));
+                Integer folded = right == null ? null : fold(value, ops.get(i - 1), right);
+                if (folded == null)
+                    break;
+                value = folded;
             }
+            //c * x 和 x * c 一样处理
+            if (i < terms.size() && ops.get(i - 1).equals("*")) {
+                compileMultiply(terms.get(i), value);
+                i++;
+            } else
+                pushConstant(value);
+        } else if (terms.size() > 1 && ops.get(0).equals("*") && constantValue(terms.get(1)) != null) {
+            compileMultiply(terms.get(0), constantValue(terms.get(1)));
+            i = 2;
+        } else
+            compileTerm(terms.get(0));
+
+        for (; i < terms.size(); i++) {
+            Integer right = constantValue(terms.get(i));
+            if (right != null && compileConstantOperand(ops.get(i - 1), right))
+                continue;
+            compileTerm(terms.get(i));
+            compileOp(ops.get(i - 1));
         }
+    }
 
-        return endIndex + 1;
+    //栈顶的值 op 常量 c;不需要特殊处理时返回 false
+    private boolean compileConstantOperand(String op, int c) {
+        switch (op) {
+            case "*":
+                compileMultiply(null, c);
+                return true;
+            case "/":
+                if (c == 1)
+                    return true;
+                if (c == -1) {
+                    out.arithmetic(VmEmitter.Command.NEG);
+                    return true;
+                }
+                return false;
+            case "+":
+            case "-":
+                return c == 0;
+            default:
+                return false;
+        }
     }
 
-    int compileTerm(int start) {
-        if (!Objects.equals(lines.get(start).tag, "term"))
-            throw new RuntimeException("ex");
+    //乘以常量 c: 被乘数是 term,term 为 null 时表示被乘数已经在栈顶
+    //c 的二进制里 1 不超过 3 个(包括所有 2 的幂)时展开成加法链,否则还是调用 Math.multiply
+    private void compileMultiply(JackNode.TermNode term, int c) {
+        //变量可以直接再 push 一次,不用先存到 temp 1
+        int var = term != null && term.kind == JackNode.TermNode.Kind.VAR_NAME ? term.binding : SymbolBinder.UNBOUND;
+        int m = Math.abs(c);
+        if (c == 0) {
+            if (var == SymbolBinder.UNBOUND) {
+                if (term != null)
+                    compileTerm(term);
+                out.pop(VmEmitter.Segment.TEMP, 1);
+            }
+            out.push(VmEmitter.Segment.CONSTANT, 0);
+            return;
+        }
+        if (m != 1 && Integer.bitCount(m) > 3) {
+            if (term != null)
+                compileTerm(term);
+            pushConstant(c);
+            out.call("Math", "multiply", 2);
+            return;
+        }
 
-        int originStart = start;
-        TokenXmlLine secondLine = lines.get(start + 1);
-        int termTagEndIndex = recursiveFindTagEndIndex("term", start);
-        if (Objects.equals(secondLine.tag, "integerConstant")) {
-            result.append("push constant ").append(Integer.valueOf(secondLine.value)).append(lineSeparator);
-        } else if (Objects.equals(secondLine.tag, "symbol") && Objects.equals(secondLine.value, "(")) {
-            compileExpression(start + 2);
-        } else if (Objects.equals(secondLine.tag, "symbol") && Objects.equals(secondLine.value, "~")) {
-            if (Objects.equals(lines.get(start + 2).tag, "term")) {
-                compileTerm(start + 2);
+        if (var == SymbolBinder.UNBOUND) {
+            if (term != null)
+                compileTerm(term);
+            if (m != 1)
+                out.pop(VmEmitter.Segment.TEMP, 1);
+        }
+        //从最高位开始: 每一位先把结果乘 2,这一位是 1 时再加上被乘数
+        boolean resultIsX = true;
+        for (int bit = 30 - Integer.numberOfLeadingZeros(m); bit >= 0; bit--) {
+            if (resultIsX) {
+                pushMultiplicand(var);
+                pushMultiplicand(var);
+                resultIsX = false;
             } else {
-                throw new RuntimeException();
+                out.pop(VmEmitter.Segment.TEMP, 2);
+                out.push(VmEmitter.Segment.TEMP, 2);
+                out.push(VmEmitter.Segment.TEMP, 2);
             }
-            result.append("not").append(lineSeparator);
-        } else if (Objects.equals(secondLine.tag, "symbol") && Objects.equals(secondLine.value, "-")) {
-            if (Objects.equals(lines.get(start + 2).tag, "term")) {
-                compileTerm(start + 2);
-            } else throw new RuntimeException();
-            result.append("neg").append(lineSeparator);
-        } else if (Objects.equals(secondLine.tag, "identifier")) {
-            if (Objects.equals(lines.get(start + 2).value, "[")) { //like var[index]
-                compileExpression(start + 3);
-                pushIdentifier(lines.get(start + 1).value);
-                result.append("add").append(lineSeparator);
-                result.append("pop pointer 1").append(lineSeparator);
-                result.append("push that 0").append(lineSeparator);
-            } else if (termTagEndIndex == start + 2) {
-                pushIdentifier(secondLine.value);
-            } else {
-                //这是一个 函数调用的形式
-                String obName;
-                String funcName;
-
-                boolean isMethodOfThis = !Objects.equals(lines.get(start + 2).value, ".");
-                if (isMethodOfThis) {
-                    obName = "this";
-                    funcName = lines.get(start + 1).value;
-                } else {
-                    obName = lines.get(start + 1).value;
-                    funcName = lines.get(start + 3).value;
-                }
+            out.arithmetic(VmEmitter.Command.ADD);
+            if ((m & (1 << bit)) != 0) {
+                pushMultiplicand(var);
+                out.arithmetic(VmEmitter.Command.ADD);
+            }
+        }
+        if (resultIsX && (var != SymbolBinder.UNBOUND || m != 1))
+            pushMultiplicand(var);
+        if (c < 0)
+            out.arithmetic(VmEmitter.Command.NEG);
+    }
 
-                expressionListSize = 0;
-                VarModel varModel = findIdentifier(obName);
-                if (varModel != null) {
-                    pushIdentifier(obName);
-                    expressionListSize++;
-                    obName = varModel.type;
-                }
-                int expressionTagStartIndex = findSingleTagIndex("expressionList", start, true);
-                compileExpressionList(expressionTagStartIndex);
+    private void pushMultiplicand(int var) {
+        if (var != SymbolBinder.UNBOUND)
+            pushVariable(var);
+        else
+            out.push(VmEmitter.Segment.TEMP, 1);
+    }
+
+    //term 在编译时就能算出来时返回它的值(按 16 位补码),否则返回 null
+    private Integer constantValue(JackNode.TermNode term) {
+        steps++;
+        if (term.kind != JackNode.TermNode.Kind.PARENTHESIZED && term.kind != JackNode.TermNode.Kind.UNARY_OP)
+            return computeConstantValue(term);
+        if (constants.containsKey(term))
+            return constants.get(term);
+        Integer value = computeConstantValue(term);
+        constants.put(term, value);
+        return value;
+    }
+
+    private Integer computeConstantValue(JackNode.TermNode term) {
+        switch (term.kind) {
+            case INTEGER_CONSTANT:
+                return (int) (short) Integer.parseInt(term.value);
+            case KEYWORD_CONSTANT:
+                if (term.value.equals("true"))
+                    return -1;
+                return term.value.equals("this") ? null : 0;
+            case PARENTHESIZED:
+                return constantValue(term.expression);
+            case UNARY_OP:
+                Integer operand = constantValue(term.operand);
+                if (operand == null)
+                    return null;
+                return (int) (short) (term.value.equals("~") ? ~operand : -operand);
+            default:
+                return null;
+        }
+    }
 
-                result.append("call ").append(isMethodOfThis ? className : obName).
-                        append(".").append(funcName).append(" ").append(expressionListSize).append(lineSeparator);
-            }
-        } else if (Objects.equals(secondLine.tag, "keyword"))
-            pushKeyword(secondLine.value);
-        else if (Objects.equals(secondLine.tag, "stringConstant")) {
-            compileString(secondLine.value);
-        } else
-            throw new RuntimeException();
+    private Integer constantValue(JackNode.ExpressionNode expression) {
+        Integer value = constantValue(expression.terms.get(0));
+        for (int i = 1; i < expression.terms.size() && value != null; i++) {
+            Integer right = constantValue(expression.terms.get(i));
+            value = right == null ? null : fold(value, expression.ops.get(i - 1), right);
+        }
+        return value;
+    }
 
-        start = termTagEndIndex + 1;
+    //按 hack 的 16 位运算计算 a op b;除以 0 时不折叠,返回 null
+    private static Integer fold(int a, String op, int b) {
+        switch (op) {
+            case "+":
+                return (int) (short) (a + b);
+            case "-":
+                return (int) (short) (a - b);
+            case "*":
+                return (int) (short) (a * b);
+            case "/":
+                return b == 0 ? null : (int) (short) (a / b);
+            case "&":
+                return a & b;
+            case "|":
+                return a | b;
+            case "<":
+                return a < b ? -1 : 0;
+            case ">":
+                return a > b ? -1 : 0;
+            case "=":
+                return a == b ? -1 : 0;
+            default:
+                throw new RuntimeException("ex");
+        }
+    }
 
-        if (start == originStart)
-            throw new RuntimeException();
+    //push constant 只能是 0..32767,负数 v 写成 push ~v; not(true 就是 push constant 0; not)
+    private void pushConstant(int value) {
+        if (value >= 0)
+            out.push(VmEmitter.Segment.CONSTANT, value);
+        else {
+            out.push(VmEmitter.Segment.CONSTANT, ~value);
+            out.arithmetic(VmEmitter.Command.NOT);
+        }
+    }
 
-        return start;
+    void compileTerm(JackNode.TermNode term) {
+        steps++;
+        if (optimize) {
+            Integer value = constantValue(term);
+            if (value != null) {
+                pushConstant(value);
+                return;
+            }
+        }
+        switch (term.kind) {
+            case INTEGER_CONSTANT:
+                out.push(VmEmitter.Segment.CONSTANT, Integer.parseInt(term.value));
+                break;
+            case PARENTHESIZED:
+                compileExpression(term.expression);
+                break;
+            case UNARY_OP:
+                compileTerm(term.operand);
+                if (Objects.equals(term.value, "~"))
+                    out.arithmetic(VmEmitter.Command.NOT);
+                else
+                    out.arithmetic(VmEmitter.Command.NEG);
+                break;
+            case ARRAY_ENTRY: //like var[index]
+                compileExpression(term.expression);
+                pushVariable(term.binding);
+                out.arithmetic(VmEmitter.Command.ADD);
+                out.pop(VmEmitter.Segment.POINTER, 1);
+                out.push(VmEmitter.Segment.THAT, 0);
+                break;
+            case VAR_NAME:
+                pushVariable(term.binding);
+                break;
+            case SUBROUTINE_CALL:
+                compileSubroutineCall(term);
+                break;
+            case KEYWORD_CONSTANT:
+                pushKeyword(term.value);
+                break;
+            case STRING_CONSTANT:
+                compileString(term.value);
+                break;
+            default:
+                throw new RuntimeException();
+        }
     }
 
     private void compileString(String input) {
         if (input == null || input.length() == 0)
             throw new RuntimeException();
-        char[] chars = input.toCharArray();
+        if (poolStrings) {
+            compilePooledString(input);
+            return;
+        }
+        buildString(input);
+    }
 
-        result.append("push constant ").append(chars.length).append(lineSeparator);
-        result.append("call String.new 1").append(lineSeparator);
-        for (char c : chars) {
-            result.append("push constant ").append((int) c).append(lineSeparator);
-            result.append("call String.appendChar 2").append(lineSeparator);
+    //static 变量初始值是 0: 第一次用到时创建字符串存进去,之后直接 push
+    //push static k; if-goto STRING_READYn; <创建>; pop static k; label STRING_READYn; push static k
+    private void compilePooledString(String input) {
+        Integer slot = stringSlots.get(input);
+        if (slot == null) {
+            slot = binder.staticCount() + stringSlots.size();
+            stringSlots.put(input, slot);
+        }
+        stringGlobalCount++;
+        out.push(VmEmitter.Segment.STATIC, slot);
+        out.ifGoto("STRING_READY", stringGlobalCount);
+        buildString(input);
+        out.pop(VmEmitter.Segment.STATIC, slot);
+        out.label("STRING_READY", stringGlobalCount);
+        out.push(VmEmitter.Segment.STATIC, slot);
+    }
+
+    private void buildString(String input) {
+        out.push(VmEmitter.Segment.CONSTANT, input.length());
+        out.call("String", "new", 1);
+        for (int i = 0; i < input.length(); i++) {
+            out.push(VmEmitter.Segment.CONSTANT, input.charAt(i));
+            out.call("String", "appendChar", 2);
         }
     }
 
@@ -551,92 +551,54 @@ public class CompilationEngine {
         if (keyword == null || keyword.isEmpty())
             return;
         if (Objects.equals(keyword, "true") || Objects.equals(keyword, "false"))
-            result.append("push constant 0").append(lineSeparator);
+            out.push(VmEmitter.Segment.CONSTANT, 0);
         else if (Objects.equals(keyword, "this"))
-            result.append("push pointer 0").append(lineSeparator);
+            out.push(VmEmitter.Segment.POINTER, 0);
         else if (Objects.equals(keyword, "null"))
-            result.append("push constant 0").append(lineSeparator);
+            out.push(VmEmitter.Segment.CONSTANT, 0);
         else
             throw new RuntimeException();
 
         if (Objects.equals(keyword, "true"))
-            result.append("not").append(lineSeparator);
-    }
-
-    private void pushIdentifier(String identifier) {
-        pushOrPopIdentifier(true, identifier);
-    }
-
-    private void popIdentifier(String identifier) {
-        pushOrPopIdentifier(false, identifier);
+            out.arithmetic(VmEmitter.Command.NOT);
     }
 
-    private void pushOrPopIdentifier(boolean push, String identifier) {
-        if (identifier == null || identifier.isEmpty())
-            return;
-        VarModel varModel = null;
-        if (localVars.containsKey(identifier)) {
-            varModel = localVars.get(identifier);
-        } else if (argumentVars.containsKey(identifier)) {
-            varModel = argumentVars.get(identifier);
-        } else if (filedVars.containsKey(identifier)) {
-            varModel = filedVars.get(identifier);
-        } else if (staticVars.containsKey(identifier)) {
-            varModel = staticVars.get(identifier);
-        } else if (defaultVars.containsKey(identifier))
-            varModel = defaultVars.get(identifier);
-
-        if (varModel == null)
-            throw new RuntimeException();
-        result.append(push ? "push " : "pop ");
-        result.append(varModel.getSegment()).append(" ").append(varModel.index).append(lineSeparator);
+    private void pushVariable(int binding) {
+        out.push(binder.segment(binding), binder.index(binding));
     }
 
-    private VarModel findIdentifier(String identifier) {
-        if (identifier == null)
-            return null;
-        if (staticVars.containsKey(identifier))
-            return staticVars.get(identifier);
-        else if (filedVars.containsKey(identifier))
-            return filedVars.get(identifier);
-        else if (argumentVars.containsKey(identifier))
-            return argumentVars.get(identifier);
-        else if (localVars.containsKey(identifier))
-            return localVars.get(identifier);
-        else if (defaultVars.containsKey(identifier))
-            return defaultVars.get(identifier);
-        return null;
+    private void popVariable(int binding) {
+        out.pop(binder.segment(binding), binder.index(binding));
     }
 
-
     void compileOp(String tag) {
         switch (tag) {
             case "+":
-                result.append("add").append(lineSeparator);
+                out.arithmetic(VmEmitter.Command.ADD);
                 break;
             case "-":
-                result.append("sub").append(lineSeparator);
+                out.arithmetic(VmEmitter.Command.SUB);
                 break;
             case "*":
-                result.append("call Math.multiply 2").append(lineSeparator);
+                out.call("Math", "multiply", 2);
                 break;
             case "/":
-                result.append("call Math.divide 2").append(lineSeparator);
+                out.call("Math", "divide", 2);
                 break;
-            case "&gt;":
-                result.append("gt").append(lineSeparator);
+            case ">":
+                out.arithmetic(VmEmitter.Command.GT);
                 break;
-            case "&lt;":
-                result.append("lt").append(lineSeparator);
+            case "<":
+                out.arithmetic(VmEmitter.Command.LT);
                 break;
-            case "&amp;":
-                result.append("and").append(lineSeparator);
+            case "&":
+                out.arithmetic(VmEmitter.Command.AND);
                 break;
             case "=":
-                result.append("eq").append(lineSeparator);
+                out.arithmetic(VmEmitter.Command.EQ);
                 break;
             case "|":
-                result.append("or").append(lineSeparator);
+                out.arithmetic(VmEmitter.Command.OR);
                 break;
             default:
                 throw new RuntimeException("ex");
@@ -644,75 +606,14 @@ public class CompilationEngine {
     }
 
 
-    int compileReturnStatement(int start) {
-        if (!Objects.equals(lines.get(start).tag, "returnStatement"))
-            throw new RuntimeException("ex");
-
-        int endIndex = findSingleTagIndex("returnStatement", start + 1, false);
-
-        if (endIndex == start + 3) {
-            result.append("push constant 0\n");
+    void compileReturnStatement(JackNode.StatementNode statement) {
+        if (statement.expression == null) {
+            out.push(VmEmitter.Segment.CONSTANT, 0);
         } else {
-            int expressionStartIndex = findSingleTagIndex("expression", start, true);
-            compileExpression(expressionStartIndex);
+            compileExpression(statement.expression);
         }
-        result.append("return").append(lineSeparator);
-
-        return endIndex + 1;
+        out.ret();
     }
 
 
-    int findSingleTagIndex(String tag, int startIndex, boolean isStart) {
-        for (int i = startIndex; i < lines.size(); i++) {
-            TokenXmlLine line = lines.get(i);
-            if (line.isSingle && (line.isTagStart == isStart) && Objects.equals(line.tag, tag))
-                return i;
-        }
-        return -1;
-    }
-
-    int recursiveFindTagEndIndex(String tag, int startIndex) {
-        int pairTagNum = 0;
-        for (int i = startIndex; i < lines.size(); i++) {
-            TokenXmlLine line = lines.get(i);
-            if (Objects.equals(line.tag, tag)) {
-                if (line.isTagStart)
-                    pairTagNum++;
-                else if (line.isTagEnd) {
-                    pairTagNum--;
-                    if (pairTagNum <= 0)
-                        return i;
-                }
-            }
-        }
-
-        return -1;
-    }
-
-    int compileParaList(int start) {
-        if (!Objects.equals(lines.get(start).tag, "parameterList"))
-            throw new RuntimeException("ex");
-        int end = findSingleTagIndex("parameterList", start + 1, false);
-        start += 1;
-        argumentVars.clear();
-        //purpose: size of arguments add 1
-        if (isMethod)
-            argumentVars.put("ob", new VarModel());
-        while (start < end) {
-            if (Objects.equals(lines.get(start).value, ",")) {
-                start++;
-                continue;
-            }
-            VarModel varModel = new VarModel();
-            varModel.index = argumentVars.size();
-            varModel.varType = VarModel.VAR_TYPE_ARGUMENT;
-            varModel.type = lines.get(start).value;
-            varModel.name = lines.get(start + 1).value;
-            argumentVars.put(varModel.name, varModel);
-            start += 2;
-        }
-
-        return end + 1;
-    }
-
 }
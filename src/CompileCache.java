@@ -0,0 +1,200 @@
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+//按内容哈希缓存编译结果: key = sha-256(编译器版本 + 选项 + 源文件内容),命中时直接复用缓存的 .vm/.xml
+//缓存文件的修改时间作为最近使用时间,超过大小上限时先删除最久没有用过的 key(它的所有输出和 .sig 一起删)
+public class CompileCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static String compilerVersion;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final String options;
+
+    public CompileCache(Path dir, long maxBytes, String options) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.options = options;
+        Files.createDirectories(dir);
+    }
+
+    public static Path defaultDir() {
+        return Paths.get(System.getProperty("user.home"), ".jack-compiler-cache");
+    }
+
+    public String key(ByteBuffer source) {
+        MessageDigest digest = newDigest();
+        digest.update(compilerVersion().getBytes());
+        digest.update((byte) 0);
+        digest.update(options.getBytes());
+        digest.update((byte) 0);
+        digest.update(source.duplicate());
+        return toHex(digest.digest());
+    }
+
+    //命中时把缓存的结果放到 outputs 对应的位置(内容相同的输出文件保持不动)并返回 true
+    //outputs 和 suffixes 一一对应,例如 {Main.jack.vm, Main.jack.xml} 和 {".vm", ".xml"}
+    public boolean restore(String key, File[] outputs, String[] suffixes) throws IOException {
+        Path[] entries = new Path[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            entries[i] = dir.resolve(key + suffixes[i]);
+            if (!Files.exists(entries[i]))
+                return false;
+        }
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (int i = 0; i < outputs.length; i++) {
+            Path target = outputs[i].toPath();
+            if (!Files.exists(target) || Files.size(target) != Files.size(entries[i]) || Files.mismatch(target, entries[i]) != -1) {
+                //和 store 一样先复制到临时文件再改名,别的进程不会读到复制了一半的文件
+                Path tmp = tempFile(target);
+                Files.copy(entries[i], tmp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.setLastModifiedTime(entries[i], now);
+        }
+        //签名和输出一起用到,一起算作最近用过
+        try {
+            Files.setLastModifiedTime(dir.resolve(key + ".sig"), now);
+        } catch (NoSuchFileException e) {
+            //没有缓存签名(不做增量编译时)
+        }
+        return true;
+    }
+
+    //target 同一目录下的临时文件,改名时不跨文件系统;文件名带上进程和线程,同时运行的编译不会互相覆盖
+    public static Path tempFile(Path target) {
+        return target.resolveSibling("." + target.getFileName() + "." + ProcessHandle.current().pid() + "." + Thread.currentThread().getId() + ".tmp");
+    }
+
+    public void store(String key, File[] outputs, String[] suffixes) throws IOException {
+        for (int i = 0; i < outputs.length; i++) {
+            //先写临时文件再改名,多个线程/进程同时写同一个 key 也不会读到写了一半的文件
+            Path tmp = Files.createTempFile(dir, key, ".tmp");
+            Files.copy(outputs[i].toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, dir.resolve(key + suffixes[i]), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    //增量编译要用到类签名,和输出一起缓存在 <key>.sig 中
+    public void storeSignature(String key, ClassIndex.Signature signature) throws IOException {
+        Path tmp = Files.createTempFile(dir, key, ".tmp");
+        Files.write(tmp, signature.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, dir.resolve(key + ".sig"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //没有缓存签名时返回 null
+    public ClassIndex.Signature restoreSignature(String key) throws IOException {
+        try {
+            return ClassIndex.Signature.parse(Files.readString(dir.resolve(key + ".sig"), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException | RuntimeException e) {
+            //RuntimeException: 读不懂的签名,当作没有
+            return null;
+        }
+    }
+
+    //source(文件或目录)的增量编译索引,按编译器版本、选项和 source 的绝对路径区分
+    public Path indexFile(Path source) {
+        MessageDigest digest = newDigest();
+        digest.update(compilerVersion().getBytes());
+        digest.update((byte) 0);
+        digest.update(options.getBytes());
+        digest.update((byte) 0);
+        digest.update(source.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+        return dir.resolve(toHex(digest.digest()) + ".index");
+    }
+
+    //删除最久没有用过的缓存,直到总大小不超过上限;<key>.vm、<key>.xml、<key>.sig 等同一个 key 的文件一起删,
+    //不会只留下一部分,key 的最近使用时间取其中最新的修改时间
+    public void evict() throws IOException {
+        Map<String, List<Path>> keys = new HashMap<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+                    .forEach(p -> keys.computeIfAbsent(keyOf(p), k -> new ArrayList<>()).add(p));
+        }
+        long total = 0;
+        List<String> names = new ArrayList<>();
+        List<long[]> info = new ArrayList<>();
+        for (Map.Entry<String, List<Path>> entry : keys.entrySet()) {
+            long size = 0;
+            long lastUsed = 0;
+            for (Path file : entry.getValue()) {
+                try {
+                    size += Files.size(file);
+                    lastUsed = Math.max(lastUsed, Files.getLastModifiedTime(file).toMillis());
+                } catch (NoSuchFileException e) {
+                    //被同时运行的另一次编译删掉了
+                }
+            }
+            total += size;
+            info.add(new long[]{lastUsed, size, names.size()});
+            names.add(entry.getKey());
+        }
+        if (total <= maxBytes)
+            return;
+        info.sort((a, b) -> Long.compare(a[0], b[0]));
+        for (long[] entry : info) {
+            if (total <= maxBytes)
+                break;
+            for (Path file : keys.get(names.get((int) entry[2])))
+                Files.deleteIfExists(file);
+            total -= entry[1];
+        }
+    }
+
+    //缓存文件名中第一个 . 之前的部分: <key>.vm -> <key>,<hash>.index -> <hash>
+    private static String keyOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    //编译器版本取自编译器自身 class 文件的哈希,编译器代码有任何改动时旧的缓存自动失效
+    private static synchronized String compilerVersion() {
+        if (compilerVersion != null)
+            return compilerVersion;
+        MessageDigest digest = newDigest();
+        try {
+            Path location = Paths.get(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            List<Path> files = new ArrayList<>();
+            if (Files.isDirectory(location)) {
+                try (Stream<Path> stream = Files.walk(location)) {
+                    stream.filter(p -> p.toString().endsWith(".class")).sorted().forEach(files::add);
+                }
+            } else
+                files.add(location);
+            for (Path file : files)
+                digest.update(Files.readAllBytes(file));
+        } catch (IOException | URISyntaxException | SecurityException | NullPointerException e) {
+            digest.update("unknown".getBytes());
+        }
+        compilerVersion = toHex(digest.digest());
+        return compilerVersion;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
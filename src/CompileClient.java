@@ -0,0 +1,60 @@
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+//编译服务的客户端: 把参数原样转发给 CompileServer,打印服务返回的输出,并用同样的退出码退出
+//java CompileClient [--socket PATH] [--stats | --shutdown | Main 的参数...]
+//连不上服务时直接在本进程里编译,结果和 java Main 相同
+public class CompileClient {
+    public static void main(String[] args) throws IOException {
+        Path socket = CompileServer.defaultSocket();
+        int from = 0;
+        if (args.length >= 2 && args[0].equals("--socket")) {
+            socket = Paths.get(args[1]);
+            from = 2;
+        }
+        args = Arrays.copyOfRange(args, from, args.length);
+        String command = CompileServer.COMPILE;
+        if (args.length == 1 && args[0].equals("--stats"))
+            command = CompileServer.STATS;
+        else if (args.length == 1 && args[0].equals("--shutdown"))
+            command = CompileServer.SHUTDOWN;
+
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            if (!command.equals(CompileServer.COMPILE)) {
+                System.out.println("no compile server on " + socket);
+                System.exit(1);
+            }
+            Main.main(args);
+            return;
+        }
+
+        int status;
+        try (channel;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+            out.writeUTF(command);
+            if (command.equals(CompileServer.COMPILE)) {
+                out.writeUTF(Paths.get("").toAbsolutePath().toString());
+                out.writeInt(args.length);
+                for (String arg : args)
+                    out.writeUTF(arg);
+            }
+            out.flush();
+            status = in.readInt();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            System.out.print(new String(output, StandardCharsets.UTF_8));
+        }
+        if (status != 0)
+            System.exit(status);
+    }
+}
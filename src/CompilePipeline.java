@@ -0,0 +1,310 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+//--pipeline[=R,P,G,W]: 把编译拆成 读入 -> 分词和解析 -> 生成代码 -> 写出 四个阶段,每个阶段用各自的线程数,
+//阶段之间用有界队列连接: 后面的阶段跟不上时 put 会阻塞(背压),在途的文件不会超过 队列容量 + 线程数。
+//读写文件的等待和编译互相重叠,在网络文件系统这类 I/O 延迟高的地方效果明显。
+//结束时报告每个阶段处理的文件数、忙碌时间占比(利用率)、等下一个阶段的时间以及输入队列的平均和最大深度
+public class CompilePipeline {
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+    public static final String[] STAGES = {"read", "parse", "generate", "write"};
+
+    //一个文件在各阶段之间传递的状态;同一时刻只有一个阶段在处理它,经过队列交接
+    private static class Job {
+        final int index;
+        final File file;
+        final CompileStats.FileStats stats;
+        File[] outputs;
+        ByteBuffer source;
+        String key;
+        JackNode.ClassNode classNode;
+        ClassIndex.Signature signature;
+        //和 outputs 一一对应
+        byte[][] contents;
+
+        Job(int index, File file, CompileStats.FileStats stats) {
+            this.index = index;
+            this.file = file;
+            this.stats = stats;
+        }
+    }
+
+    //关闭一个阶段的标记,每个线程收到一个
+    private static final Job END = new Job(-1, null, null);
+
+    private interface Step {
+        //返回 false 表示这个文件已经处理完(例如命中缓存),不再交给下一个阶段
+        boolean process(Job job) throws IOException;
+    }
+
+    private class Stage {
+        final String name;
+        final int threads;
+        final Step step;
+        final BlockingQueue<Job> input;
+        Stage next;
+        private final AtomicInteger running;
+        final LongAdder items = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        //等下一个阶段的队列腾出空位的时间
+        final LongAdder blockedNanos = new LongAdder();
+        //每次取 job 时采样输入队列的深度
+        final LongAdder depthSum = new LongAdder();
+        final LongAdder depthSamples = new LongAdder();
+        final AtomicLong maxDepth = new AtomicLong();
+
+        Stage(String name, int threads, int capacity, Step step) {
+            this.name = name;
+            this.threads = threads;
+            this.step = step;
+            this.input = new ArrayBlockingQueue<>(capacity);
+            this.running = new AtomicInteger(threads);
+        }
+
+        void work() {
+            try {
+                while (true) {
+                    int depth = input.size();
+                    depthSum.add(depth);
+                    depthSamples.increment();
+                    maxDepth.accumulateAndGet(depth, Math::max);
+                    Job job = input.take();
+                    if (job == END)
+                        break;
+                    long start = System.nanoTime();
+                    boolean forward;
+                    try {
+                        forward = step.process(job);
+                    } catch (Throwable e) {
+                        //和 -j 一样,任何异常都只算这个文件失败,流水线继续
+                        failures[job.index] = job.file.getPath() + ": " + e;
+                        forward = false;
+                    }
+                    busyNanos.add(System.nanoTime() - start);
+                    items.increment();
+                    if (forward)
+                        put(job);
+                    else
+                        finish(job);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                //最后一个退出的线程关闭下一个阶段
+                if (running.decrementAndGet() == 0 && next != null) {
+                    for (int i = 0; i < next.threads; i++)
+                        next.putQuietly(END);
+                }
+            }
+        }
+
+        private void put(Job job) throws InterruptedException {
+            long start = System.nanoTime();
+            next.input.put(job);
+            blockedNanos.add(System.nanoTime() - start);
+        }
+
+        private void putQuietly(Job job) {
+            try {
+                input.put(job);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final Main.Options options;
+    private final List<Stage> stages = new ArrayList<>();
+    private String[] failures;
+    private long wallNanos;
+
+    //threads 依次是读入、解析、生成代码、写出的线程数
+    public CompilePipeline(Main.Options options, int[] threads, int capacity) {
+        this.options = options;
+        Step[] steps = {this::read, this::parse, this::generate, this::write};
+        for (int i = 0; i < STAGES.length; i++)
+            stages.add(new Stage(STAGES[i], Math.max(1, threads[i]), capacity, steps[i]));
+        for (int i = 0; i + 1 < stages.size(); i++)
+            stages.get(i).next = stages.get(i + 1);
+    }
+
+    //按 compileFiles 的顺序返回失败的文件
+    public List<String> run(List<File> compileFiles) {
+        failures = new String[compileFiles.size()];
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (Stage stage : stages) {
+            for (int i = 0; i < stage.threads; i++) {
+                Thread worker = new Thread(stage::work, "pipeline-" + stage.name + "-" + i);
+                worker.start();
+                workers.add(worker);
+            }
+        }
+        Stage first = stages.get(0);
+        try {
+            for (int i = 0; i < compileFiles.size(); i++) {
+                File f = compileFiles.get(i);
+                if (!f.getName().endsWith(".jack"))
+                    continue;
+                first.input.put(new Job(i, f, new CompileStats.FileStats(f.getPath(), options.stats != null)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int i = 0; i < first.threads; i++)
+                first.putQuietly(END);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        wallNanos = System.nanoTime() - start;
+
+        List<String> result = new ArrayList<>();
+        for (String failure : failures) {
+            if (failure != null)
+                result.add(failure);
+        }
+        return result;
+    }
+
+    private boolean read(Job job) throws IOException {
+        String[] suffixes = options.suffixes();
+        job.outputs = new File[suffixes.length];
+        for (int i = 0; i < suffixes.length; i++)
+            job.outputs[i] = Main.outputFile(job.file, suffixes[i]);
+        CompileStats.FileStats stats = job.stats;
+        stats.begin(CompileStats.Phase.READ);
+        job.source = JackSource.read(job.file.toPath());
+        if (options.cache != null) {
+            job.key = options.cache.key(job.source);
+            stats.cached = options.cache.restore(job.key, job.outputs, suffixes);
+            //和 Main.compileFile 一样,缓存里没有类签名时照样重新编译
+            if (stats.cached && options.index != null && (job.signature = options.cache.restoreSignature(job.key)) == null)
+                stats.cached = false;
+        }
+        stats.end();
+        stats.bytesRead = job.source.remaining();
+        if (stats.cached) {
+            stats.bytesWritten = Main.totalLength(job.outputs);
+            if (options.index != null)
+                options.index.update(job.file, job.outputs, job.signature);
+        }
+        return !stats.cached;
+    }
+
+    private boolean parse(Job job) {
+        CompileStats.FileStats stats = job.stats;
+        stats.begin(CompileStats.Phase.TOKENIZE);
+        JackTokenizer tokenizer = new JackTokenizer(JackSource.decode(job.source), options.pool());
+        TokenBuffer tokens = tokenizer.getTokens();
+        stats.end();
+        job.source = null;
+        stats.tokens = tokens.size();
+        stats.lines = tokenizer.getLine() - 1;
+        stats.begin(CompileStats.Phase.PARSE);
+        job.classNode = new JackParser().parse(tokens);
+        stats.end();
+        return true;
+    }
+
+    //结果先放在内存里,由写出阶段写到文件;顺序和 options.suffixes() 一致
+    private boolean generate(Job job) throws IOException {
+        CompileStats.FileStats stats = job.stats;
+        job.contents = new byte[job.outputs.length][];
+        if (options.emitXml) {
+            stats.begin(CompileStats.Phase.XML);
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try (JackXmlPrinter.XmlWriter out = new JackXmlPrinter.XmlWriter(new OutputStreamWriter(xml, StandardCharsets.UTF_8))) {
+                new JackXmlPrinter(out).print(job.classNode);
+            }
+            job.contents[options.slot(".xml")] = xml.toByteArray();
+            stats.end();
+        }
+        if (options.emitCode()) {
+            stats.begin(CompileStats.Phase.VM);
+            ByteArrayOutputStream vm = new ByteArrayOutputStream();
+            ByteArrayOutputStream asm = new ByteArrayOutputStream();
+            VmEmitter emitter = Main.openEmitter(options.emitVm ? Channels.newChannel(vm) : null,
+                    options.emitAsm ? Channels.newChannel(asm) : null, options);
+            CompilationEngine engine = new CompilationEngine(options.optimize, options.poolStrings);
+            engine.compile(job.classNode, emitter);
+            stats.vmInstructions = Main.closeEmitter(emitter, options);
+            job.signature = engine.signature();
+            if (options.emitVm)
+                job.contents[options.slot(".vm")] = vm.toByteArray();
+            if (options.emitAsm)
+                job.contents[options.slot(".asm")] = asm.toByteArray();
+            stats.end();
+        }
+        job.classNode = null;
+        return true;
+    }
+
+    //先写临时文件再改名,和 Main.compileFile 一样
+    private boolean write(Job job) throws IOException {
+        CompileStats.FileStats stats = job.stats;
+        stats.begin(CompileStats.Phase.WRITE);
+        for (int i = 0; i < job.outputs.length; i++) {
+            Path target = job.outputs[i].toPath();
+            Path temp = CompileCache.tempFile(target);
+            try {
+                Files.write(temp, job.contents[i]);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            stats.bytesWritten += job.contents[i].length;
+        }
+        job.contents = null;
+        if (job.key != null) {
+            options.cache.store(job.key, job.outputs, options.suffixes());
+            if (job.signature != null)
+                options.cache.storeSignature(job.key, job.signature);
+        }
+        if (options.index != null)
+            options.index.update(job.file, job.outputs, job.signature);
+        stats.end();
+        return false;
+    }
+
+    //文件在某个阶段结束(写完、命中缓存或失败)
+    private void finish(Job job) {
+        job.stats.finish();
+        if (options.stats != null)
+            options.stats.add(job.stats);
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder(String.format("pipeline: %.1f ms%n", wallNanos / 1e6));
+        sb.append(String.format("%-10s %7s %6s %10s %6s %11s %9s %9s%n",
+                "stage", "threads", "files", "busy ms", "util", "blocked ms", "queue avg", "queue max"));
+        for (Stage stage : stages) {
+            long samples = Math.max(1, stage.depthSamples.sum());
+            double utilisation = wallNanos == 0 ? 0 : stage.busyNanos.sum() * 100.0 / ((double) wallNanos * stage.threads);
+            sb.append(String.format("%-10s %7d %6d %10.1f %5.1f%% %11.1f %9.2f %9d%n", stage.name, stage.threads,
+                    stage.items.sum(), stage.busyNanos.sum() / 1e6, utilisation, stage.blockedNanos.sum() / 1e6,
+                    (double) stage.depthSum.sum() / samples, stage.maxDepth.get()));
+        }
+        return sb.toString().stripTrailing();
+    }
+}
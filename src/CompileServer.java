@@ -0,0 +1,227 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//编译服务: 常驻一个 JVM,通过 unix domain socket 接收编译请求,省掉每次启动 JVM 和 JIT 预热的时间
+//java CompileServer [--socket PATH] [--threads N] [--idle-timeout SECONDS]
+//每个连接是一个请求,交给线程池处理;JIT 编译好的代码和编译器版本的哈希一直保留;
+//SymbolPool 每个请求用自己的,请求结束就丢掉,常驻的服务不会把编译过的所有标识符都留在内存里
+//空闲超过 idle-timeout 秒(默认 600)后自动退出,退出时打印编译请求耗时的直方图
+//协议(DataInput/DataOutput): 请求 = 命令 [+ 客户端工作目录 + 参数个数 + 参数];响应 = 退出码 + 输出的长度 + 输出(UTF-8)
+public class CompileServer {
+    public static final String COMPILE = "compile";
+    public static final String STATS = "stats";
+    public static final String SHUTDOWN = "shutdown";
+    public static final int DEFAULT_IDLE_TIMEOUT = 600;
+
+    //按 2 的幂分桶的耗时直方图: 第 i 个桶是 [2^i, 2^(i+1)) 微秒
+    public static class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(40);
+
+        public void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(micros));
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++)
+                count += buckets.get(i);
+            return count;
+        }
+
+        //第 p 百分位所在的桶的上界(毫秒)
+        public double percentile(double p) {
+            long count = count(), seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (count > 0 && seen >= Math.ceil(p * count))
+                    return (1L << (i + 1)) / 1000.0;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            long count = count();
+            StringBuilder sb = new StringBuilder(String.format("requests: %d, p50 < %.3f ms, p90 < %.3f ms, p99 < %.3f ms",
+                    count, percentile(0.5), percentile(0.9), percentile(0.99)));
+            for (int i = 0; i < buckets.length(); i++) {
+                long n = buckets.get(i);
+                if (n == 0)
+                    continue;
+                sb.append(String.format("%n  < %10.3f ms %8d ", (1L << (i + 1)) / 1000.0, n));
+                sb.append("#".repeat((int) Math.max(1, n * 40 / count)));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Path socket;
+    private final int idleTimeout;
+    private final ExecutorService executor;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile long lastActive = System.nanoTime();
+    private ServerSocketChannel server;
+
+    public CompileServer(Path socket, int threads, int idleTimeout) {
+        this.socket = socket;
+        this.idleTimeout = idleTimeout;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    public static Path defaultSocket() {
+        return Paths.get(System.getProperty("user.home"), ".jack-compiler.sock");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path socket = defaultSocket();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--socket") && i + 1 < args.length)
+                socket = Paths.get(args[++i]);
+            else if (args[i].equals("--threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--idle-timeout") && i + 1 < args.length)
+                idleTimeout = Integer.parseInt(args[++i]);
+            else
+                throw new RuntimeException("usage: java CompileServer [--socket PATH] [--threads N] [--idle-timeout SECONDS]");
+        }
+        CompileServer server = new CompileServer(socket, Math.max(1, threads), idleTimeout);
+        server.serve();
+        System.out.println(server.latency);
+    }
+
+    public void serve() throws IOException, InterruptedException {
+        if (Files.exists(socket)) {
+            //上次没有正常退出时会留下 socket 文件;还能连上说明服务已经在运行
+            if (isListening(socket))
+                throw new RuntimeException("compile server is already running on " + socket);
+            Files.delete(socket);
+        }
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        System.out.println("compile server listening on " + socket);
+
+        Thread idleWatcher = new Thread(this::watchIdle, "idle-watcher");
+        idleWatcher.setDaemon(true);
+        idleWatcher.start();
+        try {
+            while (true) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (AsynchronousCloseException e) {
+                    break;
+                }
+                active.incrementAndGet();
+                executor.execute(() -> handle(client));
+            }
+        } finally {
+            server.close();
+            Files.deleteIfExists(socket);
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+
+    private static boolean isListening(Path socket) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            return channel.isConnected();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    //没有正在处理的请求并且空闲超过 idleTimeout 秒时关掉 server,accept 随即返回
+    private void watchIdle() {
+        try {
+            while (server.isOpen()) {
+                Thread.sleep(1000);
+                if (active.get() == 0 && System.nanoTime() - lastActive > TimeUnit.SECONDS.toNanos(idleTimeout)) {
+                    System.out.println("idle for " + idleTimeout + " s, shutting down");
+                    server.close();
+                }
+            }
+        } catch (InterruptedException | IOException ignored) {
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int status;
+            try (PrintStream print = new PrintStream(output, true, StandardCharsets.UTF_8)) {
+                status = execute(in, print);
+            }
+            byte[] bytes = output.toByteArray();
+            out.writeInt(status);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (EOFException e) {
+            //只是连上来看一下服务在不在(isListening),没有发请求
+        } catch (IOException e) {
+            System.out.println("request failed: " + e);
+        } finally {
+            lastActive = System.nanoTime();
+            active.decrementAndGet();
+        }
+    }
+
+    private int execute(DataInputStream in, PrintStream print) throws IOException {
+        String command = in.readUTF();
+        switch (command) {
+            case COMPILE:
+                Path base = Paths.get(in.readUTF());
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++)
+                    args[i] = in.readUTF();
+                long start = System.nanoTime();
+                Main.Options options = null;
+                try {
+                    options = Main.Options.parse(args);
+                    //--watch 不会返回,会一直占着一个线程
+                    if (options.watch)
+                        throw new RuntimeException("--watch is not supported by the compile server");
+                    options.resolve(base);
+                    options.out = print;
+                    return Main.run(options);
+                } catch (IOException | RuntimeException e) {
+                    print.println("compile failed: " + e);
+                    return 1;
+                } finally {
+                    //-j 和 --pipeline 的线程随请求结束,这里只剩处理请求的线程自己的池
+                    if (options != null)
+                        options.pools.remove();
+                    latency.record(System.nanoTime() - start);
+                }
+            case STATS:
+                print.println(latency);
+                return 0;
+            case SHUTDOWN:
+                print.println("compile server on " + socket + " shutting down");
+                server.close();
+                return 0;
+            default:
+                print.println("unknown command " + command);
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import jdk.jfr.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+//--stats: 记录每个文件每个阶段的耗时和分配的字节数,以及 token 数、行数、读写的字节数和 vm 指令数,最后打印成表格或 NDJSON
+//阶段的边界同时作为 JFR 事件(jack.CompilePhase / jack.CompileFile)发出,不加 --stats 也可以用 Flight Recorder 录下来:
+//java -XX:StartFlightRecording=filename=compile.jfr Main <dir>
+public class CompileStats {
+    public enum Phase {
+        //从缓存取出时只有 READ;--stream 时读入、分词、解析和生成交织在一起,整个算作 STREAM
+        //WRITE 是把输出改名到位(--pipeline 时还包括写文件),不加 --pipeline 时写文件算在 XML/VM 里
+        READ("read"), TOKENIZE("tokenize"), PARSE("parse"), XML("xml"), VM("vm"), WRITE("write"), STREAM("stream");
+
+        public final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    @Name("jack.CompilePhase")
+    @Label("Compile Phase")
+    @Category("Jack Compiler")
+    @StackTrace(false)
+    public static class PhaseEvent extends Event {
+        @Label("File")
+        public String file;
+        @Label("Phase")
+        public String phase;
+    }
+
+    @Name("jack.CompileFile")
+    @Label("Compile File")
+    @Category("Jack Compiler")
+    @StackTrace(false)
+    public static class FileEvent extends Event {
+        @Label("File")
+        public String file;
+        @Label("From Cache")
+        public boolean cached;
+        @Label("Tokens")
+        public long tokens;
+        @Label("Lines")
+        public long lines;
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytesRead;
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytesWritten;
+        @Label("VM Instructions")
+        public long vmInstructions;
+    }
+
+    //一个文件的统计;每个文件只在一个线程上编译,分配的字节数按当前线程统计
+    public static class FileStats {
+        public final String file;
+        //collect 为 false 时只发 JFR 事件,不计时也不统计分配
+        private final boolean collect;
+        public final long[] nanos = new long[Phase.values().length];
+        public final long[] allocated = new long[Phase.values().length];
+        public boolean cached;
+        //--stream 时没有 token 数,为 -1;从缓存取出时两者都是 -1
+        public long tokens = -1;
+        public long lines = -1;
+        public long bytesRead;
+        public long bytesWritten;
+        public long vmInstructions;
+
+        private final FileEvent fileEvent = new FileEvent();
+        private PhaseEvent phaseEvent;
+        private Phase phase;
+        private long phaseStart;
+        private long allocStart;
+
+        public FileStats(String file, boolean collect) {
+            this.file = file;
+            this.collect = collect;
+            fileEvent.begin();
+        }
+
+        public void begin(Phase phase) {
+            this.phase = phase;
+            phaseEvent = new PhaseEvent();
+            phaseEvent.begin();
+            if (collect) {
+                allocStart = allocatedBytes();
+                phaseStart = System.nanoTime();
+            }
+        }
+
+        public void end() {
+            if (collect) {
+                nanos[phase.ordinal()] += System.nanoTime() - phaseStart;
+                allocated[phase.ordinal()] += allocatedBytes() - allocStart;
+            }
+            phaseEvent.end();
+            if (phaseEvent.shouldCommit()) {
+                phaseEvent.file = file;
+                phaseEvent.phase = phase.label;
+                phaseEvent.commit();
+            }
+        }
+
+        //编译结束(成功或失败)时调用,发出 jack.CompileFile 事件
+        public void finish() {
+            fileEvent.end();
+            if (fileEvent.shouldCommit()) {
+                fileEvent.file = file;
+                fileEvent.cached = cached;
+                fileEvent.tokens = tokens;
+                fileEvent.lines = lines;
+                fileEvent.bytesRead = bytesRead;
+                fileEvent.bytesWritten = bytesWritten;
+                fileEvent.vmInstructions = vmInstructions;
+                fileEvent.commit();
+            }
+        }
+
+        long totalNanos() {
+            long total = 0;
+            for (long n : nanos)
+                total += n;
+            return total;
+        }
+
+        long totalAllocated() {
+            long total = 0;
+            for (long n : allocated)
+                total += n;
+            return total;
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final boolean ndjson;
+    private final List<FileStats> files = new ArrayList<>();
+
+    public CompileStats(boolean ndjson) {
+        this.ndjson = ndjson;
+    }
+
+    public synchronized void add(FileStats file) {
+        files.add(file);
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    //按文件名排序,和 -j 的线程调度无关;报告之后清空,--watch 时每一批只报告这一批的文件
+    public synchronized String report() {
+        files.sort((a, b) -> a.file.compareTo(b.file));
+        FileStats total = new FileStats("total", true);
+        total.tokens = 0;
+        total.lines = 0;
+        for (FileStats file : files) {
+            for (int i = 0; i < total.nanos.length; i++) {
+                total.nanos[i] += file.nanos[i];
+                total.allocated[i] += file.allocated[i];
+            }
+            total.tokens += file.tokens >= 0 ? file.tokens : 0;
+            total.lines += file.lines >= 0 ? file.lines : 0;
+            total.bytesRead += file.bytesRead;
+            total.bytesWritten += file.bytesWritten;
+            total.vmInstructions += file.vmInstructions;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (ndjson) {
+            for (FileStats file : files)
+                sb.append(json(file)).append('\n');
+            sb.append(json(total));
+        } else {
+            sb.append(String.format("%-24s", "file"));
+            for (Phase phase : Phase.values())
+                sb.append(String.format(" %9s", phase.label + " ms"));
+            sb.append(String.format(" %9s %9s %8s %10s %10s %9s %10s%n",
+                    "total ms", "tokens", "lines", "bytes in", "bytes out", "vm instr", "alloc KB"));
+            for (FileStats file : files)
+                row(sb, file);
+            row(sb, total);
+        }
+        files.clear();
+        return sb.toString().stripTrailing();
+    }
+
+    private static void row(StringBuilder sb, FileStats file) {
+        sb.append(String.format("%-24s", file.file + (file.cached ? " (cached)" : "")));
+        for (long n : file.nanos)
+            sb.append(String.format(Locale.ROOT, " %9.3f", n / 1e6));
+        sb.append(String.format(Locale.ROOT, " %9.3f %9s %8s %10d %10d %9d %10d%n", file.totalNanos() / 1e6,
+                file.tokens < 0 ? "-" : String.valueOf(file.tokens), file.lines < 0 ? "-" : String.valueOf(file.lines),
+                file.bytesRead, file.bytesWritten, file.vmInstructions, file.totalAllocated() / 1024));
+    }
+
+    private static String json(FileStats file) {
+        StringBuilder sb = new StringBuilder("{\"file\":\"").append(file.file.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        sb.append(",\"cached\":").append(file.cached).append(",\"phases\":{");
+        boolean first = true;
+        for (Phase phase : Phase.values()) {
+            if (file.nanos[phase.ordinal()] == 0)
+                continue;
+            sb.append(first ? "" : ",").append('"').append(phase.label).append("\":{");
+            sb.append(String.format(Locale.ROOT, "\"ms\":%.4f", file.nanos[phase.ordinal()] / 1e6));
+            sb.append(",\"allocBytes\":").append(file.allocated[phase.ordinal()]).append('}');
+            first = false;
+        }
+        sb.append("},\"totalMs\":").append(String.format(Locale.ROOT, "%.4f", file.totalNanos() / 1e6));
+        sb.append(",\"tokens\":").append(file.tokens).append(",\"lines\":").append(file.lines);
+        sb.append(",\"bytesRead\":").append(file.bytesRead).append(",\"bytesWritten\":").append(file.bytesWritten);
+        sb.append(",\"vmInstructions\":").append(file.vmInstructions);
+        sb.append(",\"allocBytes\":").append(file.totalAllocated()).append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+//--watch: 第一次编译完以后用 WatchService 监视源文件所在的目录,保存后只重新编译改动过的 .jack,JVM 和 JIT 一直是热的
+//一次保存往往产生好几个事件(截断、写入、改名),收到第一个事件后等到连续 DEBOUNCE_MILLIS 毫秒没有新事件再一起编译
+//新建的文件直接编译,删除的文件连同输出一起删掉;输出先写临时文件再改名(见 Main.compileFile),不会读到写了一半的 .vm
+public class CompileWatcher {
+    public static final long DEBOUNCE_MILLIS = 20;
+    //一直有事件时最多等这么久就开始编译
+    public static final long MAX_DELAY_MILLIS = 500;
+
+    private final Path dir;
+    //只监视一个文件时是它的文件名,监视整个目录时为 null
+    private final String only;
+    private final Main.Options options;
+
+    public CompileWatcher(File file, Main.Options options) {
+        File absolute = file.getAbsoluteFile();
+        this.dir = (absolute.isDirectory() ? absolute : absolute.getParentFile()).toPath();
+        this.only = absolute.isDirectory() ? null : absolute.getName();
+        this.options = options;
+    }
+
+    //一直运行到线程被中断(返回 0)或者目录不能再监视(返回 1)
+    public int watch() throws IOException {
+        try (WatchService service = dir.getFileSystem().newWatchService()) {
+            dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            options.out.println("watching " + dir + " for changes");
+            while (true) {
+                WatchKey key = service.take();
+                long first = System.nanoTime();
+                long deadline = first + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS);
+                Set<Path> changed = new TreeSet<>();
+                boolean overflow = false;
+                while (key != null) {
+                    overflow |= collect(key, changed);
+                    if (!key.reset()) {
+                        options.out.println(dir + " is no longer accessible, stop watching");
+                        return 1;
+                    }
+                    long wait = Math.min(TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS), deadline - System.nanoTime());
+                    key = wait > 0 ? service.poll(wait, TimeUnit.NANOSECONDS) : null;
+                }
+                //事件太多被丢掉了,不知道改了哪些文件,只能全部重新编译
+                if (overflow)
+                    rescan(changed);
+                //只有 .jack 以外的文件变了,例如刚写出的输出文件
+                if (changed.isEmpty())
+                    continue;
+                try {
+                    rebuild(changed, first);
+                } catch (IOException | RuntimeException e) {
+                    options.out.println("watch: " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    //返回 true 表示有事件溢出
+    private boolean collect(WatchKey key, Set<Path> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            String name = event.context().toString();
+            if (only == null ? name.endsWith(".jack") : name.equals(only))
+                changed.add(dir.resolve(name));
+        }
+        return overflow;
+    }
+
+    private void rescan(Set<Path> changed) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, only == null ? "*.jack" : only)) {
+            for (Path p : stream)
+                changed.add(p);
+        }
+    }
+
+    private void rebuild(Set<Path> changed, long first) throws IOException {
+        List<File> compileFiles = new ArrayList<>();
+        for (Path path : changed) {
+            if (Files.isRegularFile(path)) {
+                compileFiles.add(path.toFile());
+                continue;
+            }
+            for (String suffix : options.suffixes())
+                Files.deleteIfExists(path.resolveSibling(path.getFileName() + suffix));
+            if (options.index != null)
+                options.index.remove(path.toFile().getAbsolutePath());
+            options.out.println(path.getFileName() + " deleted, output removed");
+        }
+        if (compileFiles.isEmpty()) {
+            if (options.index != null)
+                options.index.save();
+            Main.writeAsmImage(options);
+            return;
+        }
+        long start = System.nanoTime();
+        int status = Main.compile(compileFiles, options);
+        long end = System.nanoTime();
+        StringBuilder names = new StringBuilder();
+        for (File f : compileFiles)
+            names.append(names.length() == 0 ? "" : ", ").append(f.getName());
+        options.out.println(String.format("%s %s in %.1f ms (%.1f ms after the first change)", names,
+                status == 0 ? "compiled" : "failed", (end - start) / 1e6, (end - first) / 1e6));
+    }
+}
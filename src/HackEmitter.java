@@ -0,0 +1,772 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+//--emit=asm: 把 CompilationEngine 发出的 vm 指令流直接翻译成 Hack 汇编,不用先写成 .vm 文本再由 vm 翻译器读回来
+//- 栈顶缓存在 D 寄存器里: push 只把值读进 D,紧接着的运算、pop、if-goto 直接用 D;
+//  label/goto/call 之前才把 D 写回栈,所以每个 label 处整个栈都在内存里
+//- push constant 先不读进 D,后面是 add/sub/and/or/比较时直接用 A 做操作数(@k D=D+A),pop 0/1/-1 时直接写 M,neg/not 直接折叠
+//- 比较(eq/gt/lt)只算出 D,D 的符号就是比较的结果(eq 是 x-y;gt/lt 在 x、y 符号相同时才相减,不同时由 x 的符号决定,
+//  x-y 超出 16 位时也不会算错),后面跟着 (not) if-goto 时合成一条条件跳转,其它情况才生成 -1/0
+//- 所有调用点共用 $CALL/$RETURN 两段代码,调用点只设置被调函数、参数个数和返回地址;返回值放在 D 里带回调用点
+//同时统计生成的指令数(words)和每条 vm 指令各执行一次的周期数(条件跳转按不跳转计算),以及估算的教科书式逐条翻译的对应数字
+//(每种 vm 指令按课本翻译的典型指令数计,不是真的翻译出来的)
+public class HackEmitter extends VmEmitter {
+    public static final String CALL = "$CALL";
+    public static final String RETURN = "$RETURN";
+
+    //D = 返回地址,R13 = 被调函数,R14 = 参数个数: 保存调用者的 LCL/ARG/THIS/THAT,ARG = SP - 参数个数 - 5,LCL = SP
+    private static final String[] CALL_ROUTINE = {
+            "@SP", "A=M", "M=D",
+            "@LCL", "D=M", "@SP", "AM=M+1", "M=D",
+            "@ARG", "D=M", "@SP", "AM=M+1", "M=D",
+            "@THIS", "D=M", "@SP", "AM=M+1", "M=D",
+            "@THAT", "D=M", "@SP", "AM=M+1", "M=D",
+            "@SP", "MD=M+1",
+            "@LCL", "M=D",
+            "@R14", "D=D-M", "@5", "D=D-A", "@ARG", "M=D",
+            "@R13", "A=M", "0;JMP"};
+    //D = 返回值: 恢复调用者的帧,SP 指向原来的 argument 0,返回值留在 D 里作为缓存的栈顶
+    private static final String[] RETURN_ROUTINE = {
+            "@R13", "M=D",
+            "@LCL", "D=M", "@5", "A=D-A", "D=M", "@R14", "M=D",
+            "@ARG", "D=M", "@SP", "M=D",
+            "@LCL", "AM=M-1", "D=M", "@THAT", "M=D",
+            "@LCL", "AM=M-1", "D=M", "@THIS", "M=D",
+            "@LCL", "AM=M-1", "D=M", "@ARG", "M=D",
+            "@LCL", "A=M-1", "D=M", "@LCL", "M=D",
+            "@R13", "D=M",
+            "@R14", "A=M", "0;JMP"};
+    //超过这个下标时 local/argument/this/that 的地址用 D 计算,否则用 A=A+1 一步步数过去
+    private static final int MAX_STEPS = 8;
+    private static final byte[] LINE_SEPARATOR = encode(System.lineSeparator());
+
+    private final WritableByteChannel channel;
+    //同时输出 vm 时把指令原样转给它,没有时为 null
+    private final VmEmitter vm;
+    private byte[] buffer = new byte[1 << 16];
+    private int count = 0;
+
+    private String className;
+    //当前函数的完整名字,vm 的 label 和生成的标签都以它开头
+    private String function;
+    private int labels = 0;
+    //D 中是栈顶(还没写回栈)
+    private boolean cached;
+    //栈顶是还没有读进 D 的常量
+    private boolean pendingConstant;
+    private int constant;
+    //栈顶是还没有生成的比较结果,D 的符号和 x-y 的真实符号相同;negated 表示后面跟过 not
+    private Command compare;
+    private boolean negated;
+    //正在生成的指令只在跳转之后执行,不计入周期数
+    private boolean branch;
+
+    private int instructions = 0;
+    private long words = 0;
+    private long cycles = 0;
+    private long plainWords = 0;
+    private long plainCycles = 0;
+
+    //结果保存在内存中
+    public HackEmitter() {
+        this(null, null);
+    }
+
+    public HackEmitter(WritableByteChannel channel, VmEmitter vm) {
+        super(null, 0);
+        this.channel = channel;
+        this.vm = vm;
+    }
+
+    @Override
+    public void push(Segment segment, int index) {
+        if (vm != null)
+            vm.push(segment, index);
+        instructions++;
+        plain(segment == Segment.CONSTANT || segment == Segment.STATIC || segment == Segment.TEMP || segment == Segment.POINTER ? 7 : 10);
+        if (segment == Segment.CONSTANT) {
+            settleCompare();
+            settleConstant();
+            pendingConstant = true;
+            constant = index;
+            return;
+        }
+        spill();
+        loadD(segment, index);
+        cached = true;
+    }
+
+    @Override
+    public void pop(Segment segment, int index) {
+        if (vm != null)
+            vm.pop(segment, index);
+        instructions++;
+        plain(segment == Segment.STATIC || segment == Segment.TEMP || segment == Segment.POINTER ? 5 : 12);
+        if (segment == Segment.CONSTANT)
+            throw new RuntimeException("pop constant " + index);
+        //0/1/-1 直接写进 M,D 中缓存的值不受影响
+        if (pendingConstant && (short) constant >= -1 && (short) constant <= 1 && address(segment, index)) {
+            emit((short) constant == 0 ? "M=0" : (short) constant == 1 ? "M=1" : "M=-1");
+            pendingConstant = false;
+            return;
+        }
+        popD();
+        storeD(segment, index);
+        cached = false;
+    }
+
+    @Override
+    public void arithmetic(Command command) {
+        if (vm != null)
+            vm.arithmetic(command);
+        instructions++;
+        switch (command) {
+            case NEG:
+            case NOT:
+                plain(3);
+                if (command == Command.NOT && compare != null) {
+                    negated = !negated;
+                    return;
+                }
+                if (pendingConstant) {
+                    constant = command == Command.NEG ? (short) -constant : (short) ~constant;
+                    return;
+                }
+                popD();
+                emit(command == Command.NEG ? "D=-D" : "D=!D");
+                cached = true;
+                return;
+            case EQ:
+            case GT:
+            case LT:
+                plain(15, 12);
+                //x 在 D 中,和常量 y 比较
+                if (pendingConstant && compareConstant(command)) {
+                    compare = command;
+                    negated = false;
+                    cached = false;
+                    return;
+                }
+                popD();
+                if (command == Command.EQ) {
+                    at("SP");
+                    emit("AM=M-1");
+                    emit("D=M-D");
+                } else
+                    compareSigned();
+                compare = command;
+                negated = false;
+                cached = false;
+                return;
+            default:
+                plain(5);
+                if (pendingConstant && constantOperand(command))
+                    return;
+                popD();
+                at("SP");
+                emit("AM=M-1");
+                emit(command == Command.ADD ? "D=D+M" : command == Command.SUB ? "D=M-D" : command == Command.AND ? "D=D&M" : "D=D|M");
+                cached = true;
+        }
+    }
+
+    @Override
+    public void label(String prefix, int number) {
+        if (vm != null)
+            vm.label(prefix, number);
+        instructions++;
+        spill();
+        define(scoped(prefix, number));
+    }
+
+    @Override
+    public void gotoLabel(String prefix, int number) {
+        if (vm != null)
+            vm.gotoLabel(prefix, number);
+        instructions++;
+        plain(2);
+        spill();
+        at(scoped(prefix, number));
+        emit("0;JMP");
+    }
+
+    @Override
+    public void ifGoto(String prefix, int number) {
+        if (vm != null)
+            vm.ifGoto(prefix, number);
+        instructions++;
+        plain(5);
+        String target = scoped(prefix, number);
+        if (compare != null) {
+            at(target);
+            emit("D;" + jump(compare, negated));
+            compare = null;
+            return;
+        }
+        if (pendingConstant) {
+            pendingConstant = false;
+            if (constant != 0) {
+                spill();
+                at(target);
+                emit("0;JMP");
+            }
+            return;
+        }
+        popD();
+        at(target);
+        emit("D;JNE");
+        cached = false;
+    }
+
+    @Override
+    public void function(String className, String name, int nLocals) {
+        if (vm != null)
+            vm.function(className, name, nLocals);
+        instructions++;
+        plain(7 * nLocals);
+        this.className = className;
+        function = className + "." + name;
+        cached = false;
+        pendingConstant = false;
+        compare = null;
+        define(function);
+        if (nLocals == 1) {
+            at("SP");
+            emit("AM=M+1");
+            emit("A=A-1");
+            emit("M=0");
+        } else if (nLocals > 1) {
+            at("SP");
+            emit("A=M");
+            for (int i = 0; i < nLocals; i++) {
+                emit("M=0");
+                emit("A=A+1");
+            }
+            emit("D=A");
+            at("SP");
+            emit("M=D");
+        }
+    }
+
+    @Override
+    public void call(String className, String name, int nArgs) {
+        if (vm != null)
+            vm.call(className, name, nArgs);
+        instructions++;
+        plain(49);
+        spill();
+        callSite(className + "." + name, nArgs);
+        cached = true;
+    }
+
+    @Override
+    public void ret() {
+        if (vm != null)
+            vm.ret();
+        instructions++;
+        plain(42);
+        popD();
+        at(RETURN);
+        emit("0;JMP");
+        cycles += RETURN_ROUTINE.length;
+        cached = false;
+    }
+
+    @Override
+    public void flush() {
+        if (vm != null)
+            vm.flush();
+        if (channel == null || count == 0)
+            return;
+        try {
+            flushTo(channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (vm != null)
+            vm.reset();
+        count = 0;
+        labels = 0;
+        cached = false;
+        pendingConstant = false;
+        compare = null;
+        instructions = 0;
+        words = cycles = plainWords = plainCycles = 0;
+    }
+
+    //收到的 vm 指令数
+    @Override
+    public int instructions() {
+        return instructions;
+    }
+
+    public long words() {
+        return words;
+    }
+
+    public long cycles() {
+        return cycles;
+    }
+
+    public long plainWords() {
+        return plainWords;
+    }
+
+    public long plainCycles() {
+        return plainCycles;
+    }
+
+    //$CALL 和 $RETURN 的指令数,整个程序只有一份
+    public static int runtimeWords() {
+        return CALL_ROUTINE.length + RETURN_ROUTINE.length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    //把各个类的 .asm 接在启动代码和 $CALL/$RETURN 后面,合成一个可以直接汇编的程序;entry 是第一个调用的函数
+    public static void writeImage(Path image, List<Path> fragments, String entry) throws IOException {
+        HackEmitter boot = new HackEmitter();
+        boot.function = "$boot";
+        boot.at(256);
+        boot.emit("D=A");
+        boot.at("SP");
+        boot.emit("M=D");
+        boot.callSite(entry, 0);
+        boot.define("$halt");
+        boot.at("$halt");
+        boot.emit("0;JMP");
+        boot.routine(CALL, CALL_ROUTINE);
+        boot.routine(RETURN, RETURN_ROUTINE);
+        Path temp = CompileCache.tempFile(image);
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                boot.flushTo(out);
+                for (Path fragment : fragments) {
+                    try (FileChannel in = FileChannel.open(fragment)) {
+                        long position = 0;
+                        while (position < in.size())
+                            position += in.transferTo(position, in.size() - position, out);
+                    }
+                }
+            }
+            Files.move(temp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void flushTo(WritableByteChannel out) throws IOException {
+        ByteBuffer view = ByteBuffer.wrap(buffer, 0, count);
+        while (view.hasRemaining())
+            out.write(view);
+        count = 0;
+    }
+
+    private void routine(String name, String[] body) {
+        define(name);
+        for (String instruction : body)
+            emit(instruction);
+    }
+
+    //调用点: 参数个数放进 R14,被调函数放进 R13,D = 返回地址,跳到 $CALL
+    private void callSite(String callee, int nArgs) {
+        if (nArgs <= 1) {
+            at("R14");
+            emit(nArgs == 0 ? "M=0" : "M=1");
+        } else {
+            at(nArgs);
+            emit("D=A");
+            at("R14");
+            emit("M=D");
+        }
+        at(callee);
+        emit("D=A");
+        at("R13");
+        emit("M=D");
+        String returnAddress = function + "$ret." + labels++;
+        at(returnAddress);
+        emit("D=A");
+        at(CALL);
+        emit("0;JMP");
+        cycles += CALL_ROUTINE.length;
+        define(returnAddress);
+    }
+
+    //把栈顶(不管是比较结果、常量还是已经在 D 中)放进 D,这之后 D 就是缓存的栈顶
+    private void popD() {
+        settleCompare();
+        settleConstant();
+        if (!cached) {
+            at("SP");
+            emit("AM=M-1");
+            emit("D=M");
+        }
+        cached = true;
+    }
+
+    //栈顶写回内存,D 空出来
+    private void spill() {
+        settleCompare();
+        settleConstant();
+        if (cached) {
+            at("SP");
+            emit("M=M+1");
+            emit("A=M-1");
+            emit("M=D");
+            cached = false;
+        }
+    }
+
+    //待定的比较结果生成 -1/0 放进 D
+    private void settleCompare() {
+        if (compare == null)
+            return;
+        String isTrue = function + "$cmp." + labels++;
+        String end = function + "$cmp." + labels++;
+        at(isTrue);
+        emit("D;" + jump(compare, negated));
+        emit("D=0");
+        at(end);
+        emit("0;JMP");
+        define(isTrue);
+        emitBranch("D=-1");
+        define(end);
+        compare = null;
+        cached = true;
+    }
+
+    //待定的常量读进 D,原来缓存在 D 中的栈顶先写回内存
+    private void settleConstant() {
+        if (!pendingConstant)
+            return;
+        pendingConstant = false;
+        if (cached) {
+            at("SP");
+            emit("M=M+1");
+            emit("A=M-1");
+            emit("M=D");
+        }
+        short value = (short) constant;
+        if (value >= -1 && value <= 1)
+            emit(value == 0 ? "D=0" : value == 1 ? "D=1" : "D=-1");
+        else if (value > 0) {
+            at(value);
+            emit("D=A");
+        } else if (value == Short.MIN_VALUE) {
+            at(Short.MAX_VALUE);
+            emit("D=!A");
+        } else {
+            at(-value);
+            emit("D=-A");
+        }
+        cached = true;
+    }
+
+    //x op 常量: x 放进 D 以后用 A 做另一个操作数;常量放不进 A 时返回 false,由调用方按一般情况处理
+    private boolean constantOperand(Command command) {
+        short value = (short) constant;
+        if (command == Command.SUB && value != Short.MIN_VALUE) {
+            command = Command.ADD;
+            value = (short) -value;
+        }
+        if (value < 0 && command == Command.ADD && value != Short.MIN_VALUE) {
+            command = Command.SUB;
+            value = (short) -value;
+        }
+        if (value < 0)
+            return false;
+        pendingConstant = false;
+        popD();
+        if ((command == Command.ADD || command == Command.SUB) && value <= 1) {
+            if (value == 1)
+                emit(command == Command.ADD ? "D=D+1" : "D=D-1");
+            return true;
+        }
+        at(value);
+        emit(command == Command.ADD ? "D=D+A" : command == Command.SUB ? "D=D-A" : command == Command.AND ? "D=D&A" : "D=D|A");
+        return true;
+    }
+
+    //比较栈中的 x 和 D 中的 y,D 的符号和 x-y 的真实符号相同:
+    //x、y 符号相同时 x-y 不会溢出,直接相减;不同时 x >= 0 > y 得 1,x < 0 <= y 得 -1
+    private void compareSigned() {
+        String xNegative = function + "$cmp." + labels++;
+        String sameSign = function + "$cmp." + labels++;
+        String end = function + "$cmp." + labels++;
+        at("R13");
+        emit("M=D");
+        at("SP");
+        emit("AM=M-1");
+        emit("D=M");
+        at(xNegative);
+        emit("D;JLT");
+        at("R13");
+        emit("D=M");
+        at(sameSign);
+        emit("D;JGE");
+        emit("D=1");
+        at(end);
+        emit("0;JMP");
+        branch = true;
+        define(xNegative);
+        at("R13");
+        emit("D=M");
+        at(sameSign);
+        emit("D;JLT");
+        emit("D=-1");
+        at(end);
+        emit("0;JMP");
+        define(sameSign);
+        //x 出栈以后还留在 SP 指向的位置
+        at("SP");
+        emit("A=M");
+        emit("D=M");
+        at("R13");
+        emit("D=D-M");
+        branch = false;
+        define(end);
+    }
+
+    //比较 D 中的 x 和常量 y,D 的符号和 x-y 的真实符号相同;y 是 -32768 时返回 false,由调用方按一般情况处理
+    //y > 0 时 x < 0 就是 x < y,D 中的 x 已经是负数;y < 0 时 x >= 0 就是 x > y,D 设成 1;其余情况 x-y 不会溢出
+    private boolean compareConstant(Command command) {
+        short value = (short) constant;
+        if (value == Short.MIN_VALUE)
+            return false;
+        pendingConstant = false;
+        popD();
+        if (value == 0)
+            return true;
+        String skip = command == Command.EQ ? null : function + "$cmp." + labels++;
+        String end = null;
+        if (skip != null && value > 0) {
+            at(skip);
+            emit("D;JLT");
+        } else if (skip != null) {
+            end = function + "$cmp." + labels++;
+            at(skip);
+            emit("D;JGE");
+        }
+        if (value == 1 || value == -1)
+            emit(value == 1 ? "D=D-1" : "D=D+1");
+        else {
+            at(Math.abs(value));
+            emit(value > 0 ? "D=D-A" : "D=D+A");
+        }
+        if (end != null) {
+            at(end);
+            emit("0;JMP");
+            define(skip);
+            emitBranch("D=1");
+            define(end);
+        } else if (skip != null)
+            define(skip);
+        return true;
+    }
+
+    private static String jump(Command compare, boolean negated) {
+        switch (compare) {
+            case EQ:
+                return negated ? "JNE" : "JEQ";
+            case GT:
+                return negated ? "JLE" : "JGT";
+            default:
+                return negated ? "JGE" : "JLT";
+        }
+    }
+
+    private void loadD(Segment segment, int index) {
+        switch (segment) {
+            case STATIC:
+            case TEMP:
+            case POINTER:
+                at(fixed(segment, index));
+                emit("D=M");
+                return;
+            default:
+                if (index <= 1) {
+                    at(base(segment));
+                    emit(index == 0 ? "A=M" : "A=M+1");
+                } else {
+                    at(index);
+                    emit("D=A");
+                    at(base(segment));
+                    emit("A=D+M");
+                }
+                emit("D=M");
+        }
+    }
+
+    private void storeD(Segment segment, int index) {
+        if (address(segment, index)) {
+            emit("M=D");
+            return;
+        }
+        //D 中的值先放进 R13,再算出地址 a: R13 = v + a,D = v,A = a
+        at("R13");
+        emit("M=D");
+        at(base(segment));
+        emit("D=M");
+        at(index);
+        emit("D=D+A");
+        at("R13");
+        emit("M=D+M");
+        emit("D=M-D");
+        emit("A=M-D");
+        emit("M=D");
+    }
+
+    //不用 D 把 A 设成 segment index 的地址;下标太大时返回 false
+    private boolean address(Segment segment, int index) {
+        switch (segment) {
+            case STATIC:
+            case TEMP:
+            case POINTER:
+                at(fixed(segment, index));
+                return true;
+            case CONSTANT:
+                return false;
+            default:
+                if (index > MAX_STEPS)
+                    return false;
+                at(base(segment));
+                emit(index == 0 ? "A=M" : "A=M+1");
+                for (int i = 1; i < index; i++)
+                    emit("A=A+1");
+                return true;
+        }
+    }
+
+    private String fixed(Segment segment, int index) {
+        switch (segment) {
+            case STATIC:
+                return className + "." + index;
+            case TEMP:
+                return "R" + (5 + index);
+            default:
+                return index == 0 ? "THIS" : "THAT";
+        }
+    }
+
+    private static String base(Segment segment) {
+        switch (segment) {
+            case LOCAL:
+                return "LCL";
+            case ARGUMENT:
+                return "ARG";
+            case THIS:
+                return "THIS";
+            default:
+                return "THAT";
+        }
+    }
+
+    private String scoped(String prefix, int number) {
+        return function + "$" + (number >= 0 ? prefix + number : prefix);
+    }
+
+    //估算的教科书式逐条翻译的指令数和周期数: 每种 vm 指令按固定的典型值计,只用来对比
+    private void plain(int words) {
+        plain(words, words);
+    }
+
+    private void plain(int words, int cycles) {
+        plainWords += words;
+        plainCycles += cycles;
+    }
+
+    private void at(String symbol) {
+        write('@');
+        write(symbol);
+        endInstruction();
+    }
+
+    private void at(int value) {
+        write('@');
+        write(Integer.toString(value));
+        endInstruction();
+    }
+
+    private void emit(String instruction) {
+        write(instruction);
+        endInstruction();
+    }
+
+    //只在跳转之后执行的指令,不计入周期数
+    private void emitBranch(String instruction) {
+        branch = true;
+        emit(instruction);
+        branch = false;
+    }
+
+    private void define(String symbol) {
+        write('(');
+        write(symbol);
+        write(')');
+        write(LINE_SEPARATOR);
+    }
+
+    private void endInstruction() {
+        write(LINE_SEPARATOR);
+        words++;
+        if (!branch)
+            cycles++;
+    }
+
+    private void ensure(int length) {
+        if (count + length <= buffer.length)
+            return;
+        if (channel != null) {
+            try {
+                flushTo(channel);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (length <= buffer.length)
+                return;
+        }
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+    }
+
+    private void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void write(char c) {
+        ensure(1);
+        buffer[count++] = (byte) c;
+    }
+
+    //符号和指令几乎都是 ASCII,逐个字符写入;非 ASCII 字符按 UTF-8 编码
+    private void write(String text) {
+        int length = text.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                write(encode(text.substring(i)));
+                return;
+            }
+            buffer[count++] = (byte) c;
+        }
+    }
+}
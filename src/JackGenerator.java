@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+//生成合法的 jack 源文件,用来做性能测试;同样的参数和 seed 总是生成同样的内容
+//java JackGenerator [--classes N] [--subroutines N] [--statements N] [--depth N] [--string-length N] [--seed N] <dir>
+//生成 Gen0..GenN-1 和一个依次调用它们的 Main;depth 是每个表达式的括号嵌套层数,string-length 是字符串常量的长度
+public class JackGenerator {
+    public int classes = 4;
+    public int subroutines = 8;
+    //每个 subroutine 的语句数(if/while 里的语句也算)
+    public int statements = 32;
+    public int depth = 4;
+    public int stringLength = 16;
+    public long seed = 1;
+
+    //可以调整规模的参数,名字和命令行选项相同
+    public static final String[] PARAMETERS = {"classes", "subroutines", "statements", "depth", "string-length"};
+
+    private static final String[] OPS = {"+", "-", "&", "|", "<", ">", "=", "*", "/"};
+    private static final String[] LOCALS = {"x", "y", "z"};
+
+    private Random random;
+    private StringBuilder sb;
+
+    public static void main(String[] args) throws IOException {
+        JackGenerator generator = new JackGenerator();
+        String dir = null;
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                dir = args[i];
+            else if (i + 1 == args.length || !generator.set(args[i].substring(2), Long.parseLong(args[++i])))
+                throw new RuntimeException("bad option " + args[i]);
+        }
+        if (dir == null)
+            throw new RuntimeException("usage: java JackGenerator [--classes N] [--subroutines N] [--statements N] [--depth N] [--string-length N] [--seed N] <dir>");
+        Path path = Paths.get(dir);
+        Files.createDirectories(path);
+        long bytes = 0;
+        for (Map.Entry<String, String> entry : generator.generate().entrySet()) {
+            byte[] content = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            Files.write(path.resolve(entry.getKey() + ".jack"), content);
+            bytes += content.length;
+        }
+        System.out.println("generated " + (generator.classes + 1) + " classes, " + bytes + " bytes in " + path);
+    }
+
+    public int get(String name) {
+        switch (name) {
+            case "classes":
+                return classes;
+            case "subroutines":
+                return subroutines;
+            case "statements":
+                return statements;
+            case "depth":
+                return depth;
+            case "string-length":
+                return stringLength;
+        }
+        throw new RuntimeException("unknown parameter " + name);
+    }
+
+    //按名字设置参数,返回 false 表示没有这个参数
+    public boolean set(String name, long value) {
+        switch (name) {
+            case "classes":
+                classes = (int) value;
+                return true;
+            case "subroutines":
+                subroutines = (int) value;
+                return true;
+            case "statements":
+                statements = (int) value;
+                return true;
+            case "depth":
+                depth = (int) value;
+                return true;
+            case "string-length":
+                stringLength = (int) value;
+                return true;
+            case "seed":
+                seed = value;
+                return true;
+        }
+        return false;
+    }
+
+    //类名 -> 源代码,按生成顺序
+    public Map<String, String> generate() {
+        random = new Random(seed);
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (int i = 0; i < classes; i++) {
+            sb = new StringBuilder();
+            generateClass(i);
+            sources.put("Gen" + i, sb.toString());
+        }
+        sb = new StringBuilder("class Main {\n    function void main() {\n");
+        for (int i = 0; i < classes; i++)
+            sb.append("        do Gen").append(i).append(".f0(1, 2);\n");
+        sb.append("        return;\n    }\n}\n");
+        sources.put("Main", sb.toString());
+        return sources;
+    }
+
+    private void generateClass(int index) {
+        sb.append("class Gen").append(index).append(" {\n");
+        sb.append("    static int count;\n    field int a, b;\n\n");
+        for (int i = 0; i < subroutines; i++) {
+            sb.append("    function int f").append(i).append("(int p, int q) {\n");
+            sb.append("        var int x, y, z;\n        var Array arr;\n        var String s;\n");
+            sb.append("        let arr = Array.new(16);\n");
+            int[] remaining = {statements};
+            while (remaining[0] > 0)
+                statement(2, remaining);
+            sb.append("        return x;\n    }\n\n");
+        }
+        sb.append("}\n");
+    }
+
+    private void statement(int indent, int[] remaining) {
+        remaining[0]--;
+        String pad = "    ".repeat(indent);
+        switch (random.nextInt(indent < 4 ? 7 : 5)) {
+            case 0:
+                sb.append(pad).append("let ").append(local()).append(" = ");
+                expression(depth);
+                sb.append(";\n");
+                break;
+            case 1:
+                sb.append(pad).append("let ").append(local()).append(" = ");
+                leftNested(depth);
+                sb.append(";\n");
+                break;
+            case 2:
+                sb.append(pad).append("let arr[");
+                expression(depth);
+                sb.append("] = ");
+                expression(depth);
+                sb.append(";\n");
+                break;
+            case 3:
+                sb.append(pad).append("let s = ");
+                string();
+                sb.append(";\n").append(pad).append("do Output.printString(s);\n");
+                break;
+            case 4:
+                sb.append(pad).append("let count = count + Math.max(");
+                expression(depth);
+                sb.append(", p);\n");
+                break;
+            case 5:
+            case 6:
+                boolean isIf = random.nextBoolean();
+                sb.append(pad).append(isIf ? "if (" : "while (");
+                expression(depth);
+                sb.append(") {\n");
+                block(indent + 1, remaining);
+                if (isIf && random.nextBoolean()) {
+                    sb.append(pad).append("} else {\n");
+                    block(indent + 1, remaining);
+                }
+                sb.append(pad).append("}\n");
+                break;
+        }
+    }
+
+    private void block(int indent, int[] remaining) {
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count && remaining[0] > 0; i++)
+            statement(indent, remaining);
+    }
+
+    //嵌套 depth 层: 每层是 (term op 下一层) / (下一层 op term) / arr[下一层] / (-下一层) / Math.min(下一层, term)
+    private void expression(int depth) {
+        if (depth <= 0) {
+            term();
+            return;
+        }
+        switch (random.nextInt(5)) {
+            case 0:
+                sb.append('(');
+                term();
+                sb.append(' ').append(OPS[random.nextInt(OPS.length)]).append(' ');
+                expression(depth - 1);
+                sb.append(')');
+                break;
+            case 1:
+                sb.append('(');
+                expression(depth - 1);
+                sb.append(' ').append(OPS[random.nextInt(OPS.length)]).append(' ');
+                term();
+                sb.append(')');
+                break;
+            case 2:
+                sb.append("arr[");
+                expression(depth - 1);
+                sb.append(']');
+                break;
+            case 3:
+                sb.append("(-");
+                expression(depth - 1);
+                sb.append(')');
+                break;
+            default:
+                sb.append("Math.min(");
+                expression(depth - 1);
+                sb.append(", ");
+                term();
+                sb.append(')');
+        }
+    }
+
+    //((((t op t) op t) op t) op t): 从左往右求值时最深的一层最先算,递归下降时每层都要先走到最里面
+    private void leftNested(int depth) {
+        for (int i = 0; i < depth; i++)
+            sb.append('(');
+        term();
+        for (int i = 0; i < depth; i++) {
+            sb.append(' ').append(OPS[random.nextInt(OPS.length)]).append(' ');
+            term();
+            sb.append(')');
+        }
+    }
+
+    private void term() {
+        switch (random.nextInt(4)) {
+            case 0:
+                sb.append(random.nextInt(1000));
+                break;
+            case 1:
+                sb.append(random.nextBoolean() ? "p" : "q");
+                break;
+            default:
+                sb.append(local());
+        }
+    }
+
+    private String local() {
+        return LOCALS[random.nextInt(LOCALS.length)];
+    }
+
+    private void string() {
+        sb.append('"');
+        for (int i = 0; i < stringLength; i++)
+            sb.append((char) ('a' + random.nextInt(26)));
+        sb.append('"');
+    }
+}
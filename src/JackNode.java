@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public abstract class JackNode {
+    //节点开始处的行号,从 1 开始;没有位置信息时为 0(目前只有语句和 term 有)
+    public int line;
+
+    static class ClassNode extends JackNode {
+        public String name;
+        public List<VarDecNode> classVarDecs = new ArrayList<>();
+        public List<SubroutineNode> subroutines = new ArrayList<>();
+    }
+
+    static class VarDecNode extends JackNode {
+        enum Kind {
+            STATIC("static"), FIELD("field"), ARGUMENT(null), LOCAL("var");
+
+            final String keyword;
+
+            Kind(String keyword) {
+                this.keyword = keyword;
+            }
+        }
+
+        public Kind kind;
+        public String type;
+        public List<String> names = new ArrayList<>();
+    }
+
+    static class SubroutineNode extends JackNode {
+        enum Kind {
+            CONSTRUCTOR("constructor"), FUNCTION("function"), METHOD("method");
+
+            final String keyword;
+
+            Kind(String keyword) {
+                this.keyword = keyword;
+            }
+
+            static Kind of(String keyword) {
+                for (Kind kind : values()) {
+                    if (kind.keyword.equals(keyword))
+                        return kind;
+                }
+                return null;
+            }
+        }
+
+        public Kind kind;
+        public String returnType;
+        public String name;
+        //每个参数一个 VarDecNode,kind 为 ARGUMENT
+        public List<VarDecNode> parameters = new ArrayList<>();
+        public List<VarDecNode> varDecs = new ArrayList<>();
+        public List<StatementNode> statements = new ArrayList<>();
+    }
+
+    static class StatementNode extends JackNode {
+        enum Kind {
+            LET("let"), IF("if"), WHILE("while"), DO("do"), RETURN("return");
+
+            final String keyword;
+
+            Kind(String keyword) {
+                this.keyword = keyword;
+            }
+        }
+
+        public Kind kind;
+        //let: 被赋值的变量名
+        public String varName;
+        //let: varName 绑定到的变量编号,见 SymbolBinder
+        public int binding = SymbolBinder.UNBOUND;
+        //let: 数组下标,非数组赋值时为 null
+        public ExpressionNode index;
+        //let: 等号右边; if/while: 条件; return: 返回值(可以为 null)
+        public ExpressionNode expression;
+        //do: 被调用的 subroutineCall(kind 为 SUBROUTINE_CALL 的 term)
+        public TermNode call;
+        public List<StatementNode> statements = new ArrayList<>();
+        //if: else 分支,没有 else 时为 null
+        public List<StatementNode> elseStatements;
+    }
+
+    static class ExpressionNode extends JackNode {
+        public List<TermNode> terms = new ArrayList<>();
+        //ops.get(i) 位于 terms.get(i) 和 terms.get(i + 1) 之间
+        public List<String> ops = new ArrayList<>();
+    }
+
+    static class TermNode extends JackNode {
+        enum Kind {
+            INTEGER_CONSTANT, STRING_CONSTANT, KEYWORD_CONSTANT, VAR_NAME, ARRAY_ENTRY, SUBROUTINE_CALL, PARENTHESIZED, UNARY_OP
+        }
+
+        public Kind kind;
+        //常量的文本(字符串不含引号)、变量名、被调用的 subroutine 名或一元运算符
+        public String value;
+        //SUBROUTINE_CALL: '.' 前面的类名或变量名,没有 '.' 时为 null
+        public String target;
+        //VAR_NAME / ARRAY_ENTRY: 变量的编号; SUBROUTINE_CALL: target 的编号,target 是类名时为 UNBOUND,见 SymbolBinder
+        public int binding = SymbolBinder.UNBOUND;
+        //ARRAY_ENTRY: 下标; PARENTHESIZED: 括号里的表达式
+        public ExpressionNode expression;
+        //UNARY_OP: 运算对象
+        public TermNode operand;
+        //SUBROUTINE_CALL: 实参
+        public List<ExpressionNode> arguments;
+    }
+}
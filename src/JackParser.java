@@ -1,398 +1,352 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
+//LL(1) 递归下降: 只看当前这一个 token 决定走哪条产生式,每个 token 只读一次,
+//解析时间和 token 数成正比,和表达式、语句嵌套多深无关;出错时报告期望什么、实际是哪个 token 以及所在的行
 public class JackParser {
-
-    public String parse(List<String> list) {
-        StringBuilder sb = new StringBuilder();
-        return writeClass(sb, 0, list);
+    private TokenBuffer tokens;
+    private int pos;
+    //流式解析时 token 由 tokenizer 按需读进 tokens,每个 subroutine 解析完清空一次;一次性解析时为 null
+    private JackTokenizer tokenizer;
+    //看过多少次 token(每次都经过 fill),用来检查解析是线性的: 应该和 token 数成正比
+    private long inspections;
+
+    public JackNode.ClassNode parse(List<String> list) {
+        tokens = list instanceof TokenBuffer ? (TokenBuffer) list : TokenBuffer.of(list, new SymbolPool());
+        pos = 0;
+        tokenizer = null;
+        return parseClass(classNode -> {
+        }, null);
     }
 
-    private String writeClass(StringBuilder sb, int pos, List<String> sourceTokens) {
-        if (pos < 0 || !sourceTokens.get(pos).equals("class"))
-            throw new RuntimeException("pos < 0 || !sourceTokens.get(pos).equals(\"class\")");
-        sb.append("<class>\n");
-        writeKeyword(sourceTokens.get(pos), sb);
-        writeIdentifier(sourceTokens.get(pos + 1), sb);
-        writeSymbol(sourceTokens.get(pos + 2), sb);
-        int startPos = pos + 3;
-        startPos = writeClassVarDec(startPos, sourceTokens, sb);
-        startPos = writeSubRountineDec(startPos, sourceTokens, sb);
-        writeSymbol(sourceTokens.get(startPos), sb);
-        sb.append("</class>\n");
-        return sb.toString();
+    //流式解析: 类头和 classVarDec 解析完后交给 classConsumer,之后每个 subroutine 一解析完就交给
+    //subroutineConsumer,内存里只保留当前这个 subroutine 的 token
+    public void parse(JackTokenizer tokenizer, Consumer<JackNode.ClassNode> classConsumer,
+                      Consumer<JackNode.SubroutineNode> subroutineConsumer) throws IOException {
+        this.tokens = new TokenBuffer(tokenizer.getPool());
+        this.pos = 0;
+        this.tokenizer = tokenizer;
+        try {
+            parseClass(classConsumer, subroutineConsumer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            this.tokenizer = null;
+        }
     }
 
-    private int writeSubRountineDec(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        while (sourceTokens.get(startPos).equals("constructor") ||
-                sourceTokens.get(startPos).equals("function") ||
-                sourceTokens.get(startPos).equals("method")) {
-            sb.append("<subroutineDec>\n");
-            for (int i = startPos; i < startPos + 3; i++) {
-                writeCommmon(sourceTokens.get(i), sb);
-            }
-            startPos = writeParmList(startPos + 3, sourceTokens, sb);
-            startPos = writeSubroutineBody(startPos, sourceTokens, sb);
-            sb.append("</subroutineDec>\n");
+    //subroutineConsumer 为 null 时 subroutine 加到 classNode.subroutines 中
+    private JackNode.ClassNode parseClass(Consumer<JackNode.ClassNode> classConsumer,
+                                          Consumer<JackNode.SubroutineNode> subroutineConsumer) {
+        JackNode.ClassNode classNode = new JackNode.ClassNode();
+        expect("class");
+        classNode.name = identifier();
+        expect('{');
+        while (isKeyword("static") || isKeyword("field"))
+            classNode.classVarDecs.add(parseVarDec(next().equals("static") ?
+                    JackNode.VarDecNode.Kind.STATIC : JackNode.VarDecNode.Kind.FIELD));
+        classConsumer.accept(classNode);
+
+        JackNode.SubroutineNode.Kind kind;
+        while (fill() && (kind = JackNode.SubroutineNode.Kind.of(tokens.get(pos))) != null) {
+            pos++;
+            JackNode.SubroutineNode subroutine = parseSubroutineDec(kind);
+            if (subroutineConsumer == null)
+                classNode.subroutines.add(subroutine);
+            else
+                subroutineConsumer.accept(subroutine);
+            release();
         }
-        return startPos;
+        expect('}');
+        if (fill())
+            throw error("end of file after class " + classNode.name);
+        return classNode;
     }
 
-    private int writeSubroutineBody(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<subroutineBody>\n");
-        writeSymbol("{", sb);
-        startPos = writeVarDec(startPos + 1, sourceTokens, sb);
-        startPos = writeStatements(startPos, sourceTokens, sb);
-        writeSymbol("}", sb);
-        sb.append("</subroutineBody>\n");
-        return startPos + 1;
-    }
+    //kind 关键字已经读过
+    private JackNode.SubroutineNode parseSubroutineDec(JackNode.SubroutineNode.Kind kind) {
+        JackNode.SubroutineNode subroutine = new JackNode.SubroutineNode();
+        subroutine.kind = kind;
+        subroutine.returnType = type(true);
+        subroutine.name = identifier();
+        expect('(');
+        if (!isSymbol(')')) {
+            do {
+                JackNode.VarDecNode parameter = new JackNode.VarDecNode();
+                parameter.kind = JackNode.VarDecNode.Kind.ARGUMENT;
+                parameter.type = type(false);
+                parameter.names.add(identifier());
+                subroutine.parameters.add(parameter);
+            } while (accept(','));
+        }
+        expect(')');
 
-    private int writeStatements(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<statements>\n");
-        while (JackTokenizer.isStatement(sourceTokens.get(startPos))) {
-            String token = sourceTokens.get(startPos);
-            if (token.equals("let"))
-                startPos = writeLetStatements(startPos, sourceTokens, sb);
-            else if (token.equals("if"))
-                startPos = writeIfStatements(startPos, sourceTokens, sb);
-            else if (token.equals("do"))
-                startPos = writeDoStatements(startPos, sourceTokens, sb);
-            else if (token.equals("return"))
-                startPos = writeReturnStatements(startPos, sourceTokens, sb);
-            else if (token.equals("while"))
-                startPos = writeWhileStatement(startPos, sourceTokens, sb);
+        expect('{');
+        while (isKeyword("var")) {
+            pos++;
+            subroutine.varDecs.add(parseVarDec(JackNode.VarDecNode.Kind.LOCAL));
         }
-        sb.append("</statements>\n");
-        return startPos;
+        parseStatements(subroutine.statements);
+        expect('}');
+        return subroutine;
     }
 
-    private int writeWhileStatement(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<whileStatement>\n");
-        writeCommmon(sourceTokens.get(startPos), sb);
-        writeCommmon(sourceTokens.get(startPos + 1), sb);
+    //static/field/var 已经读过: type name (, name)* ;
+    private JackNode.VarDecNode parseVarDec(JackNode.VarDecNode.Kind kind) {
+        JackNode.VarDecNode varDec = new JackNode.VarDecNode();
+        varDec.kind = kind;
+        varDec.type = type(false);
+        do {
+            varDec.names.add(identifier());
+        } while (accept(','));
+        expect(';');
+        return varDec;
+    }
 
-        int index = -1;
-        for (int i = startPos; i < sourceTokens.size(); i++) {
-            if (sourceTokens.get(i).equals("{")) {
-                index = i;
-                break;
+    private void parseStatements(List<JackNode.StatementNode> statements) {
+        while (fill() && tokens.isStatement(pos)) {
+            JackNode.StatementNode statement = new JackNode.StatementNode();
+            statement.line = tokens.line(pos);
+            switch (next()) {
+                case "let":
+                    parseLetStatement(statement);
+                    break;
+                case "if":
+                    parseIfStatement(statement);
+                    break;
+                case "while":
+                    parseWhileStatement(statement);
+                    break;
+                case "do":
+                    parseDoStatement(statement);
+                    break;
+                default:
+                    parseReturnStatement(statement);
             }
+            statements.add(statement);
         }
-        writeExpression(startPos + 2, index - 2, sourceTokens, sb);
-        writeCommmon(sourceTokens.get(index - 1), sb);
-        writeCommmon(sourceTokens.get(index), sb);
-        startPos = writeStatements(index + 1, sourceTokens, sb);
-        writeCommmon(sourceTokens.get(startPos), sb);
-        sb.append("</whileStatement>\n");
-
-        return startPos + 1;
     }
 
-    private int writeReturnStatements(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<returnStatement>\n");
-        int index = findIndex(";", startPos + 1, sourceTokens);
-        writeCommmon(sourceTokens.get(startPos), sb);
-        if (index > startPos + 1) {
-            writeExpression(startPos + 1, index - 1, sourceTokens, sb);
+    //let varName ([ expression ])? = expression ;
+    private void parseLetStatement(JackNode.StatementNode statement) {
+        statement.kind = JackNode.StatementNode.Kind.LET;
+        statement.varName = identifier();
+        if (accept('[')) {
+            statement.index = parseExpression();
+            expect(']');
         }
-        writeCommmon(sourceTokens.get(index), sb);
-        sb.append("</returnStatement>\n");
-        return index + 1;
+        expect('=');
+        statement.expression = parseExpression();
+        expect(';');
     }
 
-    private int writeDoStatements(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        int index = -1;
-        int endIndex = -1;
-        boolean writeCommon = true;
-        sb.append("<doStatement>\n");
-        for (int i = startPos; i < sourceTokens.size(); i++) {
-            if (writeCommon)
-                writeCommmon(sourceTokens.get(i), sb);
-            if (sourceTokens.get(i).equals("(") && index == -1) {
-                index = i;
-                writeCommon = false;
-            } else if (sourceTokens.get(i).equals(";")) {
-                endIndex = i;
-                break;
-            }
+    //if ( expression ) { statements } (else { statements })?
+    private void parseIfStatement(JackNode.StatementNode statement) {
+        statement.kind = JackNode.StatementNode.Kind.IF;
+        parseCondition(statement);
+        parseBlock(statement.statements);
+        if (isKeyword("else")) {
+            pos++;
+            statement.elseStatements = new ArrayList<>();
+            parseBlock(statement.elseStatements);
         }
-
-        writeExpressionList(index + 1, endIndex - 2, sourceTokens, sb);
-        writeCommmon(sourceTokens.get(endIndex - 1), sb);
-        writeCommmon(sourceTokens.get(endIndex), sb);
-        sb.append("</doStatement>\n");
-        return endIndex + 1;
     }
 
-    private int writeIfStatements(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<ifStatement>\n");
+    //while ( expression ) { statements }
+    private void parseWhileStatement(JackNode.StatementNode statement) {
+        statement.kind = JackNode.StatementNode.Kind.WHILE;
+        parseCondition(statement);
+        parseBlock(statement.statements);
+    }
 
-        writeCommmon(sourceTokens.get(startPos), sb);
-        writeCommmon(sourceTokens.get(startPos + 1), sb);
+    private void parseCondition(JackNode.StatementNode statement) {
+        expect('(');
+        statement.expression = parseExpression();
+        expect(')');
+    }
 
-        int index = findIndex("{", startPos + 2, sourceTokens);
-        if (index != -1) {
-            writeExpression(startPos + 2, index - 2, sourceTokens, sb);
-        } else
-            throw new RuntimeException("index==-1");
-        writeCommmon(sourceTokens.get(index - 1), sb);
-        writeCommmon(sourceTokens.get(index), sb);
-        startPos = writeStatements(index + 1, sourceTokens, sb);
-        writeCommmon(sourceTokens.get(startPos), sb);
-        startPos = startPos + 1;
-        if (sourceTokens.get(startPos).equals("else")) {
-            writeCommmon(sourceTokens.get(startPos), sb);
-            writeCommmon(sourceTokens.get(startPos + 1), sb);
-            startPos = writeStatements(startPos + 2, sourceTokens, sb);
-            writeCommmon(sourceTokens.get(startPos), sb);
-            startPos = startPos + 1;
-        }
-        sb.append("</ifStatement>\n");
-        return startPos;
+    private void parseBlock(List<JackNode.StatementNode> statements) {
+        expect('{');
+        parseStatements(statements);
+        expect('}');
     }
 
-    private int findIndex(String str, int startPos, List<String> sourceTokens) {
-        for (int i = startPos; i < sourceTokens.size(); i++) {
-            if (sourceTokens.get(i).equals(str))
-                return i;
-        }
-        return -1;
+    //do subroutineCall ;
+    private void parseDoStatement(JackNode.StatementNode statement) {
+        statement.kind = JackNode.StatementNode.Kind.DO;
+        String name = identifier();
+        statement.call = accept('.') ? parseCall(name, identifier(), statement.line) : parseCall(null, name, statement.line);
+        expect(';');
     }
 
-    private int writeLetStatements(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<letStatement>\n");
-        writeCommmon(sourceTokens.get(startPos), sb);
-        writeCommmon(sourceTokens.get(startPos + 1), sb);
+    //return expression? ;
+    private void parseReturnStatement(JackNode.StatementNode statement) {
+        statement.kind = JackNode.StatementNode.Kind.RETURN;
+        if (!isSymbol(';'))
+            statement.expression = parseExpression();
+        expect(';');
+    }
 
-        int endIndex = -1;
-        int statementEndIndex = -1;
-        if (sourceTokens.get(startPos + 2).equals("[")) {
-            int scopeCount = 1;
-            for (int i = startPos + 3; i < sourceTokens.size(); i++) {
-                if (sourceTokens.get(i).equals("["))
-                    scopeCount++;
-                else if (sourceTokens.get(i).equals("]")) {
-                    scopeCount--;
-                    if (scopeCount == 0) {
-                        endIndex = i;
-                        break;
-                    }
-                }
-            }
-            writeCommmon(sourceTokens.get(startPos + 2), sb);
-            writeExpression(startPos + 3, endIndex - 1, sourceTokens, sb);
-            writeCommmon(sourceTokens.get(endIndex), sb);
-            startPos = endIndex - 1;
+    //term (op term)*
+    private JackNode.ExpressionNode parseExpression() {
+        JackNode.ExpressionNode expression = new JackNode.ExpressionNode();
+        expression.terms.add(parseTerm());
+        while (fill() && tokens.isOp(pos)) {
+            expression.ops.add(next());
+            expression.terms.add(parseTerm());
         }
+        return expression;
+    }
 
-        for (int i = startPos + 3; i < sourceTokens.size(); i++) {
-            if (sourceTokens.get(i).equals(";")) {
-                statementEndIndex = i;
+    private JackNode.TermNode parseTerm() {
+        if (!fill())
+            throw error("a term");
+        JackNode.TermNode term = new JackNode.TermNode();
+        term.line = tokens.line(pos);
+        switch (tokens.kind(pos)) {
+            case TokenBuffer.KIND_INTEGER_CONSTANT:
+                term.kind = JackNode.TermNode.Kind.INTEGER_CONSTANT;
+                term.value = next();
                 break;
-            }
+            case TokenBuffer.KIND_STRING_CONSTANT:
+                term.kind = JackNode.TermNode.Kind.STRING_CONSTANT;
+                term.value = tokens.stringConstant(pos++);
+                break;
+            case TokenBuffer.KIND_KEYWORD:
+                if (!tokens.isKeywordConstant(pos))
+                    throw error("a term");
+                term.kind = JackNode.TermNode.Kind.KEYWORD_CONSTANT;
+                term.value = next();
+                break;
+            case TokenBuffer.KIND_IDENTIFIER:
+                //varName / varName[expression] / subroutineName(...) / (className | varName).subroutineName(...)
+                String name = next();
+                if (accept('[')) {
+                    term.kind = JackNode.TermNode.Kind.ARRAY_ENTRY;
+                    term.value = name;
+                    term.expression = parseExpression();
+                    expect(']');
+                } else if (isSymbol('('))
+                    return parseCall(null, name, term.line);
+                else if (accept('.'))
+                    return parseCall(name, identifier(), term.line);
+                else {
+                    term.kind = JackNode.TermNode.Kind.VAR_NAME;
+                    term.value = name;
+                }
+                break;
+            default:
+                if (accept('(')) {
+                    term.kind = JackNode.TermNode.Kind.PARENTHESIZED;
+                    term.expression = parseExpression();
+                    expect(')');
+                } else if (tokens.isUnaryOp(pos)) {
+                    term.kind = JackNode.TermNode.Kind.UNARY_OP;
+                    term.value = next();
+                    term.operand = parseTerm();
+                } else
+                    throw error("a term");
         }
-        writeCommmon(sourceTokens.get(startPos + 2), sb);
-        writeExpression(startPos + 3, statementEndIndex - 1, sourceTokens, sb);
-        writeCommmon(sourceTokens.get(statementEndIndex), sb);
-        sb.append("</letStatement>\n");
-        startPos = statementEndIndex + 1;
-        return startPos;
+        return term;
     }
 
-    private int writeExpression(int startPos, int endPos, List<String> sourceTokens, StringBuilder sb) {
-        int scopeCount1 = 0, scopeCount2 = 0;
-        int lastStartPos = startPos;
-        sb.append("<expression>\n");
-        for (int i = startPos; i <= endPos; i++) {
-            String token = sourceTokens.get(i);
-            if (token.equals("("))
-                scopeCount1++;
-            else if (token.equals("["))
-                scopeCount2++;
-            else if (token.equals(")")) {
-                scopeCount1--;
-            } else if (token.equals("]"))
-                scopeCount2--;
-            else if (token.length() == 1 && JackTokenizer.isOp(token.charAt(0)) && scopeCount1 == 0 && scopeCount2 == 0 && i != startPos) {
-                writeTerm(lastStartPos, i - 1, sourceTokens, sb);
-                writeCommmon(sourceTokens.get(i), sb);
-                lastStartPos = i + 1;
-            }
-
-            if (i == endPos) {
-                writeTerm(lastStartPos, i, sourceTokens, sb);
-            }
+    //subroutineName 和 '.' 前面的部分已经读过: ( expressionList )
+    private JackNode.TermNode parseCall(String target, String name, int line) {
+        JackNode.TermNode call = new JackNode.TermNode();
+        call.line = line;
+        call.kind = JackNode.TermNode.Kind.SUBROUTINE_CALL;
+        call.target = target;
+        call.value = name;
+        call.arguments = new ArrayList<>();
+        expect('(');
+        if (!isSymbol(')')) {
+            do {
+                call.arguments.add(parseExpression());
+            } while (accept(','));
         }
-        sb.append("</expression>\n");
-        startPos = endPos + 1;
-
-        return startPos;
+        expect(')');
+        return call;
     }
 
-    private int writeTerm(int startPos, int endPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<term>\n");
-        String token = sourceTokens.get(startPos);
-        if (startPos == endPos) {
-            boolean isInteger = true;
-            try {
-                Integer.parseInt(token);
-            } catch (NumberFormatException e) {
-                isInteger = false;
-//                e.printStackTrace();
-            }
-            //integer
-            if (isInteger) {
-                writeIntegerConstant(token, sb);
-            }
-            //string constant
-            else if (token.startsWith("\"") && token.endsWith("\"")) {
-//                token = token.substring(1, token.length() - 1);
-                writeStringConstant(token, sb);
-            } else if (JackTokenizer.isKeyword(token)) {//keyword
-                writeKeyword(token, sb);
-            } else {//varName
-                writeCommmon(token, sb);
-            }
-        } else if (token.length() == 1 && JackTokenizer.isUnaryOp(token.charAt(0))) {//unaryOp term
-            writeSymbol(token, sb);
-            writeTerm(startPos + 1, endPos, sourceTokens, sb);
-        } else if (sourceTokens.get(startPos).equals("(") && sourceTokens.get(endPos).equals(")")) {// '(' expression ')'
-            writeSymbol(sourceTokens.get(startPos), sb);
-            writeExpression(startPos + 1, endPos - 1, sourceTokens, sb);
-            writeSymbol(sourceTokens.get(endPos), sb);
-        } else {
-            for (int i = startPos; i <= endPos; i++) {
-                //varName['expression']
-                if (sourceTokens.get(i).equals("[")) {
-                    for (int j = startPos; j <= i; j++)
-                        writeCommmon(sourceTokens.get(j), sb);
-                    writeExpression(i + 1, endPos - 1, sourceTokens, sb);
-                    writeCommmon(sourceTokens.get(endPos), sb);
-                    break;
-                } else if (sourceTokens.get(i).equals("(")) {// subroutineName('expressionList')
-                    for (int j = startPos; j <= i; j++)
-                        writeCommmon(sourceTokens.get(j), sb);
-                    writeExpressionList(i + 1, endPos - 1, sourceTokens, sb);
-                    writeCommmon(sourceTokens.get(endPos), sb);
-                    break;
-                }
-            }
-        }
+    //int / char / boolean / className,返回值类型还可以是 void
+    private String type(boolean allowVoid) {
+        if (fill() && (tokens.kind(pos) == TokenBuffer.KIND_IDENTIFIER || isKeyword("int") || isKeyword("char") ||
+                isKeyword("boolean") || (allowVoid && isKeyword("void"))))
+            return next();
+        throw error(allowVoid ? "a return type" : "a type");
+    }
 
-        sb.append("</term>\n");
+    private String identifier() {
+        if (!fill() || tokens.kind(pos) != TokenBuffer.KIND_IDENTIFIER)
+            throw error("an identifier");
+        return next();
+    }
 
-        return startPos;
+    long inspections() {
+        return inspections;
     }
 
-    private int writeExpressionList(int startPos, int endPos, List<String> sourceTokens, StringBuilder sb) {
-        sb.append("<expressionList>\n");
-        int lastStartPos = startPos;
-        for (int i = startPos; i <= endPos; i++) {
-            if (sourceTokens.get(i).equals(",")) {
-                writeExpression(lastStartPos, i - 1, sourceTokens, sb);
-                writeCommmon(sourceTokens.get(i), sb);
-                lastStartPos = i + 1;
-            } else if (i == endPos) {
-                writeExpression(lastStartPos, i, sourceTokens, sb);
+    //保证 pos 处有 token,流式解析时从 tokenizer 读入;没有更多 token 时返回 false
+    private boolean fill() {
+        inspections++;
+        try {
+            while (pos >= tokens.size()) {
+                if (tokenizer == null || !tokenizer.nextInto(tokens))
+                    return false;
             }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        sb.append("</expressionList>\n");
-        return startPos;
-    }
-
-    private void writeStringConstant(String token, StringBuilder sb) {
-        sb.append("<stringConstant> ").append(token).append(" </stringConstant>\n");
     }
 
-    private void writeIntegerConstant(String token, StringBuilder sb) {
-        sb.append("<integerConstant> ").append(token).append(" </integerConstant>\n");
+    //流式解析时丢掉已经解析完的 token
+    private void release() {
+        if (tokenizer != null && pos == tokens.size()) {
+            tokens.clear();
+            pos = 0;
+        }
     }
 
-    private int writeParmList(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        writeSymbol("(", sb);
-        sb.append("<parameterList>\n");
-        for (int i = startPos + 1; i < sourceTokens.size(); i++) {
-            if (sourceTokens.get(i).equals(")")) {
-                startPos = i + 1;
-                break;
-            }
-            String token = sourceTokens.get(i);
-            writeCommmon(token, sb);
-        }
-        sb.append("</parameterList>\n");
-        writeSymbol(")", sb);
-        return startPos;
+    private String next() {
+        if (!fill())
+            throw error("a token");
+        return tokens.get(pos++);
     }
 
-    private int writeClassVarDec(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        while (sourceTokens.get(startPos).equals("static") ||
-                sourceTokens.get(startPos).equals("field")) {
-            int end = -1;
-            for (int i = startPos; i < sourceTokens.size(); i++) {
-                if (sourceTokens.get(i).equals(";")) {
-                    end = i;
-                    break;
-                }
-            }
-            if (end == -1)
-                throw new RuntimeException("end == -1");
-            sb.append("<classVarDec>\n");
-            for (int i = startPos; i <= end; i++) {
-                String token = sourceTokens.get(i);
-                writeCommmon(token, sb);
-            }
-            sb.append("</classVarDec>\n");
-            startPos = end + 1;
-        }
-        return startPos;
+    private boolean isSymbol(char symbol) {
+        return fill() && tokens.isSymbol(pos, symbol);
     }
 
-    private int writeVarDec(int startPos, List<String> sourceTokens, StringBuilder sb) {
-        while (sourceTokens.get(startPos).equals("var")) {
-            int end = -1;
-            for (int i = startPos; i < sourceTokens.size(); i++) {
-                if (sourceTokens.get(i).equals(";")) {
-                    end = i;
-                    break;
-                }
-            }
-            if (end == -1)
-                throw new RuntimeException("end == -1");
-            sb.append("<varDec>\n");
-            for (int i = startPos; i <= end; i++) {
-                String token = sourceTokens.get(i);
-                writeCommmon(token, sb);
-            }
-            sb.append("</varDec>\n");
-            startPos = end + 1;
-        }
-        return startPos;
+    private boolean isKeyword(String keyword) {
+        return fill() && tokens.isKeyword(pos, keyword);
     }
 
-    private void writeCommmon(String token, StringBuilder sb) {
-        if (JackTokenizer.isKeyword(token))
-            writeKeyword(token, sb);
-        else if (token.length() == 1 && JackTokenizer.isSymbol(token.charAt(0)))
-            writeSymbol(token, sb);
-        else
-            writeIdentifier(token, sb);
+    //当前 token 是 symbol 时读掉它并返回 true
+    private boolean accept(char symbol) {
+        if (!isSymbol(symbol))
+            return false;
+        pos++;
+        return true;
     }
 
-    private void writeKeyword(String keyword, StringBuilder sb) {
-        sb.append("<keyword> ").append(keyword).append(" </keyword>\n");
+    private void expect(char symbol) {
+        if (!accept(symbol))
+            throw error("'" + symbol + "'");
     }
 
-    private void writeIdentifier(String string, StringBuilder sb) {
-        sb.append("<identifier> ").append(string).append(" </identifier>\n");
+    private void expect(String keyword) {
+        if (!isKeyword(keyword))
+            throw error("'" + keyword + "'");
+        pos++;
     }
 
-    private void writeSymbol(String string, StringBuilder sb) {
-        if (string.equals("<"))
-            string = "&lt;";
-        else if (string.equals(">"))
-            string = "&gt;";
-        else if (string.equals("&"))
-            string = "&amp;";
-        sb.append("<symbol> ").append(string).append(" </symbol>\n");
+    private RuntimeException error(String expected) {
+        String found = fill() ? "'" + tokens.get(pos) + "'" : "end of file";
+        int line = tokens.line(pos);
+        return new RuntimeException("expected " + expected + " but found " + found + (line > 0 ? " at line " + line : ""));
     }
 }
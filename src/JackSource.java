@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+//读取 jack 源文件: 小文件一次读进堆内,大文件直接映射到内存
+//jack 源文件几乎都是纯 ASCII,这时按字节直接扩展成 char,不走字符集解码;遇到非 ASCII 字节才按 UTF-8 解码
+public class JackSource {
+    private static final long MAP_THRESHOLD = 1 << 20;
+
+    public static ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new RuntimeException(path + ": file too large");
+            if (size >= MAP_THRESHOLD)
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) ;
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    public static char[] decode(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        int base = bytes.position();
+        char[] chars = new char[length];
+        if (bytes.hasArray()) {
+            byte[] array = bytes.array();
+            int offset = bytes.arrayOffset() + base;
+            for (int i = 0; i < length; i++) {
+                byte b = array[offset + i];
+                if (b < 0)
+                    return decodeUtf8(bytes);
+                chars[i] = (char) b;
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                byte b = bytes.get(base + i);
+                if (b < 0)
+                    return decodeUtf8(bytes);
+                chars[i] = (char) b;
+            }
+        }
+        return chars;
+    }
+
+    private static char[] decodeUtf8(ByteBuffer bytes) {
+        try {
+            CharBuffer decoded = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(bytes.duplicate());
+            return Arrays.copyOfRange(decoded.array(), decoded.arrayOffset() + decoded.position(), decoded.arrayOffset() + decoded.limit());
+        } catch (CharacterCodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+
+//逐行读取 jack 源文件,每次只在内存里保留一行
+public class JackSourceReader implements Closeable {
+    private BufferedReader bufferedReader;
+
+    public JackSourceReader(BufferedReader bufferedReader) {
+        this.bufferedReader = bufferedReader;
+    }
+
+    //返回下一行的原始内容(不含换行符),读完时返回 null;注释由 JackTokenizer 处理
+    public String nextLine() throws IOException {
+        return bufferedReader.readLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        bufferedReader.close();
+    }
+}
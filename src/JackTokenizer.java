@@ -1,13 +1,12 @@
-import java.util.ArrayList;
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.List;
 
 public class JackTokenizer {
     private static final char[] symbols = {
             '{', '}', '(', ')', '[', ']', '.', ',', ';', '+', '-', '*', '/', '&', '|', '<', '>', '=', '-'
     };
 
-    private static final String[] keywords = {
+    static final String[] keywords = {
             "class", "constructor", "function", "method", "field", "static", "var", "int", "char", "boolean", "void", "true", "false",
             "null", "this", "let", "do", "if", "else", "while", "return"
     };
@@ -25,16 +24,143 @@ public class JackTokenizer {
             "let", "if", "while", "do", "return"
     };
 
+    //字符分类表,只覆盖 ASCII,其余字符按 C_LETTER 处理
+    private static final int C_SPACE = 0;
+    private static final int C_NEWLINE = 1;
+    private static final int C_LETTER = 2;
+    private static final int C_DIGIT = 3;
+    private static final int C_SYMBOL = 4;
+    private static final int C_SLASH = 5;
+    private static final int C_STAR = 6;
+    private static final int C_QUOTE = 7;
+    private static final int C_COUNT = 8;
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    //DFA 状态
+    private static final int S_START = 0;
+    private static final int S_IDENTIFIER = 1;
+    private static final int S_INTEGER = 2;
+    private static final int S_STRING = 3;
+    private static final int S_SLASH = 4;
+    private static final int S_LINE_COMMENT = 5;
+    private static final int S_BLOCK_COMMENT = 6;
+    private static final int S_BLOCK_COMMENT_STAR = 7;
+    //动作(负数): token 在当前字符之前结束 / 当前字符是一个符号 / 当前字符是字符串的结束引号 / 字符串中出现换行
+    private static final int A_EMIT = -1;
+    private static final int A_EMIT_SYMBOL = -2;
+    private static final int A_EMIT_STRING = -3;
+    private static final int A_ERROR = -4;
+
+    //TRANSITIONS[state * C_COUNT + 字符分类]
+    private static final int[] TRANSITIONS = {
+            //             SPACE            NEWLINE          LETTER           DIGIT            SYMBOL           SLASH                 STAR                  QUOTE
+            /* START   */ S_START,         S_START,         S_IDENTIFIER,    S_INTEGER,       A_EMIT_SYMBOL,   S_SLASH,              A_EMIT_SYMBOL,        S_STRING,
+            /* IDENT   */ A_EMIT,          A_EMIT,          S_IDENTIFIER,    S_IDENTIFIER,    A_EMIT,          A_EMIT,               A_EMIT,               A_EMIT,
+            /* INTEGER */ A_EMIT,          A_EMIT,          S_IDENTIFIER,    S_INTEGER,       A_EMIT,          A_EMIT,               A_EMIT,               A_EMIT,
+            /* STRING  */ S_STRING,        A_ERROR,         S_STRING,        S_STRING,        S_STRING,        S_STRING,             S_STRING,             A_EMIT_STRING,
+            /* SLASH   */ A_EMIT,          A_EMIT,          A_EMIT,          A_EMIT,          A_EMIT,          S_LINE_COMMENT,       S_BLOCK_COMMENT,      A_EMIT,
+            /* //      */ S_LINE_COMMENT,  S_START,         S_LINE_COMMENT,  S_LINE_COMMENT,  S_LINE_COMMENT,  S_LINE_COMMENT,       S_LINE_COMMENT,       S_LINE_COMMENT,
+            /* / *     */ S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_BLOCK_COMMENT,      S_BLOCK_COMMENT_STAR, S_BLOCK_COMMENT,
+            /* / * *   */ S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_BLOCK_COMMENT, S_START,              S_BLOCK_COMMENT_STAR, S_BLOCK_COMMENT,
+    };
+
+    //关键字的完美哈希: (首字符 * 8 + 末字符 * 27 + 长度) & 31 对 21 个关键字没有冲突
+    private static final String[] KEYWORD_TABLE = new String[32];
+    private static final int[] KEYWORD_INDEX = new int[32];
+
+    static {
+        Arrays.fill(CHAR_CLASS, (byte) C_LETTER);
+        for (char c = '0'; c <= '9'; c++)
+            CHAR_CLASS[c] = C_DIGIT;
+        for (char c : symbols)
+            CHAR_CLASS[c] = C_SYMBOL;
+        for (char c : unaryOps)
+            CHAR_CLASS[c] = C_SYMBOL;
+        CHAR_CLASS['/'] = C_SLASH;
+        CHAR_CLASS['*'] = C_STAR;
+        CHAR_CLASS['"'] = C_QUOTE;
+        CHAR_CLASS[' '] = CHAR_CLASS['\t'] = CHAR_CLASS['\f'] = CHAR_CLASS['\r'] = C_SPACE;
+        CHAR_CLASS['\n'] = C_NEWLINE;
+
+        for (int i = 0; i < keywords.length; i++) {
+            int hash = keywordHash(keywords[i].charAt(0), keywords[i].charAt(keywords[i].length() - 1), keywords[i].length());
+            if (KEYWORD_TABLE[hash] != null)
+                throw new RuntimeException("keyword hash collision: " + keywords[i]);
+            KEYWORD_TABLE[hash] = keywords[i];
+            KEYWORD_INDEX[hash] = i;
+        }
+    }
+
     private char[] source;
+    private int sourceLength;
     private int sourceChIndex = 0;
+    //跨行的注释需要在流式读取时保留状态
+    private int commentState = S_START;
+    //正在读的 /* 注释从哪一行开始,读到文件末尾还没结束时报告
+    private int commentLine;
+    private int line = 1;
+    //DFA 看过多少个字符(结束一个 token 的那个字符下一次还要再看一次),用来检查分词是线性的
+    private long steps;
+    private JackSourceReader reader;
+    private SymbolPool pool;
+
+    private int tokenStart;
+    private int tokenEnd;
+    private boolean tokenIsString;
 
     public JackTokenizer(char[] source) {
+        this(source, new SymbolPool());
+    }
+
+    //pool 可以在多个文件之间共享;source 是未经处理的源文件内容,注释在这里跳过
+    public JackTokenizer(char[] source, SymbolPool pool) {
         this.source = source;
+        this.sourceLength = source.length;
         this.sourceChIndex = 0;
+        this.pool = pool;
+    }
+
+    //按需从 reader 中一行一行地取源码,配合 next() 使用
+    public JackTokenizer(JackSourceReader reader) {
+        this(reader, new SymbolPool());
+    }
+
+    public JackTokenizer(JackSourceReader reader, SymbolPool pool) {
+        this.reader = reader;
+        this.source = new char[256];
+        this.sourceLength = 0;
+        this.sourceChIndex = 0;
+        this.pool = pool;
+    }
+
+    private static int keywordHash(char first, char last, int length) {
+        return (first * 8 + last * 27 + length) & 31;
+    }
+
+    //chars[start, start + length) 是关键字时返回它在 keywords 中的下标,否则返回 -1
+    public static int keywordIndex(char[] chars, int start, int length) {
+        if (length < 2 || length > 11)
+            return -1;
+        int hash = keywordHash(chars[start], chars[start + length - 1], length);
+        String keyword = KEYWORD_TABLE[hash];
+        if (keyword == null || keyword.length() != length)
+            return -1;
+        //不同的首尾字符也可能落到同一个槽里(例如 sv 和 if),所以每个字符都要比较
+        for (int i = 0; i < length; i++) {
+            if (keyword.charAt(i) != chars[start + i])
+                return -1;
+        }
+        return KEYWORD_INDEX[hash];
+    }
+
+    public SymbolPool getPool() {
+        return pool;
     }
 
     public void resetIndex() {
         sourceChIndex = 0;
+        commentState = S_START;
+        line = 1;
     }
 
     public static boolean isSymbol(char ch) {
@@ -85,65 +211,127 @@ public class JackTokenizer {
         return false;
     }
 
-    private String nextToken() {
+    //用 DFA 扫描下一个 token,结果放在 tokenStart/tokenEnd/tokenIsString 中;没有 token 时返回 false
+    private boolean scanToken() {
+        int state = commentState;
         int start = -1;
-        int end = -1;
-        boolean isString = false;
-        for (int i = sourceChIndex; i < source.length; i++) {
-            if (source[i] == '\"') {
-                if (isString && start != -1) {
-                    end = i;
-                    sourceChIndex = i + 1;
-                    break;
-                } else {
-                    isString = true;
-                    start = i + 1;
-                }
-            } else if (source[i] == '\'') {
-                start = i + 1;
-                sourceChIndex = end = start + 1;
-                break;
-            } else if (source[i] != ' ' && !isSymbol(source[i]) && !isUnaryOp(source[i])) {
-                if (start == -1)
-                    start = i;
-            } else if (source[i] == ' ') {
-                if (start != -1 && !isString) {
-                    sourceChIndex = end = i;
-                    break;
-                }
-            } else if ((isSymbol(source[i]) || isUnaryOp(source[i])) && !isString) {
-                if (start != -1) {
-                    sourceChIndex = end = i;
-                } else {
+        int from = sourceChIndex;
+        int i = from;
+        for (; i < sourceLength; i++) {
+            char c = source[i];
+            int next = TRANSITIONS[state * C_COUNT + (c < 128 ? CHAR_CLASS[c] : C_LETTER)];
+            if (next >= 0) {
+                if (state == S_START && next != S_START)
                     start = i;
-                    sourceChIndex = end = i + 1;
-                }
-                break;
+                else if (state == S_SLASH && next == S_BLOCK_COMMENT)
+                    commentLine = line;
+                if (c == '\n')
+                    line++;
+                state = next;
+                continue;
+            }
+            steps += i + 1 - from;
+            switch (next) {
+                case A_EMIT:
+                    return emit(start, i, i, false);
+                case A_EMIT_SYMBOL:
+                    return emit(i, i + 1, i + 1, false);
+                case A_EMIT_STRING:
+                    return emit(start + 1, i, i + 1, true);
+                default:
+                    throw new RuntimeException("line " + line + ": unterminated string constant");
             }
         }
 
-        if (start != -1 && end == -1)
-            sourceChIndex = end = source.length;
-        if (start == -1 && sourceChIndex == (source.length - 1))
-            sourceChIndex = source.length;
-        String ret = start == -1 ? null : new String(Arrays.copyOfRange(source, start, end));
-        //对字符串特殊处理
-        if (ret != null && isString)
-            ret = "\"" + ret + "\"";
-        return ret;
+        steps += sourceLength - from;
+        sourceChIndex = sourceLength;
+        if (state == S_LINE_COMMENT || state == S_BLOCK_COMMENT || state == S_BLOCK_COMMENT_STAR) {
+            commentState = state;
+            //流式读取时只是这一行读完了,注释可以在后面的行里结束;真正的文件末尾在 fill 中检查
+            if (reader == null)
+                checkCommentClosed();
+            return false;
+        }
+        commentState = S_START;
+        if (state == S_STRING)
+            throw new RuntimeException("line " + line + ": unterminated string constant");
+        if (state == S_START)
+            return false;
+        return emit(start, sourceLength, sourceLength, false);
+    }
+
+    private void checkCommentClosed() {
+        if (commentState == S_BLOCK_COMMENT || commentState == S_BLOCK_COMMENT_STAR)
+            throw new RuntimeException("line " + commentLine + ": unterminated comment");
+    }
+
+    private boolean emit(int start, int end, int nextIndex, boolean isString) {
+        tokenStart = start;
+        tokenEnd = end;
+        tokenIsString = isString;
+        sourceChIndex = nextIndex;
+        commentState = S_START;
+        return true;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    //分完词以后源文件的行数: line 只在换行符处加一,最后一行没有换行符时也要算上;
+    //流式读取时每一行后面都补了换行符,所以两种方式算出来一样
+    public int lines() {
+        boolean partialLast = sourceLength > 0 && source[sourceLength - 1] != '\n';
+        return line - 1 + (partialLast ? 1 : 0);
+    }
+
+    long steps() {
+        return steps;
     }
 
     private boolean hasMoreToken() {
-        return sourceChIndex < source.length;
+        return sourceChIndex < sourceLength;
     }
 
 
-    public List<String> getTokens() {
-        List<String> list = new ArrayList<>();
+    //拉取下一个 token 直接追加到 buffer 中,不创建 String;没有更多 token 时返回 false
+    public boolean nextInto(TokenBuffer buffer) throws IOException {
+        while (true) {
+            if (!fill())
+                return false;
+            if (scanToken()) {
+                buffer.add(source, tokenStart, tokenEnd, tokenIsString, line);
+                return true;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (hasMoreToken())
+            return true;
+        String str = reader == null ? null : reader.nextLine();
+        if (str == null) {
+            checkCommentClosed();
+            return false;
+        }
+        //每次读一行(token 不会跨行),换行符保留给 DFA 结束 // 注释
+        int length = str.length() + 1;
+        if (source.length < length)
+            source = new char[Math.max(length, source.length * 2)];
+        str.getChars(0, str.length(), source, 0);
+        source[length - 1] = '\n';
+        sourceLength = length;
+        sourceChIndex = 0;
+        return true;
+    }
+
+    public TokenBuffer getTokens() {
+        TokenBuffer buffer = new TokenBuffer(source, pool);
         while (hasMoreToken()) {
-            list.add(nextToken());
+            if (scanToken())
+                buffer.add(source, tokenStart, tokenEnd, tokenIsString, line);
         }
-        return list;
+        return buffer;
     }
 }
 
@@ -0,0 +1,352 @@
+import java.io.*;
+import java.util.List;
+
+//把语法树按原来的 xml 格式直接写到 XmlWriter 中
+public class JackXmlPrinter {
+    private final XmlWriter out;
+
+    public JackXmlPrinter(XmlWriter out) {
+        this.out = out;
+    }
+
+    public void print(JackNode.ClassNode classNode) {
+        writeClassHeader(classNode);
+        for (JackNode.SubroutineNode subroutine : classNode.subroutines)
+            writeSubRountineDec(subroutine);
+        writeClassFooter();
+    }
+
+    //流式输出时分段打印: printHeader,每个 subroutine 一次 printSubroutine,最后 printFooter
+    public void printHeader(JackNode.ClassNode classNode) {
+        writeClassHeader(classNode);
+    }
+
+    public void printSubroutine(JackNode.SubroutineNode subroutine) {
+        writeSubRountineDec(subroutine);
+    }
+
+    public void printFooter() {
+        writeClassFooter();
+    }
+
+    private void writeClassHeader(JackNode.ClassNode classNode) {
+        out.open("class");
+        writeKeyword("class");
+        writeIdentifier(classNode.name);
+        writeSymbol("{");
+        for (JackNode.VarDecNode varDec : classNode.classVarDecs)
+            writeVarDec("classVarDec", varDec);
+    }
+
+    private void writeClassFooter() {
+        writeSymbol("}");
+        out.close("class");
+    }
+
+    private void writeVarDec(String tag, JackNode.VarDecNode varDec) {
+        out.open(tag);
+        writeKeyword(varDec.kind.keyword);
+        writeCommmon(varDec.type);
+        for (int i = 0; i < varDec.names.size(); i++) {
+            if (i > 0)
+                writeSymbol(",");
+            writeIdentifier(varDec.names.get(i));
+        }
+        writeSymbol(";");
+        out.close(tag);
+    }
+
+    private void writeSubRountineDec(JackNode.SubroutineNode subroutine) {
+        out.open("subroutineDec");
+        writeKeyword(subroutine.kind.keyword);
+        writeCommmon(subroutine.returnType);
+        writeIdentifier(subroutine.name);
+        writeParmList(subroutine.parameters);
+        out.open("subroutineBody");
+        writeSymbol("{");
+        for (JackNode.VarDecNode varDec : subroutine.varDecs)
+            writeVarDec("varDec", varDec);
+        writeStatements(subroutine.statements);
+        writeSymbol("}");
+        out.close("subroutineBody");
+        out.close("subroutineDec");
+    }
+
+    private void writeParmList(List<JackNode.VarDecNode> parameters) {
+        writeSymbol("(");
+        out.open("parameterList");
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i > 0)
+                writeSymbol(",");
+            writeCommmon(parameters.get(i).type);
+            writeIdentifier(parameters.get(i).names.get(0));
+        }
+        out.close("parameterList");
+        writeSymbol(")");
+    }
+
+    private void writeStatements(List<JackNode.StatementNode> statements) {
+        out.open("statements");
+        for (JackNode.StatementNode statement : statements) {
+            switch (statement.kind) {
+                case LET:
+                    writeLetStatement(statement);
+                    break;
+                case IF:
+                    writeIfStatement(statement);
+                    break;
+                case WHILE:
+                    writeWhileStatement(statement);
+                    break;
+                case DO:
+                    writeDoStatement(statement);
+                    break;
+                case RETURN:
+                    writeReturnStatement(statement);
+                    break;
+            }
+        }
+        out.close("statements");
+    }
+
+    private void writeLetStatement(JackNode.StatementNode statement) {
+        out.open("letStatement");
+        writeKeyword("let");
+        writeIdentifier(statement.varName);
+        if (statement.index != null) {
+            writeSymbol("[");
+            writeExpression(statement.index);
+            writeSymbol("]");
+        }
+        writeSymbol("=");
+        writeExpression(statement.expression);
+        writeSymbol(";");
+        out.close("letStatement");
+    }
+
+    private void writeIfStatement(JackNode.StatementNode statement) {
+        out.open("ifStatement");
+        writeKeyword("if");
+        writeSymbol("(");
+        writeExpression(statement.expression);
+        writeSymbol(")");
+        writeSymbol("{");
+        writeStatements(statement.statements);
+        writeSymbol("}");
+        if (statement.elseStatements != null) {
+            writeKeyword("else");
+            writeSymbol("{");
+            writeStatements(statement.elseStatements);
+            writeSymbol("}");
+        }
+        out.close("ifStatement");
+    }
+
+    private void writeWhileStatement(JackNode.StatementNode statement) {
+        out.open("whileStatement");
+        writeKeyword("while");
+        writeSymbol("(");
+        writeExpression(statement.expression);
+        writeSymbol(")");
+        writeSymbol("{");
+        writeStatements(statement.statements);
+        writeSymbol("}");
+        out.close("whileStatement");
+    }
+
+    private void writeDoStatement(JackNode.StatementNode statement) {
+        out.open("doStatement");
+        writeKeyword("do");
+        writeSubroutineCall(statement.call);
+        writeSymbol(";");
+        out.close("doStatement");
+    }
+
+    private void writeReturnStatement(JackNode.StatementNode statement) {
+        out.open("returnStatement");
+        writeKeyword("return");
+        if (statement.expression != null)
+            writeExpression(statement.expression);
+        writeSymbol(";");
+        out.close("returnStatement");
+    }
+
+    private void writeExpression(JackNode.ExpressionNode expression) {
+        out.open("expression");
+        for (int i = 0; i < expression.terms.size(); i++) {
+            if (i > 0)
+                writeSymbol(expression.ops.get(i - 1));
+            writeTerm(expression.terms.get(i));
+        }
+        out.close("expression");
+    }
+
+    private void writeTerm(JackNode.TermNode term) {
+        out.open("term");
+        switch (term.kind) {
+            case INTEGER_CONSTANT:
+                out.element("integerConstant", term.value);
+                break;
+            case STRING_CONSTANT:
+                out.element("stringConstant", "\"" + term.value + "\"");
+                break;
+            case KEYWORD_CONSTANT:
+                writeKeyword(term.value);
+                break;
+            case VAR_NAME:
+                writeCommmon(term.value);
+                break;
+            case ARRAY_ENTRY:
+                writeIdentifier(term.value);
+                writeSymbol("[");
+                writeExpression(term.expression);
+                writeSymbol("]");
+                break;
+            case SUBROUTINE_CALL:
+                writeSubroutineCall(term);
+                break;
+            case PARENTHESIZED:
+                writeSymbol("(");
+                writeExpression(term.expression);
+                writeSymbol(")");
+                break;
+            case UNARY_OP:
+                writeSymbol(term.value);
+                writeTerm(term.operand);
+                break;
+        }
+        out.close("term");
+    }
+
+    private void writeSubroutineCall(JackNode.TermNode call) {
+        if (call.target != null) {
+            writeIdentifier(call.target);
+            writeSymbol(".");
+        }
+        writeIdentifier(call.value);
+        writeSymbol("(");
+        out.open("expressionList");
+        for (int i = 0; i < call.arguments.size(); i++) {
+            if (i > 0)
+                writeSymbol(",");
+            writeExpression(call.arguments.get(i));
+        }
+        out.close("expressionList");
+        writeSymbol(")");
+    }
+
+    private void writeCommmon(String token) {
+        if (JackTokenizer.isKeyword(token))
+            writeKeyword(token);
+        else if (token.length() == 1 && JackTokenizer.isSymbol(token.charAt(0)))
+            writeSymbol(token);
+        else
+            writeIdentifier(token);
+    }
+
+    private void writeKeyword(String keyword) {
+        out.element("keyword", keyword);
+    }
+
+    private void writeIdentifier(String string) {
+        out.element("identifier", string);
+    }
+
+    private void writeSymbol(String string) {
+        out.element("symbol", string);
+    }
+
+    //转义 < > & 后写出,不在内存里拼接整个 xml;先攒在自己的缓冲区里,满了才交给 writer
+    //IOException 包装成 UncheckedIOException
+    public static class XmlWriter implements Closeable {
+        private final Writer writer;
+        private final char[] buffer = new char[1 << 14];
+        private int count = 0;
+
+        public XmlWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        public void open(String tag) {
+            write('<');
+            write(tag);
+            write('>');
+            write('\n');
+        }
+
+        public void close(String tag) {
+            write('<');
+            write('/');
+            write(tag);
+            write('>');
+            write('\n');
+        }
+
+        //<tag> text </tag>
+        public void element(String tag, String text) {
+            write('<');
+            write(tag);
+            write('>');
+            write(' ');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '<')
+                    write("&lt;");
+                else if (c == '>')
+                    write("&gt;");
+                else if (c == '&')
+                    write("&amp;");
+                else
+                    write(c);
+            }
+            write(' ');
+            write('<');
+            write('/');
+            write(tag);
+            write('>');
+            write('\n');
+        }
+
+        private void write(char c) {
+            if (count == buffer.length)
+                flushBuffer();
+            buffer[count++] = c;
+        }
+
+        private void write(String str) {
+            int length = str.length();
+            if (count + length > buffer.length)
+                flushBuffer();
+            if (length > buffer.length) {
+                try {
+                    writer.write(str);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            str.getChars(0, length, buffer, count);
+            count += length;
+        }
+
+        private void flushBuffer() {
+            try {
+                writer.write(buffer, 0, count);
+                count = 0;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBuffer();
+            } catch (UncheckedIOException e) {
+                writer.close();
+                throw e.getCause();
+            }
+            writer.close();
+        }
+    }
+}
@@ -1,99 +1,612 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
 
+    static class Options {
+        public String path;
+        public int threads = 1;
+        public boolean stream = false;
+        //--emit=vm,xml; xml 只在调试时需要,默认只输出 vm
+        public boolean emitVm = true;
+        public boolean emitXml = false;
+        //--emit=asm: 直接生成 Hack 汇编;输入是目录时另外把所有类合成 asmImage(<目录>/<目录名>.asm)
+        public boolean emitAsm = false;
+        public String asmImage;
+        public boolean useCache = true;
+        public String cacheDir;
+        public long cacheSize = CompileCache.DEFAULT_MAX_BYTES;
+        public boolean optimize = false;
+        public boolean poolStrings = false;
+        //--link: 删掉用不到的函数; --link-image FILE: 另外把所有类合并写到 FILE
+        public boolean link = false;
+        public String linkImage;
+        //--inline[=N]: 内联不超过 N 条指令的叶子函数,0 表示不内联
+        public int inline = 0;
+
+        //--pipeline[=R,P,G,W]: 读入、解析、生成代码、写出四个阶段的线程数,不用流水线时为 null
+        public int[] pipeline;
+        public int queueSize = CompilePipeline.DEFAULT_QUEUE_CAPACITY;
+        //--watch: 编译完以后继续监视目录,只重新编译改动过的文件
+        public boolean watch = false;
+        //--stats / --stats=ndjson: 每个文件每个阶段的统计
+        public CompileStats stats;
+
+        //每个线程一个标识符池,同一个线程上编译的文件共用;-j 和 --pipeline 的线程各用各的,分词时不会互相等待
+        public ThreadLocal<SymbolPool> pools = ThreadLocal.withInitial(SymbolPool::new);
+        //报告和错误信息打印到这里,编译服务把它换成每个请求自己的输出
+        public PrintStream out = System.out;
+        public CompileCache cache;
+        //增量编译的索引,跟着缓存一起打开;--link/--inline 会改写输出,这时不用
+        public ClassIndex index;
+        //-O 的统计,多个线程一起累加;从缓存中取出的文件不计入
+        private int peepholeInput = 0;
+        private final Map<String, Integer> peepholeRemoved = new LinkedHashMap<>();
+        //--emit=asm 的统计: vm 指令数,生成的指令数、周期数和估算的逐条翻译的指令数、周期数
+        private final long[] asmTotals = new long[5];
+
+        static final String USAGE = "usage: java Main [-j N | --pipeline[=R,P,G,W] [--queue-size N]] [-O] [--string-pool] [--inline[=N]]"
+                + " [--link | --link-image FILE] [--stream] [--watch] [--stats[=ndjson]] [--emit=vm,asm,xml]"
+                + " [--no-cache] [--cache-dir DIR] [--cache-size MB] <file.jack | dir>";
+
+        //不认识的选项、缺少值的选项和多出来的路径都直接报错,不会被当成输入路径
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--stream"))
+                    options.stream = true;
+                else if (args[i].equals("--pipeline"))
+                    options.pipeline = defaultPipeline();
+                else if (args[i].startsWith("--pipeline="))
+                    options.pipeline = parsePipeline(args[i].substring("--pipeline=".length()));
+                else if (args[i].equals("--queue-size"))
+                    options.queueSize = Integer.parseInt(operand(args, i++));
+                else if (args[i].equals("--watch"))
+                    options.watch = true;
+                else if (args[i].startsWith("--emit="))
+                    options.parseEmit(args[i].substring("--emit=".length()));
+                else if (args[i].equals("--stats") || args[i].equals("--stats=table"))
+                    options.stats = new CompileStats(false);
+                else if (args[i].equals("--stats=ndjson"))
+                    options.stats = new CompileStats(true);
+                else if (args[i].equals("-O"))
+                    options.optimize = true;
+                else if (args[i].equals("--string-pool"))
+                    options.poolStrings = true;
+                else if (args[i].equals("--inline"))
+                    options.inline = VmInliner.DEFAULT_MAX_SIZE;
+                else if (args[i].startsWith("--inline="))
+                    options.inline = Integer.parseInt(args[i].substring("--inline=".length()));
+                else if (args[i].equals("--link"))
+                    options.link = true;
+                else if (args[i].equals("--link-image")) {
+                    options.link = true;
+                    options.linkImage = operand(args, i++);
+                }
+                else if (args[i].equals("--no-cache"))
+                    options.useCache = false;
+                else if (args[i].equals("--cache-dir"))
+                    options.cacheDir = operand(args, i++);
+                else if (args[i].equals("--cache-size"))
+                    options.cacheSize = Long.parseLong(operand(args, i++)) * 1024 * 1024;
+                else if (args[i].equals("-j"))
+                    options.threads = Integer.parseInt(operand(args, i++));
+                else if (args[i].startsWith("-j") && args[i].length() > 2)
+                    options.threads = Integer.parseInt(args[i].substring(2));
+                else if (args[i].startsWith("-"))
+                    throw new RuntimeException("unknown option " + args[i] + "\n" + USAGE);
+                else if (options.path != null)
+                    throw new RuntimeException("more than one input path: " + options.path + ", " + args[i] + "\n" + USAGE);
+                else
+                    options.path = args[i];
+            }
+            //-j 0 表示用上所有的核
+            if (options.threads <= 0)
+                options.threads = Runtime.getRuntime().availableProcessors();
+            return options;
+        }
+
+        //args[i] 是需要一个值的选项,返回它后面的值
+        private static String operand(String[] args, int i) {
+            if (i + 1 >= args.length)
+                throw new RuntimeException("option " + args[i] + " needs a value\n" + USAGE);
+            return args[i + 1];
+        }
+
+        //读写文件各 2 个线程,解析和生成代码各用一半的核
+        private static int[] defaultPipeline() {
+            int half = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            return new int[]{2, half, half, 2};
+        }
+
+        private static int[] parsePipeline(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != CompilePipeline.STAGES.length)
+                throw new RuntimeException("--pipeline needs " + CompilePipeline.STAGES.length + " thread counts (read,parse,generate,write): " + value);
+            int[] threads = new int[parts.length];
+            for (int i = 0; i < parts.length; i++)
+                threads[i] = Integer.parseInt(parts[i].trim());
+            return threads;
+        }
+
+        //相对路径按 base 解析,编译服务用客户端的工作目录
+        void resolve(Path base) {
+            if (path != null)
+                path = base.resolve(path).toString();
+            if (cacheDir != null)
+                cacheDir = base.resolve(cacheDir).toString();
+            if (linkImage != null)
+                linkImage = base.resolve(linkImage).toString();
+        }
+
+        private void parseEmit(String value) {
+            emitVm = false;
+            emitXml = false;
+            emitAsm = false;
+            for (String kind : value.split(",")) {
+                if (kind.equals("vm"))
+                    emitVm = true;
+                else if (kind.equals("xml"))
+                    emitXml = true;
+                else if (kind.equals("asm"))
+                    emitAsm = true;
+                else
+                    throw new RuntimeException("unknown --emit kind: " + kind);
+            }
+        }
+
+        //输出文件的后缀,和 outputOptions 一起决定缓存里存哪些文件;顺序总是 .vm .asm .xml
+        String[] suffixes() {
+            List<String> suffixes = new ArrayList<>();
+            if (emitVm)
+                suffixes.add(".vm");
+            if (emitAsm)
+                suffixes.add(".asm");
+            if (emitXml)
+                suffixes.add(".xml");
+            return suffixes.toArray(new String[0]);
+        }
+
+        //suffix 在 suffixes() 中的下标
+        int slot(String suffix) {
+            return Arrays.asList(suffixes()).indexOf(suffix);
+        }
+
+        //生成 vm 指令(写成 .vm 或者翻译成 .asm)
+        boolean emitCode() {
+            return emitVm || emitAsm;
+        }
+
+        //当前线程的标识符池
+        SymbolPool pool() {
+            return pools.get();
+        }
+
+        //影响输出内容的选项,作为缓存 key 的一部分
+        String outputOptions() {
+            return String.join(",", suffixes()) + (optimize ? " -O" : "") + (poolStrings ? " --string-pool" : "");
+        }
+
+        synchronized void recordPeephole(PeepholeOptimizer optimizer) {
+            peepholeInput += optimizer.received();
+            optimizer.removedByRule().forEach((rule, count) -> peepholeRemoved.merge(rule, count, Integer::sum));
+        }
+
+        synchronized void recordAsm(HackEmitter emitter) {
+            asmTotals[0] += emitter.instructions();
+            asmTotals[1] += emitter.words();
+            asmTotals[2] += emitter.cycles();
+            asmTotals[3] += emitter.plainWords();
+            asmTotals[4] += emitter.plainCycles();
+        }
+
+        //周期数是每条 vm 指令各执行一次的和;逐条翻译的数字是按每种 vm 指令的固定指令数估算的,不是真的翻译出来的;报告之后清零
+        synchronized String asmReport() {
+            String report = String.format("asm: %d vm instructions -> %d words, %d cycles; estimated plain translation %d words, %d cycles (%s size, %s cycles); $CALL/$RETURN %d words once per program",
+                    asmTotals[0], asmTotals[1], asmTotals[2], asmTotals[3], asmTotals[4],
+                    percent(asmTotals[1], asmTotals[3]), percent(asmTotals[2], asmTotals[4]), HackEmitter.runtimeWords());
+            Arrays.fill(asmTotals, 0);
+            return report;
+        }
+
+        private static String percent(long value, long base) {
+            return base == 0 ? "-" : String.format("%+.1f%%", (value - base) * 100.0 / base);
+        }
+
+        //报告之后清零,--watch 时每一批只报告这一批的文件
+        synchronized String peepholeReport() {
+            int removed = 0;
+            StringBuilder rules = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : peepholeRemoved.entrySet()) {
+                removed += entry.getValue();
+                rules.append(rules.length() == 0 ? "" : ", ").append(entry.getKey()).append(" ").append(entry.getValue());
+            }
+            String report = "peephole: removed " + removed + " of " + peepholeInput + " vm instructions" + (rules.length() == 0 ? "" : " (" + rules + ")");
+            peepholeInput = 0;
+            peepholeRemoved.clear();
+            return report;
+        }
+    }
+
     public static void main(String[] args) throws IOException {
-        if (args.length == 0) {
-            System.out.println("no file path, exit.");
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e instanceof NumberFormatException ? "invalid number: " + e.getMessage() + "\n" + Options.USAGE : e.getMessage());
+            System.exit(1);
             return;
         }
-        File file = new File(args[0]);
+        int status = run(options);
+        if (status != 0)
+            System.exit(status);
+    }
+
+    //返回退出码
+    static int run(Options options) throws IOException {
+        if (options.path == null) {
+            options.out.println("no file path, exit.");
+            return 0;
+        }
+        File file = new File(options.path);
         if (!file.exists()) {
-            System.out.println("file does not exit ,so exit.");
-            return;
+            options.out.println("file does not exit ,so exit.");
+            return 0;
         }
 
         List<File> compileFiles = new ArrayList<>();
         if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files == null || files.length == 0)
-                throw new RuntimeException("files==null||files.length==0");
-            for (File f : files) {
-                if (f.getName().endsWith(".jack"))
-                    compileFiles.add(f);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.toPath(), "*.jack")) {
+                for (Path p : stream)
+                    compileFiles.add(p.toFile());
             }
+            if (compileFiles.isEmpty())
+                throw new RuntimeException("no .jack file in " + file.getPath());
         } else
             compileFiles.add(file);
 
-        CompilationEngine compilationEngine = new CompilationEngine();
+        if (options.pipeline != null && options.stream)
+            throw new RuntimeException("--pipeline cannot be combined with --stream");
+        if (options.watch && (options.link || options.inline > 0))
+            throw new RuntimeException("--watch cannot be combined with --link/--inline");
+        //--link/--inline 改写的是 .vm,.asm 不会跟着变
+        if (options.emitAsm && (options.link || options.inline > 0))
+            throw new RuntimeException("--emit=asm cannot be combined with --link/--inline");
+        //按规范路径取目录名,输入是 . 或者以 /. 结尾时也能得到真正的目录名
+        if (options.emitAsm && file.isDirectory()) {
+            File dir = file.getCanonicalFile();
+            options.asmImage = new File(dir, dir.getName() + ".asm").getPath();
+        }
+        if (options.useCache) {
+            Path cacheDir = options.cacheDir == null ? CompileCache.defaultDir() : Paths.get(options.cacheDir);
+            options.cache = new CompileCache(cacheDir, options.cacheSize, options.outputOptions());
+            if (options.emitCode() && !options.link && options.inline == 0) {
+                options.index = ClassIndex.load(options.cache.indexFile(file.toPath()), options.suffixes());
+                options.index.retain(compileFiles);
+            }
+        }
+
+        int status = compile(compileFiles, options);
+        if (options.watch)
+            return new CompileWatcher(file, options).watch();
+        if (status == 0)
+            options.out.println("ended.");
+        return status;
+    }
+
+    //编译 compileFiles 并打印报告,返回退出码;--watch 时每一批改动的文件也从这里编译
+    static int compile(List<File> compileFiles, Options options) throws IOException {
+        //源文件和输出都没变的文件不用编译
+        List<File> staleFiles = options.index == null ? compileFiles : options.index.stale(compileFiles);
+        CompilePipeline pipeline = null;
+        List<String> failures;
+        if (options.pipeline != null) {
+            pipeline = new CompilePipeline(options, options.pipeline, options.queueSize);
+            failures = pipeline.run(staleFiles);
+        } else if (options.threads > 1 && staleFiles.size() > 1)
+            failures = compileParallel(staleFiles, options);
+        else
+            failures = compileSequential(staleFiles, options);
+
+        if (options.cache != null)
+            options.cache.evict();
+        if (options.stats != null)
+            options.out.println(options.stats.report());
+        if (pipeline != null)
+            options.out.println(pipeline.report());
+        if (options.optimize)
+            options.out.println(options.peepholeReport());
+        if (options.emitAsm)
+            options.out.println(options.asmReport());
+        if (options.index != null) {
+            options.out.println(options.index.report());
+            options.index.save();
+        }
+
+        if (!failures.isEmpty()) {
+            options.out.println(failures.size() + " file(s) failed to compile:");
+            for (String failure : failures)
+                options.out.println(failure);
+            return 1;
+        }
+        if (options.link || options.inline > 0)
+            link(compileFiles, options);
+        writeAsmImage(options);
+        return 0;
+    }
+
+    //把目录里所有类的 .asm 合成一个程序;有 Sys 类时从 Sys.init 开始,否则从 Main.main 开始
+    static void writeAsmImage(Options options) throws IOException {
+        if (options.asmImage == null)
+            return;
+        Path image = Paths.get(options.asmImage);
+        List<Path> fragments = new ArrayList<>();
+        boolean hasSys = false;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(image.getParent(), "*.jack")) {
+            for (Path p : stream) {
+                fragments.add(outputFile(p.toFile(), ".asm").toPath());
+                hasSys |= p.getFileName().toString().equals("Sys.jack");
+            }
+        }
+        fragments.sort(null);
+        HackEmitter.writeImage(image, fragments, hasSys ? "Sys.init" : "Main.main");
+        options.out.println("asm: wrote " + image);
+    }
+
+    //编译完成后对这次编译的所有 .vm 做内联和链接
+    private static void link(List<File> compileFiles, Options options) throws IOException {
+        if (!options.emitVm)
+            throw new RuntimeException("--link/--inline needs vm output");
+        VmLinker linker = new VmLinker();
+        for (File f : compileFiles)
+            linker.addFile(outputFile(f, ".vm").toPath());
+        if (options.inline > 0) {
+            VmInliner inliner = new VmInliner(options.inline);
+            inliner.inline(linker.functions());
+            for (String site : inliner.sites())
+                options.out.println(site);
+            options.out.println("inline: " + inliner.sites().size() + " call site(s) inlined");
+        }
+        linker.rewriteFiles(options.link);
+        if (options.linkImage != null)
+            linker.writeImage(Paths.get(options.linkImage));
+        if (options.link)
+            options.out.println(linker.report());
+    }
+
+    private static List<String> compileSequential(List<File> compileFiles, Options options) {
+        List<String> failures = new ArrayList<>();
         for (File f : compileFiles) {
-            if (!f.getName().endsWith(".jack"))
-                continue;
-            String source = readFile(f);
-            JackTokenizer tokenizer = new JackTokenizer(source.toCharArray());
-            JackParser jackParser = new JackParser();
-            String result = jackParser.parse(tokenizer.getTokens());
-
-            String filePath = f.getAbsolutePath().replaceAll(f.getName(), f.getName() + ".xml");
-            saveFile(result, filePath);
-            String outFilePath = f.getAbsolutePath().replaceAll(f.getName(), f.getName() + ".vm");
-            saveFile(compilationEngine.compile(result), outFilePath);
-        }
-
-        System.out.println("ended.");
-    }
-
-    private static String readFile(File file) throws IOException {
-        List<String> aList = new ArrayList<>();
-        FileInputStream fileInputStream = new FileInputStream(file);
-        InputStreamReader inputStreamReader = new InputStreamReader(fileInputStream);
-        BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-
-        String str;
-        boolean isInComment = false;
-        while ((str = bufferedReader.readLine()) != null) {
-            str = str.trim();
-            if (str.startsWith("//") || str.trim().isEmpty())
-                continue;
-            else if (str.startsWith("/**")) {
-                if (!str.endsWith("*/"))
-                    isInComment = true;
-                continue;
-            } else if (str.endsWith("*/")) {
-                isInComment = false;
-                continue;
+            String failure = compileFile(f, options);
+            if (failure != null)
+                failures.add(failure);
+        }
+        return failures;
+    }
+
+    private static List<String> compileParallel(List<File> compileFiles, Options options) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(options.threads, compileFiles.size()));
+        List<Future<String>> futures = new ArrayList<>();
+        for (File f : compileFiles)
+            futures.add(executor.submit(() -> compileFile(f, options)));
+
+        List<String> failures = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                String failure;
+                try {
+                    failure = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    failure = compileFiles.get(i).getPath() + ": " + e.getCause();
+                }
+                if (failure != null)
+                    failures.add(failure);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add("interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    //每个文件用自己的 tokenizer/parser/engine,所以可以在多个线程上同时编译;失败时返回错误描述
+    private static String compileFile(File f, Options options) {
+        if (!f.getName().endsWith(".jack"))
+            return null;
+        CompileStats.FileStats stats = new CompileStats.FileStats(f.getPath(), options.stats != null);
+        File[] temps = new File[options.suffixes().length];
+        try {
+            String[] suffixes = options.suffixes();
+            File[] outputs = new File[suffixes.length];
+            for (int i = 0; i < suffixes.length; i++)
+                outputs[i] = outputFile(f, suffixes[i]);
+            //缓存的 key 和非流式编译都用同一份字节,文件只读一次
+            stats.begin(CompileStats.Phase.READ);
+            ByteBuffer bytes = options.cache != null || !options.stream ? JackSource.read(f.toPath()) : null;
+            String key = null;
+            ClassIndex.Signature signature = null;
+            if (options.cache != null) {
+                key = options.cache.key(bytes);
+                stats.cached = options.cache.restore(key, outputs, suffixes);
+                //增量编译还要用到类签名,缓存里没有时照样重新编译
+                if (stats.cached && options.index != null && (signature = options.cache.restoreSignature(key)) == null)
+                    stats.cached = false;
+            }
+            stats.end();
+            stats.bytesRead = bytes == null ? f.length() : bytes.remaining();
+            if (stats.cached) {
+                stats.bytesWritten = totalLength(outputs);
+                if (options.index != null)
+                    options.index.update(f, outputs, signature);
+                return null;
+            }
+            //先写到临时文件,编译成功后再改名覆盖输出,失败时原来的输出保持不动,--watch 时也不会读到写了一半的文件
+            for (int i = 0; i < suffixes.length; i++)
+                temps[i] = CompileCache.tempFile(outputs[i].toPath()).toFile();
 
-            if (isInComment)
-                continue;
+            if (options.stream) {
+                stats.begin(CompileStats.Phase.STREAM);
+                signature = compileFileStreaming(f, temps, options, stats);
+                stats.end();
+            } else {
+                stats.begin(CompileStats.Phase.TOKENIZE);
+                JackTokenizer tokenizer = new JackTokenizer(JackSource.decode(bytes), options.pool());
+                TokenBuffer tokens = tokenizer.getTokens();
+                stats.end();
+                stats.tokens = tokens.size();
+                stats.lines = tokenizer.lines();
+                stats.begin(CompileStats.Phase.PARSE);
+                JackParser jackParser = new JackParser();
+                JackNode.ClassNode classNode = jackParser.parse(tokens);
+                stats.end();
 
-            int index = str.indexOf("//");
-            if (index >= 0) {
-                str = str.substring(0, index);
+                if (options.emitXml) {
+                    stats.begin(CompileStats.Phase.XML);
+                    try (JackXmlPrinter.XmlWriter xmlOut = openXml(temps[options.slot(".xml")])) {
+                        new JackXmlPrinter(xmlOut).print(classNode);
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    stats.end();
+                }
+                if (options.emitCode()) {
+                    stats.begin(CompileStats.Phase.VM);
+                    try (FileChannel vmOut = options.emitVm ? openChannel(temps[options.slot(".vm")]) : null;
+                         FileChannel asmOut = options.emitAsm ? openChannel(temps[options.slot(".asm")]) : null) {
+                        VmEmitter emitter = openEmitter(vmOut, asmOut, options);
+                        CompilationEngine compilationEngine = new CompilationEngine(options.optimize, options.poolStrings);
+                        compilationEngine.compile(classNode, emitter);
+                        stats.vmInstructions = closeEmitter(emitter, options);
+                        signature = compilationEngine.signature();
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    stats.end();
+                }
             }
-            str = str.trim();
-            if (str.isEmpty())
-                continue;
-            aList.add(str);
+            stats.begin(CompileStats.Phase.WRITE);
+            for (int i = 0; i < outputs.length; i++)
+                Files.move(temps[i].toPath(), outputs[i].toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stats.bytesWritten = totalLength(outputs);
+
+            if (key != null) {
+                options.cache.store(key, outputs, suffixes);
+                if (signature != null)
+                    options.cache.storeSignature(key, signature);
+            }
+            if (options.index != null)
+                options.index.update(f, outputs, signature);
+            stats.end();
+            return null;
+        } catch (IOException | RuntimeException e) {
+            return f.getPath() + ": " + e;
+        } finally {
+            for (File temp : temps) {
+                if (temp != null)
+                    temp.delete();
+            }
+            stats.finish();
+            if (options.stats != null)
+                options.stats.add(stats);
+        }
+    }
+
+    static long totalLength(File[] files) {
+        long length = 0;
+        for (File file : files)
+            length += file.length();
+        return length;
+    }
+
+    //Foo.jack -> Foo.jack.vm / Foo.jack.xml
+    static File outputFile(File f, String suffix) {
+        return new File(f.getAbsoluteFile().getParentFile(), f.getName() + suffix);
+    }
+
+    //流式编译: token 按需读取,每个 subroutine 编译完就写出去,内存占用取决于最大的 subroutine 而不是整个文件
+    //outputs 和 options.suffixes() 一一对应;返回类的签名,不生成 vm 指令时为 null
+    private static ClassIndex.Signature compileFileStreaming(File f, File[] outputs, Options options, CompileStats.FileStats stats) throws IOException {
+        try (JackSourceReader reader = openSource(f);
+             JackXmlPrinter.XmlWriter xmlOut = options.emitXml ? openXml(outputs[options.slot(".xml")]) : null;
+             FileChannel vmOut = options.emitVm ? openChannel(outputs[options.slot(".vm")]) : null;
+             FileChannel asmOut = options.emitAsm ? openChannel(outputs[options.slot(".asm")]) : null) {
+            JackXmlPrinter printer = xmlOut == null ? null : new JackXmlPrinter(xmlOut);
+            VmEmitter emitter = options.emitCode() ? openEmitter(vmOut, asmOut, options) : null;
+            CompilationEngine compilationEngine = emitter == null ? null : new CompilationEngine(options.optimize, options.poolStrings);
+            JackTokenizer tokenizer = new JackTokenizer(reader, options.pool());
+            new JackParser().parse(tokenizer, classNode -> {
+                if (printer != null)
+                    printer.printHeader(classNode);
+                if (compilationEngine != null)
+                    compilationEngine.begin(classNode, emitter);
+            }, subroutine -> {
+                if (printer != null)
+                    printer.printSubroutine(subroutine);
+                if (compilationEngine != null)
+                    compilationEngine.compileSubroutine(subroutine);
+            });
+            if (printer != null)
+                printer.printFooter();
+            if (emitter != null)
+                stats.vmInstructions = closeEmitter(emitter, options);
+            stats.lines = tokenizer.lines();
+            return compilationEngine == null ? null : compilationEngine.signature();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
 
-        bufferedReader.close();
-        inputStreamReader.close();
-        fileInputStream.close();
+    //vmOut/asmOut 为 null 时不输出对应的文件;-O 时在最前面接上窥孔优化,优化后的指令同时写成 vm 和翻译成 asm
+    static VmEmitter openEmitter(WritableByteChannel vmOut, WritableByteChannel asmOut, Options options) {
+        VmEmitter emitter = vmOut == null ? null : new VmEmitter(vmOut);
+        if (asmOut != null)
+            emitter = new HackEmitter(asmOut, emitter);
+        return options.optimize ? new PeepholeOptimizer(emitter) : emitter;
+    }
+
+    //返回写出的指令数
+    static int closeEmitter(VmEmitter emitter, Options options) {
+        emitter.flush();
+        if (emitter instanceof PeepholeOptimizer) {
+            options.recordPeephole((PeepholeOptimizer) emitter);
+            emitter = ((PeepholeOptimizer) emitter).downstream();
+        }
+        if (emitter instanceof HackEmitter)
+            options.recordAsm((HackEmitter) emitter);
+        return emitter.instructions();
+    }
+
+    //xml 直接编码写入文件通道,缓冲由 XmlWriter 负责
+    private static JackXmlPrinter.XmlWriter openXml(File file) throws IOException {
+        return new JackXmlPrinter.XmlWriter(Channels.newWriter(openChannel(file), StandardCharsets.UTF_8));
+    }
 
-        StringBuilder sourceSb = new StringBuilder();
-        for (String s : aList)
-            sourceSb.append(s).append(" ");
-        return sourceSb.toString();
+    private static FileChannel openChannel(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
-    public static void saveFile(String result, String filePath) throws IOException {
-        BufferedOutputStream bf = new BufferedOutputStream(new FileOutputStream(filePath));
-        byte[] bytes = result.getBytes();
-        bf.write(bytes, 0, bytes.length);
-        bf.flush();
-        bf.close();
+    private static JackSourceReader openSource(File file) throws IOException {
+        return new JackSourceReader(Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8));
     }
 }
@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//窥孔优化: 接收 CompilationEngine 发出的指令,在一个小窗口里按规则改写,再交给下游的 VmEmitter
+//每来一条指令就对窗口末尾反复套用规则,直到没有规则能再改写;窗口超过 WINDOW_SIZE 时把最早的指令写出去
+public class PeepholeOptimizer extends VmEmitter {
+    private static final int WINDOW_SIZE = 8;
+
+    //每条规则只看窗口末尾的几条指令,改写成功时返回 true
+    public abstract static class Rule {
+        public final String name;
+
+        protected Rule(String name) {
+            this.name = name;
+        }
+
+        public abstract boolean apply(PeepholeOptimizer window);
+    }
+
+    //push X; pop X -> (无)
+    public static final Rule PUSH_POP = new Rule("push-pop") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            VmInstruction push = w.at(1), pop = w.at(0);
+            if (push == null || push.kind != VmInstruction.Kind.PUSH || push.segment == Segment.CONSTANT
+                    || !pop.isPop(push.segment, push.number))
+                return false;
+            return w.replace(2);
+        }
+    };
+
+    //not; not -> (无)    neg; neg -> (无)
+    public static final Rule DOUBLE_NEGATION = new Rule("double-negation") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            VmInstruction first = w.at(1), second = w.at(0);
+            if (first == null || !(first.is(Command.NOT) && second.is(Command.NOT) || first.is(Command.NEG) && second.is(Command.NEG)))
+                return false;
+            return w.replace(2);
+        }
+    };
+
+    //条件是常量的跳转: push constant 0; if-goto L -> (无)    push constant 0; not; if-goto L -> goto L
+    public static final Rule CONSTANT_BRANCH = new Rule("constant-branch") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            VmInstruction last = w.at(0);
+            if (last.kind != VmInstruction.Kind.IF_GOTO)
+                return false;
+            if (w.at(1) != null && w.at(1).isPush(Segment.CONSTANT, 0))
+                return w.replace(2);
+            if (w.at(2) != null && w.at(2).isPush(Segment.CONSTANT, 0) && w.at(1).is(Command.NOT))
+                return w.replace(3, VmInstruction.jump(VmInstruction.Kind.GOTO, last.name, last.number));
+            return false;
+        }
+    };
+
+    //if (~c) 的跳转: not; if-goto T; goto F; label T -> if-goto F; label T
+    //~ 是按位取反,c 不是 0 或 -1 时 ~c 和 c 可能都不是 0,所以只在 c 是 eq/gt/lt 的结果时改写
+    public static final Rule NEGATED_BRANCH = new Rule("negated-branch") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            VmInstruction condition = w.at(4), not = w.at(3), ifGoto = w.at(2), gotoFalse = w.at(1), label = w.at(0);
+            if (condition == null || !(condition.is(Command.EQ) || condition.is(Command.GT) || condition.is(Command.LT))
+                    || !not.is(Command.NOT) || ifGoto.kind != VmInstruction.Kind.IF_GOTO
+                    || gotoFalse.kind != VmInstruction.Kind.GOTO || label.kind != VmInstruction.Kind.LABEL
+                    || !ifGoto.sameLabel(label))
+                return false;
+            return w.replace(4, VmInstruction.jump(VmInstruction.Kind.IF_GOTO, gotoFalse.name, gotoFalse.number), label);
+        }
+    };
+
+    //数组赋值的右边只是一次 push 时不需要借 temp 0 中转:
+    //push X; pop temp 0; pop pointer 1; push temp 0; pop that 0 -> pop pointer 1; push X; pop that 0
+    //X 不能依赖 pointer 1(that 段和 pointer 段)
+    public static final Rule ARRAY_STORE = new Rule("array-store") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            VmInstruction value = w.at(4);
+            if (value == null || value.kind != VmInstruction.Kind.PUSH || value.segment == Segment.THAT || value.segment == Segment.POINTER
+                    || !w.at(3).isPop(Segment.TEMP, 0) || !w.at(2).isPop(Segment.POINTER, 1)
+                    || !w.at(1).isPush(Segment.TEMP, 0) || !w.at(0).isPop(Segment.THAT, 0))
+                return false;
+            return w.replace(5, w.at(2), value, w.at(0));
+        }
+    };
+
+    //void 函数的返回值没有人用: pop temp 0; push constant 0; return -> return
+    public static final Rule VOID_RETURN = new Rule("void-return") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            if (!w.returnsVoid || w.at(2) == null || !w.at(2).isPop(Segment.TEMP, 0)
+                    || !w.at(1).isPush(Segment.CONSTANT, 0) || w.at(0).kind != VmInstruction.Kind.RETURN)
+                return false;
+            return w.replace(3, w.at(0));
+        }
+    };
+
+    //goto L; label L -> label L
+    public static final Rule JUMP_TO_NEXT = new Rule("jump-to-next") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            VmInstruction jump = w.at(1), label = w.at(0);
+            if (jump == null || jump.kind != VmInstruction.Kind.GOTO || label.kind != VmInstruction.Kind.LABEL || !jump.sameLabel(label))
+                return false;
+            return w.replace(2, label);
+        }
+    };
+
+    //goto/return 之后到下一个 label 之前的指令执行不到
+    public static final Rule UNREACHABLE = new Rule("unreachable") {
+        @Override
+        public boolean apply(PeepholeOptimizer w) {
+            VmInstruction jump = w.at(1), next = w.at(0);
+            if (jump == null || jump.kind != VmInstruction.Kind.GOTO && jump.kind != VmInstruction.Kind.RETURN
+                    || next.kind == VmInstruction.Kind.LABEL || next.kind == VmInstruction.Kind.FUNCTION)
+                return false;
+            return w.replace(1);
+        }
+    };
+
+    public static final List<Rule> DEFAULT_RULES = List.of(
+            PUSH_POP, DOUBLE_NEGATION, CONSTANT_BRANCH, NEGATED_BRANCH, ARRAY_STORE, VOID_RETURN, JUMP_TO_NEXT, UNREACHABLE);
+
+    private final VmEmitter downstream;
+    private final List<Rule> rules;
+    private final List<VmInstruction> window = new ArrayList<>();
+    private boolean returnsVoid;
+    private int received = 0;
+    private int emitted = 0;
+    //规则名 -> 这条规则去掉的指令数
+    private final Map<String, Integer> removedByRule = new LinkedHashMap<>();
+
+    public PeepholeOptimizer(VmEmitter downstream) {
+        this(downstream, DEFAULT_RULES);
+    }
+
+    public PeepholeOptimizer(VmEmitter downstream, List<Rule> rules) {
+        super(null, 0);
+        this.downstream = downstream;
+        this.rules = rules;
+    }
+
+    //窗口末尾往前数第 fromEnd 条指令(0 是最后一条),不存在时返回 null
+    public VmInstruction at(int fromEnd) {
+        int index = window.size() - 1 - fromEnd;
+        return index < 0 ? null : window.get(index);
+    }
+
+    //把窗口末尾的 count 条指令换成 replacement
+    public boolean replace(int count, VmInstruction... replacement) {
+        List<VmInstruction> tail = window.subList(window.size() - count, window.size());
+        List<VmInstruction> copy = Arrays.asList(replacement.clone());
+        tail.clear();
+        window.addAll(copy);
+        return true;
+    }
+
+    VmEmitter downstream() {
+        return downstream;
+    }
+
+    public int received() {
+        return received;
+    }
+
+    public int removed() {
+        return received - emitted - window.size();
+    }
+
+    public Map<String, Integer> removedByRule() {
+        return removedByRule;
+    }
+
+    private void add(VmInstruction instruction) {
+        received++;
+        window.add(instruction);
+        boolean changed = true;
+        while (changed && !window.isEmpty()) {
+            changed = false;
+            for (Rule rule : rules) {
+                int size = window.size();
+                if (rule.apply(this)) {
+                    removedByRule.merge(rule.name, size - window.size(), Integer::sum);
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        while (window.size() > WINDOW_SIZE)
+            emit(window.remove(0));
+    }
+
+    private void emit(VmInstruction instruction) {
+        emitted++;
+        instruction.emit(downstream);
+    }
+
+    private void drain() {
+        for (VmInstruction instruction : window)
+            emit(instruction);
+        window.clear();
+    }
+
+    @Override
+    public void push(Segment segment, int index) {
+        add(VmInstruction.push(segment, index));
+    }
+
+    @Override
+    public void pop(Segment segment, int index) {
+        add(VmInstruction.pop(segment, index));
+    }
+
+    @Override
+    public void arithmetic(Command command) {
+        add(VmInstruction.arithmetic(command));
+    }
+
+    @Override
+    public void label(String prefix, int number) {
+        add(VmInstruction.jump(VmInstruction.Kind.LABEL, prefix, number));
+    }
+
+    @Override
+    public void gotoLabel(String prefix, int number) {
+        add(VmInstruction.jump(VmInstruction.Kind.GOTO, prefix, number));
+    }
+
+    @Override
+    public void ifGoto(String prefix, int number) {
+        add(VmInstruction.jump(VmInstruction.Kind.IF_GOTO, prefix, number));
+    }
+
+    //接下来的 function 是 void 的,调用的地方不用它的返回值(void-return 规则要用);
+    //先把上一个函数留在窗口里的指令写出去,提示不能用在它们身上;提示也转给下游
+    @Override
+    public void subroutineHint(boolean returnsVoid) {
+        drain();
+        this.returnsVoid = returnsVoid;
+        downstream.subroutineHint(returnsVoid);
+    }
+
+    @Override
+    public void function(String className, String name, int nLocals) {
+        //规则不跨函数
+        drain();
+        add(VmInstruction.function(VmInstruction.Kind.FUNCTION, className, name, nLocals));
+    }
+
+    @Override
+    public void call(String className, String name, int nArgs) {
+        add(VmInstruction.function(VmInstruction.Kind.CALL, className, name, nArgs));
+    }
+
+    @Override
+    public void ret() {
+        add(VmInstruction.ret());
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        downstream.flush();
+    }
+
+    @Override
+    public int instructions() {
+        return downstream.instructions();
+    }
+
+    @Override
+    public void reset() {
+        window.clear();
+        downstream.reset();
+    }
+
+    @Override
+    public String toString() {
+        drain();
+        return downstream.toString();
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+//绑定: 生成一个 subroutine 的代码之前,先把里面每一处变量名解析成变量编号,记在语法树节点的 binding 上;
+//编号对应的 segment、下标和类型放在平行数组里,生成代码时按编号直接取,不再查表。
+//作用域从内到外: 局部变量、参数、field、static,最后是 this/that(pointer 0/1);
+//没有定义的变量在绑定时一次全部找出来,连同行号一起报告
+public class SymbolBinder {
+    //不是变量,例如 Foo.bar() 中的类名 Foo
+    public static final int UNBOUND = -1;
+    //this/that 总是编号 0/1
+    public static final int THIS = 0;
+    public static final int THAT = 1;
+
+    private VmEmitter.Segment[] segments = new VmEmitter.Segment[16];
+    private int[] indexes = new int[16];
+    private String[] types = new String[16];
+    private int size;
+    //this/that 和类变量的个数,后面是当前 subroutine 的参数和局部变量
+    private int classSize;
+    private int staticCount;
+    private int fieldCount;
+    private int localCount;
+    //名字 -> 编号: 类变量(包括 that)和当前 subroutine 的参数、局部变量分开放,subroutine 的覆盖类的
+    private final HashMap<String, Integer> classScope = new HashMap<>();
+    private final HashMap<String, Integer> subroutineScope = new HashMap<>();
+    private final List<String> undefined = new ArrayList<>();
+    //登记、查找和访问语句/term 的次数,用来检查绑定是线性的: 应该和 token 数成正比
+    private long steps;
+
+    public void beginClass(JackNode.ClassNode classNode) {
+        size = 0;
+        staticCount = 0;
+        fieldCount = 0;
+        classScope.clear();
+        //先登记 this/that,同名的 static/field 会覆盖 that;field 又覆盖同名的 static
+        declare(classScope, "this", VmEmitter.Segment.POINTER, 0, null);
+        declare(classScope, "that", VmEmitter.Segment.POINTER, 1, null);
+        for (JackNode.VarDecNode varDec : classNode.classVarDecs) {
+            if (varDec.kind == JackNode.VarDecNode.Kind.STATIC) {
+                for (String name : varDec.names)
+                    declare(classScope, name, VmEmitter.Segment.STATIC, staticCount++, varDec.type);
+            }
+        }
+        for (JackNode.VarDecNode varDec : classNode.classVarDecs) {
+            if (varDec.kind == JackNode.VarDecNode.Kind.FIELD) {
+                for (String name : varDec.names)
+                    declare(classScope, name, VmEmitter.Segment.THIS, fieldCount++, varDec.type);
+            }
+        }
+        classSize = size;
+    }
+
+    //登记参数和局部变量并绑定 subroutine 里所有的变量名;有没定义的变量时抛出异常
+    public void bind(JackNode.SubroutineNode subroutine) {
+        size = classSize;
+        localCount = 0;
+        subroutineScope.clear();
+        undefined.clear();
+        //method 的 argument 0 是对象本身
+        int argumentCount = subroutine.kind == JackNode.SubroutineNode.Kind.METHOD ? 1 : 0;
+        for (JackNode.VarDecNode parameter : subroutine.parameters) {
+            for (String name : parameter.names)
+                declare(subroutineScope, name, VmEmitter.Segment.ARGUMENT, argumentCount++, parameter.type);
+        }
+        for (JackNode.VarDecNode varDec : subroutine.varDecs) {
+            for (String name : varDec.names)
+                declare(subroutineScope, name, VmEmitter.Segment.LOCAL, localCount++, varDec.type);
+        }
+        bindStatements(subroutine.statements);
+        if (!undefined.isEmpty())
+            throw new RuntimeException(String.join("; ", undefined));
+    }
+
+    public VmEmitter.Segment segment(int binding) {
+        return segments[binding];
+    }
+
+    public int index(int binding) {
+        return indexes[binding];
+    }
+
+    //变量声明的类型,this/that 为 null
+    public String type(int binding) {
+        return types[binding];
+    }
+
+    public int staticCount() {
+        return staticCount;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public int localCount() {
+        return localCount;
+    }
+
+    long steps() {
+        return steps;
+    }
+
+    private void declare(HashMap<String, Integer> scope, String name, VmEmitter.Segment segment, int index, String type) {
+        if (size == segments.length) {
+            segments = Arrays.copyOf(segments, size * 2);
+            indexes = Arrays.copyOf(indexes, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+        }
+        steps++;
+        segments[size] = segment;
+        indexes[size] = index;
+        types[size] = type;
+        scope.put(name, size++);
+    }
+
+    private int lookup(String name) {
+        steps++;
+        Integer binding = subroutineScope.get(name);
+        if (binding == null)
+            binding = classScope.get(name);
+        return binding == null ? UNBOUND : binding;
+    }
+
+    //一定要是变量的地方: 没有定义时记下来,最后一起报告
+    private int resolve(String name, JackNode node) {
+        int binding = lookup(name);
+        if (binding == UNBOUND)
+            undefined.add("undefined variable '" + name + "'" + (node.line > 0 ? " at line " + node.line : ""));
+        return binding;
+    }
+
+    private void bindStatements(List<JackNode.StatementNode> statements) {
+        for (JackNode.StatementNode statement : statements) {
+            steps++;
+            switch (statement.kind) {
+                case LET:
+                    statement.binding = resolve(statement.varName, statement);
+                    if (statement.index != null)
+                        bindExpression(statement.index);
+                    bindExpression(statement.expression);
+                    break;
+                case IF:
+                    bindExpression(statement.expression);
+                    bindStatements(statement.statements);
+                    if (statement.elseStatements != null)
+                        bindStatements(statement.elseStatements);
+                    break;
+                case WHILE:
+                    bindExpression(statement.expression);
+                    bindStatements(statement.statements);
+                    break;
+                case DO:
+                    bindTerm(statement.call);
+                    break;
+                case RETURN:
+                    if (statement.expression != null)
+                        bindExpression(statement.expression);
+                    break;
+            }
+        }
+    }
+
+    private void bindExpression(JackNode.ExpressionNode expression) {
+        for (JackNode.TermNode term : expression.terms)
+            bindTerm(term);
+    }
+
+    private void bindTerm(JackNode.TermNode term) {
+        steps++;
+        switch (term.kind) {
+            case VAR_NAME:
+                term.binding = resolve(term.value, term);
+                break;
+            case ARRAY_ENTRY:
+                term.binding = resolve(term.value, term);
+                bindExpression(term.expression);
+                break;
+            case SUBROUTINE_CALL:
+                //没有 '.' 时是 this 的方法;'.' 前面不是变量时是类名
+                term.binding = term.target == null ? THIS : lookup(term.target);
+                for (JackNode.ExpressionNode argument : term.arguments)
+                    bindExpression(argument);
+                break;
+            case PARENTHESIZED:
+                bindExpression(term.expression);
+                break;
+            case UNARY_OP:
+                bindTerm(term.operand);
+                break;
+            default:
+                break;
+        }
+    }
+}
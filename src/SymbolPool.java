@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+//标识符池: 同样的标识符只保存一个 String,可以在多个文件之间共享;不是线程安全的,
+//每个线程用自己的池(Main.Options.pool()),分词时不用抢锁
+//关键字不进池: TokenBuffer 先用 JackTokenizer.keywordIndex 认出关键字,只有标识符才 intern
+public class SymbolPool {
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    //开放寻址的哈希表,存 id + 1,0 表示空位
+    private int[] table = new int[512];
+    private int size = 0;
+    //查找和 rehash 一共看过多少个槽,用来检查冲突链没有随池变大而变长
+    private long probes;
+
+    public int size() {
+        return size;
+    }
+
+    long probes() {
+        return probes;
+    }
+
+    //返回 chars[start, start + length) 对应的 id,不存在时加入池中;查找时不创建任何对象
+    public int intern(char[] chars, int start, int length) {
+        int hash = hash(chars, start, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            probes++;
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && equals(names[id], chars, start, length))
+                return id;
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        names[id] = new String(chars, start, length);
+        hashes[id] = hash;
+        table[slot] = id + 1;
+        if (size * 2 > table.length)
+            rehash();
+        return id;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            probes++;
+            while (table[slot] != 0) {
+                probes++;
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private static int hash(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++)
+            hash = 31 * hash + chars[i];
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String name, char[] chars, int start, int length) {
+        if (name.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[start + i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,241 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+//按列存放的 token 序列: 每个 token 只占几个数组元素,关键字、符号和标识符都指向共享的 String,
+//只有整数和字符串常量在 get 时才创建 String。作为 List<String> 使用时 get(i) 返回 token 的文本
+public class TokenBuffer extends AbstractList<String> implements RandomAccess {
+    public static final int KIND_KEYWORD = 0;
+    public static final int KIND_SYMBOL = 1;
+    public static final int KIND_INTEGER_CONSTANT = 2;
+    public static final int KIND_STRING_CONSTANT = 3;
+    public static final int KIND_IDENTIFIER = 4;
+
+    private static final String SYMBOL_CHARS = "{}()[].,;+-*/&|<>=~";
+    private static final String[] SYMBOLS = {
+            "{", "}", "(", ")", "[", "]", ".", ",", ";", "+", "-", "*", "/", "&", "|", "<", ">", "=", "~"
+    };
+
+    //按下标预先算好的分类,避免每次线性扫描
+    private static final boolean[] IS_OP = new boolean[SYMBOLS.length];
+    private static final boolean[] IS_UNARY_OP = new boolean[SYMBOLS.length];
+    private static final boolean[] IS_STATEMENT = new boolean[JackTokenizer.keywords.length];
+    private static final boolean[] IS_KEYWORD_CONSTANT = new boolean[JackTokenizer.keywords.length];
+    //字符 -> SYMBOLS 下标,不是符号时为 -1
+    private static final int[] SYMBOL_INDEX = new int[128];
+
+    static {
+        Arrays.fill(SYMBOL_INDEX, -1);
+        for (int i = 0; i < SYMBOL_CHARS.length(); i++)
+            SYMBOL_INDEX[SYMBOL_CHARS.charAt(i)] = i;
+        for (int i = 0; i < SYMBOLS.length; i++) {
+            IS_OP[i] = JackTokenizer.isOp(SYMBOL_CHARS.charAt(i));
+            IS_UNARY_OP[i] = JackTokenizer.isUnaryOp(SYMBOL_CHARS.charAt(i));
+        }
+        for (int i = 0; i < JackTokenizer.keywords.length; i++) {
+            IS_STATEMENT[i] = JackTokenizer.isStatement(JackTokenizer.keywords[i]);
+            IS_KEYWORD_CONSTANT[i] = JackTokenizer.isKeywordConstant(JackTokenizer.keywords[i]);
+        }
+    }
+
+    private final SymbolPool pool;
+    private final boolean sharesSource;
+    private char[] chars;
+    private int charsLength;
+    private int size = 0;
+
+    private int[] kind;
+    private int[] start;
+    private int[] length;
+    //关键字: 关键字下标; 符号: SYMBOLS 下标; 标识符: 在 SymbolPool 中的 id; 整数常量: 数值
+    private int[] ordinal;
+    //token 所在的行,没有位置信息时为 0
+    private int[] line;
+    //关键字、符号、标识符对应的共享 String,常量为 null
+    private String[] text;
+    private int integerValue;
+
+    //token 的字符直接引用 source,不复制
+    public TokenBuffer(char[] source, SymbolPool pool) {
+        this.chars = source;
+        this.charsLength = source.length;
+        this.pool = pool;
+        this.sharesSource = true;
+        //按平均每个 token 4 个字符预估容量,避免反复扩容
+        allocate(Math.max(64, source.length / 4));
+    }
+
+    //token 的字符复制到自己的缓冲区中,用于流式解析
+    public TokenBuffer(SymbolPool pool) {
+        this.chars = new char[256];
+        this.charsLength = 0;
+        this.pool = pool;
+        this.sharesSource = false;
+        allocate(64);
+    }
+
+    private void allocate(int capacity) {
+        kind = new int[capacity];
+        start = new int[capacity];
+        length = new int[capacity];
+        ordinal = new int[capacity];
+        line = new int[capacity];
+        text = new String[capacity];
+    }
+
+    public static TokenBuffer of(List<String> tokens, SymbolPool pool) {
+        TokenBuffer buffer = new TokenBuffer(pool);
+        for (String token : tokens) {
+            if (token == null)
+                continue;
+            boolean isString = token.length() >= 2 && token.startsWith("\"") && token.endsWith("\"");
+            char[] tokenChars = token.toCharArray();
+            if (isString)
+                buffer.add(tokenChars, 1, tokenChars.length - 1, true);
+            else
+                buffer.add(tokenChars, 0, tokenChars.length, false);
+        }
+        return buffer;
+    }
+
+    public void add(char[] src, int tokenStart, int tokenEnd, boolean isString) {
+        add(src, tokenStart, tokenEnd, isString, 0);
+    }
+
+    //添加 src[tokenStart, tokenEnd),字符串常量不含引号;tokenLine 是 token 所在的行
+    public void add(char[] src, int tokenStart, int tokenEnd, boolean isString, int tokenLine) {
+        int tokenLength = tokenEnd - tokenStart;
+        if (!sharesSource) {
+            if (charsLength + tokenLength > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charsLength + tokenLength));
+            System.arraycopy(src, tokenStart, chars, charsLength, tokenLength);
+            tokenStart = charsLength;
+            charsLength += tokenLength;
+        }
+        if (size == kind.length) {
+            int capacity = size * 2;
+            kind = Arrays.copyOf(kind, capacity);
+            start = Arrays.copyOf(start, capacity);
+            length = Arrays.copyOf(length, capacity);
+            ordinal = Arrays.copyOf(ordinal, capacity);
+            line = Arrays.copyOf(line, capacity);
+            text = Arrays.copyOf(text, capacity);
+        }
+
+        int i = size++;
+        line[i] = tokenLine;
+        start[i] = tokenStart;
+        length[i] = tokenLength;
+        text[i] = null;
+        int symbol = tokenLength == 1 && chars[tokenStart] < 128 ? SYMBOL_INDEX[chars[tokenStart]] : -1;
+        int keyword;
+        if (isString) {
+            kind[i] = KIND_STRING_CONSTANT;
+            ordinal[i] = 0;
+        } else if (symbol >= 0) {
+            kind[i] = KIND_SYMBOL;
+            ordinal[i] = symbol;
+            text[i] = SYMBOLS[symbol];
+        } else if (isIntegerConstant(chars, tokenStart, tokenLength)) {
+            kind[i] = KIND_INTEGER_CONSTANT;
+            ordinal[i] = integerValue;
+        } else if ((keyword = JackTokenizer.keywordIndex(chars, tokenStart, tokenLength)) >= 0) {
+            kind[i] = KIND_KEYWORD;
+            ordinal[i] = keyword;
+            text[i] = JackTokenizer.keywords[keyword];
+        } else {
+            int id = pool.intern(chars, tokenStart, tokenLength);
+            kind[i] = KIND_IDENTIFIER;
+            ordinal[i] = id;
+            text[i] = pool.name(id);
+        }
+    }
+
+    //和原来 Integer.parseInt 的判断保持一致: 超出 int 范围的数字串不算整数常量;数值放在 integerValue 中
+    private boolean isIntegerConstant(char[] chars, int tokenStart, int tokenLength) {
+        if (tokenLength == 0 || tokenLength > 10)
+            return false;
+        long value = 0;
+        for (int i = tokenStart; i < tokenStart + tokenLength; i++) {
+            char c = chars[i];
+            if (c < '0' || c > '9')
+                return false;
+            value = value * 10 + (c - '0');
+        }
+        integerValue = (int) value;
+        return value <= Integer.MAX_VALUE;
+    }
+
+    //第 index 个 token 所在的行;index 为 size 时是最后一个 token 所在的行;没有位置信息时为 0
+    public int line(int index) {
+        if (index < size)
+            return line[index];
+        return size == 0 ? 0 : line[size - 1];
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        if (!sharesSource)
+            charsLength = 0;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        if (text[index] != null)
+            return text[index];
+        if (kind[index] == KIND_STRING_CONSTANT)
+            return "\"" + new String(chars, start[index], length[index]) + "\"";
+        return new String(chars, start[index], length[index]);
+    }
+
+    //字符串常量的内容,不含引号
+    public String stringConstant(int index) {
+        return new String(chars, start[index], length[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int kind(int index) {
+        return kind[index];
+    }
+
+    public int ordinal(int index) {
+        return ordinal[index];
+    }
+
+    public boolean isSymbol(int index, char symbol) {
+        return index < size && kind[index] == KIND_SYMBOL && SYMBOL_CHARS.charAt(ordinal[index]) == symbol;
+    }
+
+    public boolean isKeyword(int index) {
+        return index < size && kind[index] == KIND_KEYWORD;
+    }
+
+    //关键字 token 的文本就是 JackTokenizer.keywords 中的字符串,先比较引用
+    public boolean isKeyword(int index, String keyword) {
+        return index < size && kind[index] == KIND_KEYWORD && (text[index] == keyword || text[index].equals(keyword));
+    }
+
+    public boolean isKeywordConstant(int index) {
+        return index < size && kind[index] == KIND_KEYWORD && IS_KEYWORD_CONSTANT[ordinal[index]];
+    }
+
+    public boolean isOp(int index) {
+        return kind[index] == KIND_SYMBOL && IS_OP[ordinal[index]];
+    }
+
+    public boolean isUnaryOp(int index) {
+        return kind[index] == KIND_SYMBOL && IS_UNARY_OP[ordinal[index]];
+    }
+
+    public boolean isStatement(int index) {
+        return kind[index] == KIND_KEYWORD && IS_STATEMENT[ordinal[index]];
+    }
+}
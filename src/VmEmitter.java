@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//vm 指令直接编码成字节写进一块复用的缓冲区: 段名和指令名都是预先编码好的字节,数字直接转成 ASCII,
+//每条指令不产生任何对象。有 channel 时缓冲区满了就写出去,否则缓冲区按需扩大,最后用 toString 取结果
+//指令之间用换行隔开,最后一条指令后面没有换行(和原来 trim 之后的结果一致)
+public class VmEmitter {
+    public enum Segment {
+        CONSTANT("constant"), ARGUMENT("argument"), LOCAL("local"), STATIC("static"),
+        THIS("this"), THAT("that"), POINTER("pointer"), TEMP("temp");
+
+        public final String name;
+        final byte[] bytes;
+
+        Segment(String name) {
+            this.name = name;
+            this.bytes = encode(name + " ");
+        }
+
+        public static Segment of(String name) {
+            for (Segment segment : values()) {
+                if (segment.name.equals(name))
+                    return segment;
+            }
+            return null;
+        }
+    }
+
+    public enum Command {
+        ADD("add"), SUB("sub"), NEG("neg"), EQ("eq"), GT("gt"), LT("lt"), AND("and"), OR("or"), NOT("not");
+
+        public final String name;
+        final byte[] bytes;
+
+        Command(String name) {
+            this.name = name;
+            this.bytes = encode(name);
+        }
+
+        public static Command of(String name) {
+            for (Command command : values()) {
+                if (command.name.equals(name))
+                    return command;
+            }
+            return null;
+        }
+    }
+
+    private static final byte[] PUSH = encode("push ");
+    private static final byte[] POP = encode("pop ");
+    private static final byte[] LABEL = encode("label ");
+    private static final byte[] GOTO = encode("goto ");
+    private static final byte[] IF_GOTO = encode("if-goto ");
+    private static final byte[] FUNCTION = encode("function ");
+    private static final byte[] CALL = encode("call ");
+    private static final byte[] RETURN = encode("return");
+    private static final byte[] LINE_SEPARATOR = encode(System.lineSeparator());
+
+    private final WritableByteChannel channel;
+    private byte[] buffer;
+    private ByteBuffer view;
+    private int count = 0;
+    private boolean isFirst = true;
+    private int instructions = 0;
+
+    //结果保存在内存中
+    public VmEmitter() {
+        this(null);
+    }
+
+    public VmEmitter(WritableByteChannel channel) {
+        this(channel, 1 << 16);
+    }
+
+    protected VmEmitter(WritableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.buffer = new byte[capacity];
+        this.view = ByteBuffer.wrap(buffer);
+    }
+
+    static byte[] encode(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void push(Segment segment, int index) {
+        begin();
+        write(PUSH);
+        write(segment.bytes);
+        writeInt(index);
+    }
+
+    public void pop(Segment segment, int index) {
+        begin();
+        write(POP);
+        write(segment.bytes);
+        writeInt(index);
+    }
+
+    public void arithmetic(Command command) {
+        begin();
+        write(command.bytes);
+    }
+
+    //标签由前缀和编号组成,例如 label("WHILE_EXP", 0) -> label WHILE_EXP0;编号为 -1 时只有前缀
+    public void label(String prefix, int number) {
+        begin();
+        write(LABEL);
+        writeLabel(prefix, number);
+    }
+
+    public void gotoLabel(String prefix, int number) {
+        begin();
+        write(GOTO);
+        writeLabel(prefix, number);
+    }
+
+    public void ifGoto(String prefix, int number) {
+        begin();
+        write(IF_GOTO);
+        writeLabel(prefix, number);
+    }
+
+    //CompilationEngine 在每个 function 之前调用,告诉下游接下来的 subroutine 是不是 void 的;
+    //写 vm 文本时用不到,需要的子类(PeepholeOptimizer 的 void-return 规则)自己覆盖
+    public void subroutineHint(boolean returnsVoid) {
+    }
+
+    public void function(String className, String name, int nLocals) {
+        begin();
+        write(FUNCTION);
+        writeName(className);
+        writeByte('.');
+        writeName(name);
+        writeByte(' ');
+        writeInt(nLocals);
+    }
+
+    public void call(String className, String name, int nArgs) {
+        begin();
+        write(CALL);
+        writeName(className);
+        writeByte('.');
+        writeName(name);
+        writeByte(' ');
+        writeInt(nArgs);
+    }
+
+    public void ret() {
+        begin();
+        write(RETURN);
+    }
+
+    //把缓冲区里的内容写到 channel;没有 channel 时什么也不做
+    public void flush() {
+        if (channel == null || count == 0)
+            return;
+        try {
+            view.clear().limit(count);
+            while (view.hasRemaining())
+                channel.write(view);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+    }
+
+    //清空内容,可以接着编译下一个文件
+    public void reset() {
+        count = 0;
+        isFirst = true;
+        instructions = 0;
+    }
+
+    //已经写出的指令数
+    public int instructions() {
+        return instructions;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private void begin() {
+        instructions++;
+        if (isFirst)
+            isFirst = false;
+        else
+            write(LINE_SEPARATOR);
+    }
+
+    private void ensure(int length) {
+        if (count + length <= buffer.length)
+            return;
+        if (channel != null) {
+            flush();
+            if (length <= buffer.length)
+                return;
+        }
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    private void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeByte(char c) {
+        ensure(1);
+        buffer[count++] = (byte) c;
+    }
+
+    //标识符几乎都是 ASCII,逐个字符写入;非 ASCII 字符按 UTF-8 编码
+    private void writeName(String name) {
+        int length = name.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) {
+                write(encode(name.substring(i)));
+                return;
+            }
+            buffer[count++] = (byte) c;
+        }
+    }
+
+    private void writeLabel(String prefix, int number) {
+        writeName(prefix);
+        if (number >= 0)
+            writeInt(number);
+    }
+
+    private void writeInt(int value) {
+        ensure(11);
+        if (value < 0) {
+            buffer[count++] = '-';
+            //Integer.MIN_VALUE 取反后仍是负数,按 long 处理
+            writeDigits(-(long) value);
+        } else
+            writeDigits(value);
+    }
+
+    private void writeDigits(long value) {
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10)
+            digits++;
+        int end = count + digits;
+        for (int i = end - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count = end;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+//内联: 把很小的叶子函数(里面没有 call,所以也不会递归)直接展开到调用的地方,省掉一次完整的调用帧
+//被调函数的 argument/local 放到调用者的 temp 3..7 中(编译器生成的代码只用到 temp 0..2,而且 temp 不会跨过 call 保持有效);
+//被调函数修改 pointer 0(方法)时先保存调用者的 pointer 0,展开结束后恢复
+public class VmInliner {
+    public static final int DEFAULT_MAX_SIZE = 8;
+    private static final int FIRST_TEMP = 3;
+    private static final int TEMP_COUNT = 8;
+
+    private final int maxSize;
+    private final List<String> sites = new ArrayList<>();
+
+    //maxSize: 被调函数最多有几条指令(不算 function)
+    public VmInliner(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void inline(Map<String, VmLinker.Function> functions) {
+        for (VmLinker.Function caller : functions.values()) {
+            List<VmInstruction> result = new ArrayList<>();
+            int siteCount = 0;
+            for (VmInstruction instruction : caller.instructions) {
+                VmLinker.Function callee = instruction.kind == VmInstruction.Kind.CALL ? functions.get(instruction.qualifiedName()) : null;
+                if (callee == null || !canInline(caller, callee, instruction.number)) {
+                    result.add(instruction);
+                    continue;
+                }
+                expand(callee, instruction.number, "INLINE" + siteCount++ + "_", result);
+                sites.add("inline: " + caller.name + " <- " + callee.name + " (" + (callee.instructions.size() - 1) + " instructions)");
+            }
+            if (siteCount > 0) {
+                caller.instructions.clear();
+                caller.instructions.addAll(result);
+                caller.modified = true;
+            }
+        }
+    }
+
+    private boolean canInline(VmLinker.Function caller, VmLinker.Function callee, int nArgs) {
+        if (callee == caller || callee.instructions.size() - 1 > maxSize
+                || callee.instructions.get(callee.instructions.size() - 1).kind != VmInstruction.Kind.RETURN)
+            return false;
+        int nLocals = callee.instructions.get(0).number;
+        int slots = nArgs + nLocals + (setsThis(callee) ? 1 : 0);
+        if (FIRST_TEMP + slots > TEMP_COUNT)
+            return false;
+        for (int i = 1; i < callee.instructions.size(); i++) {
+            VmInstruction instruction = callee.instructions.get(i);
+            if (instruction.kind == VmInstruction.Kind.CALL)
+                return false;
+            //static 按文件区分,别的类的 static 在调用者里引用不到
+            if (instruction.segment == VmEmitter.Segment.STATIC && !callee.className.equals(caller.className))
+                return false;
+            if (instruction.segment == VmEmitter.Segment.TEMP && instruction.number >= FIRST_TEMP)
+                return false;
+            if (instruction.segment == VmEmitter.Segment.ARGUMENT && instruction.number >= nArgs)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean setsThis(VmLinker.Function callee) {
+        for (VmInstruction instruction : callee.instructions) {
+            if (instruction.isPop(VmEmitter.Segment.POINTER, 0))
+                return true;
+        }
+        return false;
+    }
+
+    //调用时参数已经在栈上: 先存到 temp,局部变量清零,再展开函数体,return 改成跳到末尾
+    private void expand(VmLinker.Function callee, int nArgs, String labelPrefix, List<VmInstruction> out) {
+        int nLocals = callee.instructions.get(0).number;
+        int saveThis = setsThis(callee) ? FIRST_TEMP + nArgs + nLocals : -1;
+        if (saveThis >= 0) {
+            out.add(VmInstruction.push(VmEmitter.Segment.POINTER, 0));
+            out.add(VmInstruction.pop(VmEmitter.Segment.TEMP, saveThis));
+        }
+        for (int i = nArgs - 1; i >= 0; i--)
+            out.add(VmInstruction.pop(VmEmitter.Segment.TEMP, FIRST_TEMP + i));
+        for (int i = 0; i < nLocals; i++) {
+            out.add(VmInstruction.push(VmEmitter.Segment.CONSTANT, 0));
+            out.add(VmInstruction.pop(VmEmitter.Segment.TEMP, FIRST_TEMP + nArgs + i));
+        }
+
+        int last = callee.instructions.size() - 1;
+        boolean needsEnd = false;
+        for (int i = 1; i <= last; i++) {
+            VmInstruction instruction = callee.instructions.get(i);
+            switch (instruction.kind) {
+                case PUSH:
+                case POP:
+                    VmEmitter.Segment segment = instruction.segment;
+                    int index = instruction.number;
+                    if (segment == VmEmitter.Segment.ARGUMENT) {
+                        segment = VmEmitter.Segment.TEMP;
+                        index = FIRST_TEMP + index;
+                    } else if (segment == VmEmitter.Segment.LOCAL) {
+                        segment = VmEmitter.Segment.TEMP;
+                        index = FIRST_TEMP + nArgs + index;
+                    }
+                    out.add(instruction.kind == VmInstruction.Kind.PUSH ? VmInstruction.push(segment, index) : VmInstruction.pop(segment, index));
+                    break;
+                case LABEL:
+                case GOTO:
+                case IF_GOTO:
+                    String label = instruction.number < 0 ? instruction.name : instruction.name + instruction.number;
+                    out.add(VmInstruction.jump(instruction.kind, labelPrefix + label, -1));
+                    break;
+                case RETURN:
+                    //返回值留在栈顶
+                    if (i != last) {
+                        out.add(VmInstruction.jump(VmInstruction.Kind.GOTO, labelPrefix + "END", -1));
+                        needsEnd = true;
+                    }
+                    break;
+                default:
+                    out.add(instruction);
+            }
+        }
+        if (needsEnd)
+            out.add(VmInstruction.jump(VmInstruction.Kind.LABEL, labelPrefix + "END", -1));
+        if (saveThis >= 0) {
+            out.add(VmInstruction.push(VmEmitter.Segment.TEMP, saveThis));
+            out.add(VmInstruction.pop(VmEmitter.Segment.POINTER, 0));
+        }
+    }
+
+    //每个调用点一行
+    public List<String> sites() {
+        return sites;
+    }
+}
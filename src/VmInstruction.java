@@ -0,0 +1,179 @@
+//一条 vm 指令,优化时在内存里保存一小段指令用
+//标签保存成前缀 + 编号(例如 WHILE_EXP + 0),编号为 -1 时标签就是前缀本身
+public class VmInstruction {
+    public enum Kind {
+        PUSH, POP, ARITHMETIC, LABEL, GOTO, IF_GOTO, FUNCTION, CALL, RETURN
+    }
+
+    public Kind kind;
+    public VmEmitter.Segment segment;
+    public VmEmitter.Command command;
+    //标签前缀,或者 function/call 的类名
+    public String name;
+    //function/call 的函数名
+    public String function;
+    //push/pop 的下标,标签编号,function 的局部变量个数,call 的参数个数
+    public int number;
+
+    public static VmInstruction push(VmEmitter.Segment segment, int index) {
+        VmInstruction instruction = new VmInstruction(Kind.PUSH);
+        instruction.segment = segment;
+        instruction.number = index;
+        return instruction;
+    }
+
+    public static VmInstruction pop(VmEmitter.Segment segment, int index) {
+        VmInstruction instruction = new VmInstruction(Kind.POP);
+        instruction.segment = segment;
+        instruction.number = index;
+        return instruction;
+    }
+
+    public static VmInstruction arithmetic(VmEmitter.Command command) {
+        VmInstruction instruction = new VmInstruction(Kind.ARITHMETIC);
+        instruction.command = command;
+        return instruction;
+    }
+
+    //LABEL/GOTO/IF_GOTO
+    public static VmInstruction jump(Kind kind, String prefix, int number) {
+        VmInstruction instruction = new VmInstruction(kind);
+        instruction.name = prefix;
+        instruction.number = number;
+        return instruction;
+    }
+
+    //FUNCTION/CALL
+    public static VmInstruction function(Kind kind, String className, String function, int number) {
+        VmInstruction instruction = new VmInstruction(kind);
+        instruction.name = className;
+        instruction.function = function;
+        instruction.number = number;
+        return instruction;
+    }
+
+    public static VmInstruction ret() {
+        return new VmInstruction(Kind.RETURN);
+    }
+
+    //解析一行 vm 代码(不含注释和空行);读进来的标签没有编号,整个标签放在 name 中
+    public static VmInstruction parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        switch (parts[0]) {
+            case "push":
+            case "pop":
+                VmEmitter.Segment segment = parts.length == 3 ? VmEmitter.Segment.of(parts[1]) : null;
+                if (segment == null)
+                    break;
+                int index = Integer.parseInt(parts[2]);
+                return parts[0].equals("push") ? push(segment, index) : pop(segment, index);
+            case "label":
+                return jump(Kind.LABEL, parts[1], -1);
+            case "goto":
+                return jump(Kind.GOTO, parts[1], -1);
+            case "if-goto":
+                return jump(Kind.IF_GOTO, parts[1], -1);
+            case "function":
+            case "call":
+                int dot = parts[1].indexOf('.');
+                if (parts.length != 3 || dot < 0)
+                    break;
+                return function(parts[0].equals("function") ? Kind.FUNCTION : Kind.CALL,
+                        parts[1].substring(0, dot), parts[1].substring(dot + 1), Integer.parseInt(parts[2]));
+            case "return":
+                return ret();
+            default:
+                VmEmitter.Command command = VmEmitter.Command.of(parts[0]);
+                if (command != null)
+                    return arithmetic(command);
+        }
+        throw new RuntimeException("bad vm instruction: " + line);
+    }
+
+    //function/call 的完整名字,例如 Main.main
+    public String qualifiedName() {
+        return name + "." + function;
+    }
+
+    private VmInstruction(Kind kind) {
+        this.kind = kind;
+    }
+
+    public boolean isPush(VmEmitter.Segment segment) {
+        return kind == Kind.PUSH && this.segment == segment;
+    }
+
+    public boolean isPush(VmEmitter.Segment segment, int index) {
+        return kind == Kind.PUSH && this.segment == segment && number == index;
+    }
+
+    public boolean isPop(VmEmitter.Segment segment, int index) {
+        return kind == Kind.POP && this.segment == segment && number == index;
+    }
+
+    public boolean is(VmEmitter.Command command) {
+        return kind == Kind.ARITHMETIC && this.command == command;
+    }
+
+    //两条跳转类指令指向同一个标签
+    public boolean sameLabel(VmInstruction other) {
+        return name.equals(other.name) && number == other.number;
+    }
+
+    public void emit(VmEmitter out) {
+        switch (kind) {
+            case PUSH:
+                out.push(segment, number);
+                break;
+            case POP:
+                out.pop(segment, number);
+                break;
+            case ARITHMETIC:
+                out.arithmetic(command);
+                break;
+            case LABEL:
+                out.label(name, number);
+                break;
+            case GOTO:
+                out.gotoLabel(name, number);
+                break;
+            case IF_GOTO:
+                out.ifGoto(name, number);
+                break;
+            case FUNCTION:
+                out.function(name, function, number);
+                break;
+            case CALL:
+                out.call(name, function, number);
+                break;
+            case RETURN:
+                out.ret();
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String label = number < 0 ? name : name + number;
+        switch (kind) {
+            case PUSH:
+                return "push " + segment.name + " " + number;
+            case POP:
+                return "pop " + segment.name + " " + number;
+            case ARITHMETIC:
+                return command.name;
+            case LABEL:
+                return "label " + label;
+            case GOTO:
+                return "goto " + label;
+            case IF_GOTO:
+                return "if-goto " + label;
+            case FUNCTION:
+                return "function " + name + "." + function + " " + number;
+            case CALL:
+                return "call " + name + "." + function + " " + number;
+            default:
+                return "return";
+        }
+    }
+}
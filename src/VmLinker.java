@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+//链接: 读入一次编译的所有 .vm,从 Main.main 和 Sys 的函数出发沿着 call 找出用得到的函数,
+//删掉其余的函数;可以把所有类按调用图的顺序合并成一个 .vm
+public class VmLinker {
+    public static class Function {
+        public final String name;
+        public final String className;
+        public final Path file;
+        //第一条是 function 指令
+        public final List<VmInstruction> instructions = new ArrayList<>();
+        //读入之后被改过(比如内联),需要重新写回文件
+        public boolean modified;
+
+        Function(String className, String name, Path file) {
+            this.className = className;
+            this.name = name;
+            this.file = file;
+        }
+    }
+
+    //按读入的顺序
+    private final Map<String, Function> functions = new LinkedHashMap<>();
+    private final Map<Path, List<Function>> files = new LinkedHashMap<>();
+    private Set<String> reachable;
+
+    public void addFile(Path file) throws IOException {
+        List<Function> fileFunctions = new ArrayList<>();
+        files.put(file, fileFunctions);
+        Function current = null;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf("//");
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            if (line.isBlank())
+                continue;
+            VmInstruction instruction = VmInstruction.parse(line);
+            if (instruction.kind == VmInstruction.Kind.FUNCTION) {
+                current = new Function(instruction.name, instruction.qualifiedName(), file);
+                if (functions.put(current.name, current) != null)
+                    throw new RuntimeException(file + ": duplicate function " + current.name);
+                fileFunctions.add(current);
+            } else if (current == null)
+                throw new RuntimeException(file + ": instruction outside of a function: " + line.trim());
+            current.instructions.add(instruction);
+        }
+    }
+
+    public Map<String, Function> functions() {
+        return functions;
+    }
+
+    //入口: Main.main 和所有 Sys 的函数;没有出现在这次编译里的函数(比如 OS)不管
+    public List<String> roots() {
+        List<String> roots = new ArrayList<>();
+        for (Function function : functions.values()) {
+            if (function.className.equals("Sys"))
+                roots.add(function.name);
+        }
+        if (functions.containsKey("Main.main"))
+            roots.add("Main.main");
+        if (roots.isEmpty())
+            throw new RuntimeException("link: no Main.main or Sys function to start from");
+        return roots;
+    }
+
+    //从 roots 出发深度优先遍历调用图,返回按第一次访问排序的函数
+    public List<Function> order() {
+        List<Function> order = new ArrayList<>();
+        reachable = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        List<String> roots = roots();
+        for (int i = roots.size() - 1; i >= 0; i--)
+            stack.push(roots.get(i));
+        while (!stack.isEmpty()) {
+            String name = stack.pop();
+            Function function = functions.get(name);
+            if (function == null || !reachable.add(name))
+                continue;
+            order.add(function);
+            List<String> callees = new ArrayList<>();
+            for (VmInstruction instruction : function.instructions) {
+                if (instruction.kind == VmInstruction.Kind.CALL)
+                    callees.add(instruction.qualifiedName());
+            }
+            for (int i = callees.size() - 1; i >= 0; i--)
+                stack.push(callees.get(i));
+        }
+        return order;
+    }
+
+    public List<Function> removed() {
+        if (reachable == null)
+            order();
+        List<Function> removed = new ArrayList<>();
+        for (Function function : functions.values()) {
+            if (!reachable.contains(function.name))
+                removed.add(function);
+        }
+        return removed;
+    }
+
+    //把改过的 .vm 写回去;dropUnreachable 时每个 .vm 只保留用得到的函数,顺序不变
+    public void rewriteFiles(boolean dropUnreachable) throws IOException {
+        if (dropUnreachable && reachable == null)
+            order();
+        for (Map.Entry<Path, List<Function>> entry : files.entrySet()) {
+            List<Function> kept = new ArrayList<>();
+            boolean modified = false;
+            for (Function function : entry.getValue()) {
+                if (!dropUnreachable || reachable.contains(function.name))
+                    kept.add(function);
+                modified |= function.modified;
+            }
+            if (modified || kept.size() != entry.getValue().size())
+                write(entry.getKey(), kept, null);
+        }
+    }
+
+    //合并成一个 .vm;vm 翻译器按文件名区分 static 变量,所以每个类的 static 下标要错开
+    public void writeImage(Path image) throws IOException {
+        List<Function> order = order();
+        Map<String, Integer> staticCount = new HashMap<>();
+        for (Function function : functions.values()) {
+            for (VmInstruction instruction : function.instructions) {
+                if (instruction.segment == VmEmitter.Segment.STATIC)
+                    staticCount.merge(function.className, instruction.number + 1, Math::max);
+            }
+        }
+        Map<String, Integer> staticBase = new HashMap<>();
+        int next = 0;
+        for (Function function : order) {
+            if (!staticBase.containsKey(function.className)) {
+                staticBase.put(function.className, next);
+                next += staticCount.getOrDefault(function.className, 0);
+            }
+        }
+        write(image, order, staticBase);
+    }
+
+    private void write(Path path, List<Function> functions, Map<String, Integer> staticBase) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            VmEmitter out = new VmEmitter(channel);
+            for (Function function : functions) {
+                int base = staticBase == null ? 0 : staticBase.get(function.className);
+                for (VmInstruction instruction : function.instructions) {
+                    if (base != 0 && instruction.segment == VmEmitter.Segment.STATIC) {
+                        if (instruction.kind == VmInstruction.Kind.PUSH)
+                            out.push(VmEmitter.Segment.STATIC, base + instruction.number);
+                        else
+                            out.pop(VmEmitter.Segment.STATIC, base + instruction.number);
+                    } else
+                        instruction.emit(out);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    //删掉的函数和指令数
+    public String report() {
+        List<Function> removed = removed();
+        int instructions = 0;
+        StringBuilder names = new StringBuilder();
+        for (Function function : removed) {
+            //function 指令本身不算
+            instructions += function.instructions.size() - 1;
+            names.append(names.length() == 0 ? "" : ", ").append(function.name);
+        }
+        return "link: kept " + reachable.size() + " of " + functions.size() + " functions, removed " + removed.size()
+                + " functions (" + instructions + " vm instructions)" + (removed.isEmpty() ? "" : ": " + names);
+    }
+}
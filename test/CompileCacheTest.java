@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//缓存按 key 整体淘汰: restore 把输出和签名一起算作最近用过,evict 删除一个 key 时它的所有文件一起删
+class CompileCacheTest {
+    private static final String[] SUFFIXES = {".vm", ".xml"};
+    private static final int OUTPUT_SIZE = 1000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void evictsWholeKeysAndKeepsRestoredSignatures() throws IOException {
+        Path cacheDir = dir.resolve("cache");
+        //放得下一个 key 的两个输出和签名,放不下两个
+        CompileCache cache = new CompileCache(cacheDir, 3 * OUTPUT_SIZE, "test");
+        String hot = store(cache, "Hot");
+        String cold = store(cache, "Cold");
+        //hot 存得更早,只是后来又用到了
+        age(cacheDir, hot, 2);
+        age(cacheDir, cold, 1);
+        assertTrue(cache.restore(hot, outputs("Hot"), SUFFIXES));
+
+        cache.evict();
+        for (String suffix : new String[]{".vm", ".xml", ".sig"}) {
+            assertTrue(Files.exists(cacheDir.resolve(hot + suffix)), "evicted " + suffix + " of the restored entry");
+            assertFalse(Files.exists(cacheDir.resolve(cold + suffix)), "left " + suffix + " of the evicted entry behind");
+        }
+        assertNotNull(cache.restoreSignature(hot));
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            assertEquals(3, files.count());
+        }
+    }
+
+    //name.jack 的两个输出写进缓存,连同签名;返回 key
+    private String store(CompileCache cache, String name) throws IOException {
+        String key = cache.key(ByteBuffer.wrap(("class " + name + " {}").getBytes(StandardCharsets.UTF_8)));
+        File[] outputs = outputs(name);
+        for (File output : outputs)
+            Files.writeString(output.toPath(), "x".repeat(OUTPUT_SIZE));
+        cache.store(key, outputs, SUFFIXES);
+        cache.storeSignature(key, new ClassIndex.Signature(name, 0, 0));
+        return key;
+    }
+
+    private File[] outputs(String name) {
+        return new File[]{dir.resolve(name + ".jack.vm").toFile(), dir.resolve(name + ".jack.xml").toFile()};
+    }
+
+    //把 key 的所有缓存文件改成 hours 小时之前用过
+    private static void age(Path cacheDir, String key, int hours) throws IOException {
+        FileTime time = FileTime.fromMillis(System.currentTimeMillis() - hours * 3_600_000L);
+        for (String suffix : new String[]{".vm", ".xml", ".sig"})
+            Files.setLastModifiedTime(cacheDir.resolve(key + suffix), time);
+    }
+}
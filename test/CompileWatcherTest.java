@@ -0,0 +1,129 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//--watch: 在另一个线程里监视 @TempDir,新建、修改、删除一个 .jack,.vm 跟着出现、整体替换、删除;
+//写输出文件和别的文件不会引起重新编译;线程被中断时 watch 返回 0
+class CompileWatcherTest {
+    //等一次编译的上限,正常情况下几十毫秒就够了
+    private static final long TIMEOUT_MILLIS = 10_000;
+    //watcher 每编译一批文件打印一行,以它结尾
+    private static final String REBUILD = "after the first change)";
+
+    @TempDir
+    Path dir;
+    private final ByteArrayOutputStream report = new ByteArrayOutputStream();
+
+    @Test
+    void rebuildsChangedFilesOnly() throws Exception {
+        Files.writeString(dir.resolve("Main.jack"), counter("Main", 0));
+        Main.Options options = Main.Options.parse(new String[]{"--watch", "--no-cache", dir.toString()});
+        options.out = new PrintStream(report, true, StandardCharsets.UTF_8);
+        int[] status = {-1};
+        Thread watcher = new Thread(() -> {
+            try {
+                status[0] = Main.run(options);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        watcher.start();
+        try {
+            await(() -> report().contains("watching "), "watcher did not start");
+            Path source = dir.resolve("Counter.jack");
+            Path vm = dir.resolve("Counter.jack.vm");
+
+            //新建
+            Files.writeString(source, counter("Counter", 1));
+            await(() -> Files.exists(vm), "output of a new file did not appear");
+            String first = compiledVm(source);
+            await(() -> read(vm).equals(first), "output of a new file is wrong");
+
+            //修改: 一直读 .vm,每次读到的都是完整的旧内容或者新内容
+            Files.writeString(source, counter("Counter", 2));
+            String second = compiledVm(source);
+            await(() -> {
+                String text = read(vm);
+                assertTrue(text.equals(first) || text.equals(second), "read a partial output:\n" + text);
+                return text.equals(second);
+            }, "output was not updated");
+
+            //写输出文件和不是 .jack 的文件: 等过一次最长的防抖时间,没有新的编译
+            int builds = count(report(), REBUILD);
+            Files.writeString(vm, second);
+            Files.writeString(dir.resolve("notes.txt"), "not jack");
+            Thread.sleep(CompileWatcher.MAX_DELAY_MILLIS * 3);
+            assertEquals(builds, count(report(), REBUILD), report());
+            //没有改过的 Main.jack 一直没有重新编译
+            assertEquals(0, count(report(), "Main.jack compiled"), report());
+
+            //删除
+            Files.delete(source);
+            await(() -> !Files.exists(vm), "output of a deleted file was not removed");
+            await(() -> report().contains("Counter.jack deleted, output removed"), "deletion was not reported");
+            //临时文件都已经改名或者删掉了
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(Set.of("Main.jack", "Main.jack.vm", "notes.txt"),
+                        files.map(p -> p.getFileName().toString()).collect(Collectors.toSet()));
+            }
+        } finally {
+            watcher.interrupt();
+            watcher.join(TIMEOUT_MILLIS);
+        }
+        assertFalse(watcher.isAlive());
+        assertEquals(0, status[0], report());
+    }
+
+    //name.value() 返回 value 的类
+    private static String counter(String name, int value) {
+        return "class " + name + " {\n    function int value() {\n        return " + value + ";\n    }\n}\n";
+    }
+
+    //单独编译 source 得到的 .vm,和 watcher 写出的比较
+    private static String compiledVm(Path source) throws IOException {
+        char[] chars = JackSource.decode(ByteBuffer.wrap(Files.readAllBytes(source)));
+        return new CompilationEngine().compile(new JackParser().parse(new JackTokenizer(chars).getTokens()));
+    }
+
+    private String report() {
+        return report.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String read(Path path) {
+        try {
+            return Files.readString(path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int count(String text, String part) {
+        int n = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1))
+            n++;
+        return n;
+    }
+
+    private void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, message + ":\n" + report());
+            Thread.sleep(5);
+        }
+    }
+}
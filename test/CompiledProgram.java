@@ -0,0 +1,78 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+//测试用: 把几个类写进一个目录,按命令行选项(不用缓存)调用 Main 编译,再在 VmInterpreter 或 HackCpu 上从 Main.main 开始运行
+//运行的结果是 Output 的输出加上 "-> 返回值",两种后端、打开和关闭某个选项的结果可以直接比较
+class CompiledProgram {
+    static final long MAX_STEPS = 10_000_000;
+
+    final Path dir;
+    //Main 打印的报告
+    final String report;
+    private VmInterpreter interpreter;
+    private HackCpu cpu;
+
+    private CompiledProgram(Path dir, String report) {
+        this.dir = dir;
+        this.report = report;
+    }
+
+    //sources: 类名 -> 源代码;编译失败时测试失败
+    static CompiledProgram compile(Path dir, Map<String, String> sources, String... options) throws IOException {
+        Files.createDirectories(dir);
+        for (Map.Entry<String, String> entry : sources.entrySet())
+            Files.writeString(dir.resolve(entry.getKey() + ".jack"), entry.getValue());
+        String[] args = new String[options.length + 2];
+        System.arraycopy(options, 0, args, 0, options.length);
+        args[options.length] = "--no-cache";
+        args[options.length + 1] = dir.toString();
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        Main.Options parsed = Main.Options.parse(args);
+        parsed.out = new PrintStream(report, true, StandardCharsets.UTF_8);
+        int status = Main.run(parsed);
+        String text = report.toString(StandardCharsets.UTF_8);
+        assertEquals(0, status, "compile failed:\n" + text);
+        return new CompiledProgram(dir, text);
+    }
+
+    //只有一个 Main 类,body 是 Main.main 的函数体
+    static CompiledProgram compileMain(Path dir, String body, String... options) throws IOException {
+        return compile(dir, Map.of("Main", "class Main {\n    function int main() {\n" + body.indent(8) + "    }\n}\n"), options);
+    }
+
+    //在 VmInterpreter 上运行目录里所有的 .vm
+    String runVm() throws IOException {
+        interpreter = new VmInterpreter();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.jack.vm")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                interpreter.load(name.substring(0, name.length() - ".jack.vm".length()), Files.readString(file));
+            }
+        }
+        int result = interpreter.run("Main.main", MAX_STEPS);
+        return interpreter.output() + "-> " + result;
+    }
+
+    //在 HackCpu 上运行 --emit=asm 合成的 <目录名>.asm
+    String runAsm() throws IOException {
+        cpu = new HackCpu(Files.readString(dir.resolve(dir.toRealPath().getFileName() + ".asm")));
+        int result = cpu.run(MAX_STEPS * 20);
+        return cpu.output() + "-> " + result;
+    }
+
+    VmInterpreter interpreter() {
+        return interpreter;
+    }
+
+    HackCpu cpu() {
+        return cpu;
+    }
+}
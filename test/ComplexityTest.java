@@ -0,0 +1,81 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//Benchmark --complexity 的测试版: JackGenerator 的每个参数单独翻倍 Benchmark.SCALE_STEPS 次,
+//每个阶段数自己做了多少步工作(计数是确定的,不受机器快慢影响),除以这个阶段的规模后不随任何参数增长:
+//- 分词: DFA 看过的字符加上 SymbolPool 看过的槽,按源文件字符数算
+//- 解析: JackParser 看 token 的次数,按 token 数算
+//- 绑定: SymbolBinder 的登记、查找和访问的节点,按 token 数算
+//- 生成代码: CompilationEngine 编译的语句、term 和求常量值的次数,按生成的指令数算,不优化和 -O 都检查
+//小输入里固定开销占的比例大(例如嵌套浅时括号少,每条指令对应的 term 也少),比值要到较大的一半才稳定下来,
+//所以和 Benchmark 的拟合一样只比较较大的一半: 比值起伏在几个百分点以内,超线性的阶段每翻倍一次就会远超 MAX_GROWTH;
+//耗时的增长指数只在 Benchmark --complexity 里测,共用的机器上太容易误报
+class ComplexityTest {
+    private static final double MAX_GROWTH = 1.1;
+    private static final String[] STAGES = {"tokenize", "parse", "bind", "vm", "vm -O"};
+
+    @Test
+    void workPerUnitStaysConstant() {
+        for (String parameter : JackGenerator.PARAMETERS) {
+            List<double[]> ratios = new ArrayList<>();
+            StringBuilder report = new StringBuilder();
+            for (int step = 0; step <= Benchmark.SCALE_STEPS; step++) {
+                JackGenerator generator = Benchmark.scaled(parameter, step);
+                long chars = 0, tokens = 0, instructions = 0, optimizedInstructions = 0;
+                long tokenizerSteps = 0, inspections = 0, binderSteps = 0, codegenSteps = 0, optimizedSteps = 0;
+                SymbolPool pool = new SymbolPool();
+                for (String source : generator.generate().values()) {
+                    char[] decoded = JackSource.decode(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+                    JackTokenizer tokenizer = new JackTokenizer(decoded, pool);
+                    TokenBuffer buffer = tokenizer.getTokens();
+                    JackParser parser = new JackParser();
+                    JackNode.ClassNode classNode = parser.parse(buffer);
+                    SymbolBinder binder = new SymbolBinder();
+                    binder.beginClass(classNode);
+                    for (JackNode.SubroutineNode subroutine : classNode.subroutines)
+                        binder.bind(subroutine);
+                    CompilationEngine engine = new CompilationEngine();
+                    VmEmitter emitter = new VmEmitter();
+                    engine.compile(classNode, emitter);
+                    CompilationEngine optimizer = new CompilationEngine(true);
+                    VmEmitter optimized = new VmEmitter();
+                    optimizer.compile(classNode, optimized);
+
+                    chars += decoded.length;
+                    tokens += buffer.size();
+                    instructions += emitter.instructions();
+                    optimizedInstructions += optimized.instructions();
+                    tokenizerSteps += tokenizer.steps();
+                    inspections += parser.inspections();
+                    binderSteps += binder.steps();
+                    codegenSteps += engine.steps();
+                    optimizedSteps += optimizer.steps();
+                }
+                tokenizerSteps += pool.probes();
+                double[] ratio = {
+                        (double) tokenizerSteps / chars, (double) inspections / tokens, (double) binderSteps / tokens,
+                        (double) codegenSteps / instructions, (double) optimizedSteps / optimizedInstructions
+                };
+                ratios.add(ratio);
+                report.append(String.format(Locale.ROOT, "%n  %d: %d chars, %d tokens, %d instructions;"
+                                + " tokenize %.3f/char, parse %.3f/token, bind %.3f/token, vm %.3f/instruction, -O %.3f/instruction",
+                        generator.get(parameter), chars, tokens, instructions,
+                        ratio[0], ratio[1], ratio[2], ratio[3], ratio[4]));
+            }
+            int from = Benchmark.SCALE_STEPS / 2;
+            for (int step = from + 1; step < ratios.size(); step++) {
+                for (int stage = 0; stage < STAGES.length; stage++) {
+                    assertTrue(ratios.get(step)[stage] <= ratios.get(from)[stage] * MAX_GROWTH,
+                            parameter + ": " + STAGES[stage] + " work per unit grew:" + report);
+                }
+            }
+        }
+    }
+}
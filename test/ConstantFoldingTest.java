@@ -0,0 +1,161 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+//-O 的常量折叠和乘以常量的加法链: 同一个 Main.main 不优化和 -O 各编译一次(同时输出 vm 和 asm),
+//VmInterpreter 和 HackCpu 上的输出和返回值都必须相同,折叠按 16 位补码计算,和运行时的结果一致
+class ConstantFoldingTest {
+    //乘以这些常量时每个值各算一次
+    private static final String VALUES = """
+            var Array values;
+            var int i, n, x;
+            let n = 7;
+            let values = Array.new(n);
+            let values[0] = 0;
+            let values[1] = 1;
+            let values[2] = -1;
+            let values[3] = 3;
+            let values[4] = -7;
+            let values[5] = 32767;
+            let values[6] = -32767 - 1;
+            """;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void foldsWithWraparound() throws IOException {
+        CompiledProgram optimized = check("""
+                var int x;
+                do Output.printInt(-32767 - 1);
+                do Output.printInt(32767 + 1);
+                do Output.printInt((32767 + 1) - 1);
+                do Output.printInt(-(-32767 - 1));
+                do Output.printInt(~(32767 + 1));
+                do Output.printInt(300 * 300);
+                do Output.printInt((-32767 - 1) / -1);
+                let x = 32767;
+                do Output.printInt(x + 1);
+                do Output.printInt((-x) - 1 - 1);
+                return (32767 + 1) + (-32767 - 1);
+                """);
+        assertEquals(0, optimized.interpreter().calls("Math.multiply"));
+        assertEquals(0, optimized.interpreter().calls("Math.divide"));
+    }
+
+    //x * 0/1/-1/-5/16384 和常量在左边的 5 * x 展开成加法链,不调用 Math.multiply
+    @Test
+    void multiplyByConstants() throws IOException {
+        CompiledProgram optimized = check(VALUES + """
+                while (i < n) {
+                    let x = values[i];
+                    do Output.printInt(x * 0);
+                    do Output.printInt(x * 1);
+                    do Output.printInt(x * -1);
+                    do Output.printInt(x * -5);
+                    do Output.printInt(x * 16384);
+                    do Output.printInt(5 * x);
+                    do Output.printInt(values[i] * 6);
+                    do Output.println();
+                    let i = i + 1;
+                }
+                return x * 3;
+                """);
+        assertEquals(0, optimized.interpreter().calls("Math.multiply"));
+    }
+
+    //二进制里超过 3 个 1 的常量(32767、15)还是调用 Math.multiply
+    @Test
+    void multiplyFallsBackAboveThreeBits() throws IOException {
+        CompiledProgram optimized = check(VALUES + """
+                while (i < n) {
+                    let x = values[i];
+                    do Output.printInt(x * 32767);
+                    do Output.printInt(x * 15);
+                    do Output.printInt(x * 7);
+                    let i = i + 1;
+                }
+                return x;
+                """);
+        assertEquals(14, optimized.interpreter().calls("Math.multiply"));
+    }
+
+    //加法链要用被乘数好几次,有副作用的被乘数只能算一次
+    @Test
+    void multiplicandWithSideEffectsIsEvaluatedOnce() throws IOException {
+        check("""
+                do Output.printInt(Main.next() * 5);
+                do Output.printInt(Main.next() * 0);
+                do Output.printInt(3 * Main.next());
+                do Output.printInt(Main.next() * -1);
+                do Output.printInt(Main.next() * 16384);
+                do Output.printInt(Main.next() * 1);
+                return Main.next();
+                """, """
+                function int next() {
+                    let counter = counter + 1;
+                    return counter;
+                }
+                """);
+    }
+
+    //除以 1 和 -1 不调用 Math.divide,其它常量照常调用
+    @Test
+    void divideByConstants() throws IOException {
+        CompiledProgram optimized = check(VALUES + """
+                while (i < n) {
+                    let x = values[i];
+                    do Output.printInt(x / 1);
+                    do Output.printInt(x / -1);
+                    do Output.printInt(x / 7);
+                    do Output.printInt(x / -3);
+                    let i = i + 1;
+                }
+                return 100 / 7;
+                """);
+        assertEquals(14, optimized.interpreter().calls("Math.divide"));
+    }
+
+    //折叠出来的比较和运行时(vm 解释器和 asm 后端)的比较必须一致,包括 x-y 超出 16 位的时候
+    @Test
+    void foldedComparisonsMatchTheBackends() throws IOException {
+        CompiledProgram optimized = check("""
+                do Output.printInt(32767 > (-32767 - 1));
+                do Output.printInt((-32767 - 1) < 32767);
+                do Output.printInt(30000 > -30000);
+                do Output.printInt(-30000 < 30000);
+                do Output.printInt((-32767 - 1) < 1);
+                do Output.printInt((32767 + 1) > 32767);
+                do Output.printInt((-32767 - 1) = (32767 + 1));
+                do Output.printInt(-1 > (-32767 - 1));
+                do Output.printInt(0 < -32767);
+                return (1 < 2) & (32767 > -1);
+                """);
+        String vm = Files.readString(optimized.dir.resolve("Main.jack.vm"));
+        assertFalse(vm.contains("gt") || vm.contains("lt") || vm.contains("eq"), "comparisons were not folded:\n" + vm);
+    }
+
+    private CompiledProgram check(String body) throws IOException {
+        return check(body, "");
+    }
+
+    //body 是 Main.main 的函数体,subroutines 是 Main 的其它 subroutine;Main 有一个 static int counter;返回 -O 的编译结果
+    private CompiledProgram check(String body, String subroutines) throws IOException {
+        String source = "class Main {\n    static int counter;\n" + subroutines.indent(4)
+                + "    function int main() {\n" + body.indent(8) + "    }\n}\n";
+        CompiledProgram plain = CompiledProgram.compile(dir.resolve("plain"), Map.of("Main", source), "--emit=vm,asm");
+        CompiledProgram optimized = CompiledProgram.compile(dir.resolve("optimized"), Map.of("Main", source), "--emit=vm,asm", "-O");
+        String expected = plain.runVm();
+        assertEquals(expected, optimized.runVm(), "-O changed the vm result");
+        assertEquals(expected, plain.runAsm(), "asm differs from vm");
+        assertEquals(expected, optimized.runAsm(), "asm differs from vm under -O");
+        return optimized;
+    }
+}
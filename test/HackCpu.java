@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//测试用的 Hack 汇编器和 CPU: 按课本的规则汇编 .asm(预定义符号、(LABEL)、变量从 16 开始分配),再逐条执行机器指令
+//数值都是 16 位补码;程序里引用了但没有定义的 OS 函数(VmInterpreter.Os 中的函数)分配到程序之后的地址,
+//跳到这些地址时在 Java 里执行,再从 $RETURN 返回,所以 .asm 里的 $CALL/$RETURN 和调用点照常执行
+//程序从 0 开始执行,到 HackEmitter.writeImage 生成的 $halt 时停止,这时 D 是入口函数的返回值
+public class HackCpu {
+    private static final Map<String, Integer> PREDEFINED = new HashMap<>();
+
+    static {
+        String[] pointers = {"SP", "LCL", "ARG", "THIS", "THAT"};
+        for (int i = 0; i < pointers.length; i++)
+            PREDEFINED.put(pointers[i], i);
+        for (int i = 0; i < 16; i++)
+            PREDEFINED.put("R" + i, i);
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+    }
+
+    private final short[] ram = new short[32768];
+    private final VmInterpreter.Os os = new VmInterpreter.Os(ram);
+    //A 指令是 value,C 指令是 comp/dest/jump
+    private final List<Instruction> rom = new ArrayList<>();
+    private final Map<String, Integer> symbols = new HashMap<>(PREDEFINED);
+    //OS 函数的地址 -> 函数名
+    private final Map<Integer, String> traps = new HashMap<>();
+    private long steps;
+
+    private static class Instruction {
+        final boolean isAddress;
+        final String symbol;
+        int value;
+        final String comp;
+        final boolean destA, destD, destM;
+        final String jump;
+
+        Instruction(String symbol, int value) {
+            this.isAddress = true;
+            this.symbol = symbol;
+            this.value = value;
+            this.comp = null;
+            this.destA = this.destD = this.destM = false;
+            this.jump = null;
+        }
+
+        Instruction(String dest, String comp, String jump) {
+            this.isAddress = false;
+            this.symbol = null;
+            this.comp = comp;
+            this.destA = dest.contains("A");
+            this.destD = dest.contains("D");
+            this.destM = dest.contains("M");
+            this.jump = jump;
+        }
+    }
+
+    public HackCpu(String asm) {
+        for (String line : asm.split("\\R")) {
+            int comment = line.indexOf("//");
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            line = line.strip();
+            if (line.isEmpty())
+                continue;
+            if (line.startsWith("(")) {
+                String label = line.substring(1, line.length() - 1);
+                if (symbols.put(label, rom.size()) != null)
+                    throw new RuntimeException("duplicate label " + label);
+            } else if (line.startsWith("@")) {
+                String operand = line.substring(1);
+                rom.add(Character.isDigit(operand.charAt(0)) ? new Instruction(null, Integer.parseInt(operand)) : new Instruction(operand, 0));
+            } else {
+                int equals = line.indexOf('='), semicolon = line.indexOf(';');
+                String dest = equals < 0 ? "" : line.substring(0, equals);
+                String comp = line.substring(equals + 1, semicolon < 0 ? line.length() : semicolon);
+                rom.add(new Instruction(dest, comp, semicolon < 0 ? "" : line.substring(semicolon + 1)));
+            }
+        }
+        int nextVariable = 16;
+        for (Instruction instruction : rom) {
+            if (instruction.symbol == null)
+                continue;
+            Integer address = symbols.get(instruction.symbol);
+            if (address == null) {
+                if (VmInterpreter.Os.arity(instruction.symbol) >= 0) {
+                    address = rom.size() + traps.size();
+                    traps.put(address, instruction.symbol);
+                } else
+                    address = nextVariable++;
+                symbols.put(instruction.symbol, address);
+            }
+            instruction.value = address;
+        }
+    }
+
+    //从 0 开始执行到 $halt,返回 D;超过 maxSteps 条机器指令时抛出异常
+    public int run(long maxSteps) {
+        int halt = symbols.get("$halt");
+        int pc = 0;
+        short a = 0, d = 0;
+        while (pc != halt) {
+            if (++steps > maxSteps)
+                throw new RuntimeException("more than " + maxSteps + " instructions");
+            String trap = traps.get(pc);
+            if (trap != null) {
+                //$CALL 已经建好了帧,参数从 ARG 开始;返回值放在 D 里交给 $RETURN
+                int[] args = new int[VmInterpreter.Os.arity(trap)];
+                for (int i = 0; i < args.length; i++)
+                    args[i] = ram[ram[2] + i];
+                d = (short) os.call(trap, args);
+                pc = symbols.get(HackEmitter.RETURN);
+                continue;
+            }
+            if (pc < 0 || pc >= rom.size())
+                throw new RuntimeException("jumped outside of the program: " + pc);
+            Instruction instruction = rom.get(pc);
+            if (instruction.isAddress) {
+                a = (short) instruction.value;
+                pc++;
+                continue;
+            }
+            //写 M 和跳转都用这条指令执行之前的 A
+            int address = a & 0x7FFF;
+            short result = compute(instruction.comp, a, d, ram[address]);
+            if (instruction.destM)
+                ram[address] = result;
+            if (instruction.destD)
+                d = result;
+            if (instruction.destA)
+                a = result;
+            pc = jumps(instruction.jump, result) ? address : pc + 1;
+        }
+        return d;
+    }
+
+    public String output() {
+        return os.output();
+    }
+
+    public int calls(String name) {
+        return os.calls(name);
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    private static short compute(String comp, short a, short d, short m) {
+        switch (comp) {
+            case "0":
+                return 0;
+            case "1":
+                return 1;
+            case "-1":
+                return -1;
+            case "D":
+                return d;
+            case "A":
+                return a;
+            case "M":
+                return m;
+            case "!D":
+                return (short) ~d;
+            case "!A":
+                return (short) ~a;
+            case "!M":
+                return (short) ~m;
+            case "-D":
+                return (short) -d;
+            case "-A":
+                return (short) -a;
+            case "-M":
+                return (short) -m;
+            case "D+1":
+                return (short) (d + 1);
+            case "A+1":
+                return (short) (a + 1);
+            case "M+1":
+                return (short) (m + 1);
+            case "D-1":
+                return (short) (d - 1);
+            case "A-1":
+                return (short) (a - 1);
+            case "M-1":
+                return (short) (m - 1);
+            case "D+A":
+            case "A+D":
+                return (short) (d + a);
+            case "D+M":
+            case "M+D":
+                return (short) (d + m);
+            case "D-A":
+                return (short) (d - a);
+            case "D-M":
+                return (short) (d - m);
+            case "A-D":
+                return (short) (a - d);
+            case "M-D":
+                return (short) (m - d);
+            case "D&A":
+            case "A&D":
+                return (short) (d & a);
+            case "D&M":
+            case "M&D":
+                return (short) (d & m);
+            case "D|A":
+            case "A|D":
+                return (short) (d | a);
+            case "D|M":
+            case "M|D":
+                return (short) (d | m);
+            default:
+                throw new RuntimeException("bad comp " + comp);
+        }
+    }
+
+    private static boolean jumps(String jump, short value) {
+        switch (jump) {
+            case "":
+                return false;
+            case "JGT":
+                return value > 0;
+            case "JEQ":
+                return value == 0;
+            case "JGE":
+                return value >= 0;
+            case "JLT":
+                return value < 0;
+            case "JNE":
+                return value != 0;
+            case "JLE":
+                return value <= 0;
+            case "JMP":
+                return true;
+            default:
+                throw new RuntimeException("bad jump " + jump);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//--emit=asm: 同一个程序同时输出 .vm 和 .asm,.vm 在 VmInterpreter 上运行,合成的 .asm 在 HackCpu 上运行,
+//输出和返回值必须相同;不优化和 -O 各编译一次,-O 也不能改变结果
+class HackEmitterTest {
+    @TempDir
+    Path dir;
+
+    //每一对值都比较一次,包括 x-y 超出 16 位的组合
+    @Test
+    void comparisonsAtTheLimits() throws IOException {
+        check("""
+                var Array values;
+                var int i, j, n, x, y, count;
+                let n = 8;
+                let values = Array.new(n);
+                let values[0] = 32767;
+                let values[1] = -32767;
+                let values[2] = -32767 - 1;
+                let values[3] = 0;
+                let values[4] = 1;
+                let values[5] = -1;
+                let values[6] = 30000;
+                let values[7] = -30000;
+                let i = 0;
+                while (i < n) {
+                    let x = values[i];
+                    let j = 0;
+                    while (j < n) {
+                        let y = values[j];
+                        do Output.printInt(x > y);
+                        do Output.printInt(x < y);
+                        do Output.printInt(x = y);
+                        if (x > y) {
+                            let count = count + 1;
+                        }
+                        if (x < y) {
+                            let count = count + 100;
+                        }
+                        let j = j + 1;
+                    }
+                    do Output.println();
+                    let i = i + 1;
+                }
+                return count;
+                """);
+    }
+
+    //右边是常量时不经过栈;-32767 - 1 不优化时是运行时算出来的,-O 时是常量 -32768
+    @Test
+    void comparisonsWithConstants() throws IOException {
+        check("""
+                var int x, y, c;
+                let x = 30000;
+                let y = -30000;
+                let c = -32767 - 1;
+                do Output.printInt(x > -30000);
+                do Output.printInt(y < 30000);
+                do Output.printInt(c < 1);
+                do Output.printInt(c < 0);
+                do Output.printInt(c > -1);
+                do Output.printInt(c = (-32767 - 1));
+                do Output.printInt(c < (-32767 - 1));
+                do Output.printInt(x > 32767);
+                do Output.printInt(x < 32767);
+                do Output.printInt(y > -32767);
+                do Output.printInt(y < -32767);
+                do Output.printInt(32767 > c);
+                do Output.printInt(30000 > -30000);
+                do Output.printInt(-30000 < 30000);
+                while (x > y) {
+                    let x = y;
+                    do Output.printInt(7);
+                }
+                while (c < 1) {
+                    let c = 1;
+                    do Output.printInt(8);
+                }
+                if (y > 0) {
+                    do Output.printInt(9);
+                } else {
+                    do Output.printInt(10);
+                }
+                return x;
+                """);
+    }
+
+    //~ 作用在还没有生成出来的比较结果上: 直接用和 if-goto 合成的条件跳转,或者生成 -1/0 以后再用
+    @Test
+    void notOfPendingCompare() throws IOException {
+        check("""
+                var int a, b, c;
+                let a = 30000;
+                let b = -30000;
+                do Output.printInt(~(a > b));
+                do Output.printInt(~(a < b));
+                do Output.printInt(~(a = b));
+                do Output.printInt(~(~(a > b)));
+                if (~(a < b)) {
+                    do Output.printInt(1);
+                }
+                if (~(a > b)) {
+                    do Output.printInt(2);
+                } else {
+                    do Output.printInt(3);
+                }
+                let c = ~(b > 5);
+                while (~(a < 0)) {
+                    let a = a - 20000;
+                }
+                do Output.printInt(a);
+                return c;
+                """);
+    }
+
+    //push constant 之后紧跟 neg/not 时在编译时折叠,之后还可以是运算、pop 或者比较
+    @Test
+    void pendingConstantThenNegOrNot() throws IOException {
+        check("""
+                var int x, y;
+                let x = -1;
+                do Output.printInt(x);
+                let x = ~0;
+                do Output.printInt(x);
+                let x = -(-1);
+                do Output.printInt(x);
+                let x = ~32767;
+                do Output.printInt(x);
+                let y = 12;
+                do Output.printInt(y + (-5));
+                do Output.printInt(y - (-5));
+                do Output.printInt(y & (~4));
+                do Output.printInt(y | (~12));
+                do Output.printInt(y > (-5));
+                do Output.printInt(-(~y));
+                do Output.printInt(-(-32767 - 1));
+                do Output.printInt(~(-1));
+                if (-1) {
+                    do Output.printInt(1);
+                }
+                if (~(-1)) {
+                    do Output.printInt(2);
+                }
+                return ~7;
+                """);
+    }
+
+    @Test
+    void nestedCallsAndDeepFrames() throws IOException {
+        check(Map.of("Main", """
+                class Main {
+                    function int main() {
+                        do Output.printInt(Main.add(Main.add(1, 2), Main.add(Main.twice(3), Main.add(4, 5))));
+                        do Output.printInt(Main.depth(100));
+                        do Output.printInt(Main.fib(15));
+                        do Output.printInt(Main.sum3(Main.twice(1), Main.twice(Main.twice(2)), -3));
+                        return Main.depth(60) - Main.fib(10);
+                    }
+                    function int add(int a, int b) {
+                        return a + b;
+                    }
+                    function int twice(int a) {
+                        return Main.add(a, a);
+                    }
+                    function int sum3(int a, int b, int c) {
+                        var int s;
+                        let s = a + b;
+                        return s + c;
+                    }
+                    function int depth(int n) {
+                        var int below;
+                        if (n = 0) {
+                            return 0;
+                        }
+                        let below = Main.depth(n - 1);
+                        return below + 1;
+                    }
+                    function int fib(int n) {
+                        if (n < 2) {
+                            return n;
+                        }
+                        return Main.fib(n - 1) + Main.fib(n - 2);
+                    }
+                }
+                """));
+    }
+
+    @Test
+    void methodsAndArrays() throws IOException {
+        check(Map.of("Main", """
+                class Main {
+                    function int main() {
+                        var Point p, q;
+                        var Array a, rows;
+                        var int i, total;
+                        let p = Point.new(3, -4);
+                        let q = Point.new(10, 20);
+                        do p.move(q);
+                        do Output.printInt(p.getX());
+                        do Output.printInt(p.getY());
+                        do Output.printInt(q.sum());
+                        let a = Array.new(12);
+                        let i = 0;
+                        while (i < 12) {
+                            let a[i] = i * i;
+                            let i = i + 1;
+                        }
+                        let rows = Array.new(2);
+                        let rows[0] = a;
+                        let rows[1] = Array.new(3);
+                        let a = rows[1];
+                        let a[2] = p.sum();
+                        let i = 0;
+                        while (i < 12) {
+                            let a = rows[0];
+                            let total = total + a[i];
+                            let i = i + 1;
+                        }
+                        let a = rows[1];
+                        return total + a[2];
+                    }
+                }
+                """, "Point", """
+                class Point {
+                    field int x, y;
+                    static int count;
+                    constructor Point new(int ax, int ay) {
+                        let x = ax;
+                        let y = ay;
+                        let count = count + 1;
+                        return this;
+                    }
+                    method int getX() {
+                        return x;
+                    }
+                    method int getY() {
+                        return y;
+                    }
+                    method void move(Point other) {
+                        let x = x + other.getX();
+                        let y = y + other.getY();
+                        return;
+                    }
+                    method int sum() {
+                        return getX() + getY() + count;
+                    }
+                }
+                """));
+    }
+
+    @Test
+    void reportLabelsPlainTranslationAsEstimate() throws IOException {
+        CompiledProgram program = CompiledProgram.compileMain(dir, "return 1;", "--emit=asm");
+        assertTrue(program.report.contains("estimated plain translation"), program.report);
+    }
+
+    private void check(String mainBody) throws IOException {
+        check(Map.of("Main", "class Main {\n    function int main() {\n" + mainBody.indent(8) + "    }\n}\n"));
+    }
+
+    private void check(Map<String, String> sources) throws IOException {
+        CompiledProgram plain = CompiledProgram.compile(dir.resolve("plain"), sources, "--emit=vm,asm");
+        CompiledProgram optimized = CompiledProgram.compile(dir.resolve("optimized"), sources, "--emit=vm,asm", "-O");
+        String expected = plain.runVm();
+        assertEquals(expected, plain.runAsm(), "asm differs from vm");
+        assertEquals(expected, optimized.runVm(), "-O changed the vm result");
+        assertEquals(expected, optimized.runAsm(), "asm differs from vm under -O");
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+//一次性分词(getTokens)和流式分词(nextInto)对同一段源码给出同样的 token 和同样的错误
+class JackTokenizerTest {
+    @Test
+    void commentsAcrossLines() throws IOException {
+        String source = "/** doc\n * comment */\nclass A { // line\n  /* a\n  b */ field int x; }\n";
+        List<String> expected = List.of("class", "A", "{", "field", "int", "x", ";", "}");
+        assertEquals(expected, tokens(source));
+        assertEquals(expected, streamedTokens(source));
+    }
+
+    //文件末尾还没结束的 /* 和 /** 注释报告开始的那一行,不能把后面的内容当成注释吞掉
+    @Test
+    void unterminatedCommentIsReported() {
+        for (String source : new String[]{
+                "class A {\n}\n/* not closed\nclass B {\n}\n",
+                "class A {\n}\n/** not closed *\nclass B {\n}",
+                "class A {\n}\n/* ends with star *"}) {
+            RuntimeException error = assertThrows(RuntimeException.class, () -> tokens(source));
+            assertEquals("line 3: unterminated comment", error.getMessage());
+            error = assertThrows(RuntimeException.class, () -> streamedTokens(source));
+            assertEquals("line 3: unterminated comment", error.getMessage());
+        }
+    }
+
+    @Test
+    void unterminatedStringIsReported() {
+        String source = "class A {\n  function void f() {\n    do Output.printString(\"abc);\n  }\n}\n";
+        RuntimeException error = assertThrows(RuntimeException.class, () -> tokens(source));
+        assertEquals("line 3: unterminated string constant", error.getMessage());
+        error = assertThrows(RuntimeException.class, () -> streamedTokens(source));
+        assertEquals("line 3: unterminated string constant", error.getMessage());
+    }
+
+    //最后一行没有换行符时也算一行
+    @Test
+    void countsLines() throws IOException {
+        String[] sources = {"", "class A {}", "class A {\n}", "class A {\n}\n", "class A {\n}\n// tail\n\n"};
+        int[] lines = {0, 1, 2, 2, 4};
+        for (int i = 0; i < sources.length; i++) {
+            JackTokenizer tokenizer = new JackTokenizer(sources[i].toCharArray());
+            tokenizer.getTokens();
+            assertEquals(lines[i], tokenizer.lines(), sources[i]);
+            tokenizer = new JackTokenizer(new JackSourceReader(new BufferedReader(new StringReader(sources[i]))));
+            TokenBuffer buffer = new TokenBuffer(tokenizer.getPool());
+            while (tokenizer.nextInto(buffer)) {
+            }
+            assertEquals(lines[i], tokenizer.lines(), sources[i]);
+        }
+    }
+
+    private static List<String> tokens(String source) {
+        return List.copyOf(new JackTokenizer(source.toCharArray()).getTokens());
+    }
+
+    private static List<String> streamedTokens(String source) throws IOException {
+        JackTokenizer tokenizer = new JackTokenizer(new JackSourceReader(new BufferedReader(new StringReader(source))));
+        TokenBuffer buffer = new TokenBuffer(tokenizer.getPool());
+        while (tokenizer.nextInto(buffer)) {
+        }
+        return List.copyOf(buffer);
+    }
+}
@@ -0,0 +1,42 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//命令行参数: 拼错的选项、末尾缺少值的选项和第二个路径都报用法错误,不能顶替真正的输入路径
+class MainOptionsTest {
+    @Test
+    void parsesValuesAndPath() {
+        Main.Options options = Main.Options.parse(new String[]{"-j", "3", "--cache-dir", "cache", "--link-image", "out.vm", "-O", "src"});
+        assertEquals(3, options.threads);
+        assertEquals("cache", options.cacheDir);
+        assertEquals("out.vm", options.linkImage);
+        assertTrue(options.optimize && options.link);
+        assertEquals("src", options.path);
+        assertEquals(2, Main.Options.parse(new String[]{"-j2", "src"}).threads);
+    }
+
+    @Test
+    void rejectsUnknownOption() {
+        assertUsageError("unknown option --no-cach", "--no-cach", "src");
+        assertUsageError("unknown option -x", "src", "-x");
+    }
+
+    @Test
+    void rejectsMissingOperand() {
+        for (String option : new String[]{"-j", "--link-image", "--cache-dir", "--cache-size", "--queue-size"})
+            assertUsageError("option " + option + " needs a value", "src", option);
+    }
+
+    @Test
+    void rejectsSecondPath() {
+        assertUsageError("more than one input path: src, other", "src", "other");
+    }
+
+    private static void assertUsageError(String message, String... args) {
+        RuntimeException error = assertThrows(RuntimeException.class, () -> Main.Options.parse(args));
+        assertTrue(error.getMessage().startsWith(message + "\n"), error.getMessage());
+        assertTrue(error.getMessage().endsWith(Main.Options.USAGE), error.getMessage());
+    }
+}
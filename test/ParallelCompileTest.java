@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//-j N: JackGenerator 生成的同一批源文件分别顺序编译和并行编译,每个输出文件的字节必须完全相同,编译失败的文件都要报告出来
+class ParallelCompileTest {
+    private static final int THREADS = 4;
+
+    @TempDir
+    Path dir;
+    //最近一次 compile 时 Main 打印的内容
+    private String report;
+
+    @Test
+    void parallelOutputIsByteIdentical() throws IOException {
+        for (String optimize : new String[]{"", "-O"}) {
+            Path serial = corpus(dir.resolve("serial" + optimize));
+            Path parallel = corpus(dir.resolve("parallel" + optimize));
+            assertEquals(0, compile(serial, optimize, "-j", "1"), report);
+            assertEquals(0, compile(parallel, optimize, "-j", Integer.toString(THREADS)), report);
+            assertSameOutputs(serial, parallel);
+        }
+    }
+
+    //坏掉的文件不影响其它文件,顺序和并行都在最后列出它,退出码为 1
+    @Test
+    void parallelReportsFailures() throws IOException {
+        Path serial = corpus(dir.resolve("serial"));
+        Path parallel = corpus(dir.resolve("parallel"));
+        for (Path corpus : List.of(serial, parallel)) {
+            Files.writeString(corpus.resolve("Broken.jack"), "class Broken {\n    function void f() {\n        let = 1;\n    }\n}\n");
+            Files.writeString(corpus.resolve("Unclosed.jack"), "class Unclosed {\n    function void f() {\n        return;\n");
+        }
+        assertEquals(1, compile(serial, "", "-j", "1"));
+        String serialReport = report;
+        assertEquals(1, compile(parallel, "", "-j", Integer.toString(THREADS)));
+        for (String text : List.of(serialReport, report)) {
+            assertTrue(text.contains("2 file(s) failed to compile:"), text);
+            assertTrue(text.contains("Broken.jack: ") && text.contains("Unclosed.jack: "), text);
+        }
+        assertSameOutputs(serial, parallel);
+    }
+
+    //生成的类写进 dir,返回 dir
+    private static Path corpus(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        JackGenerator generator = new JackGenerator();
+        generator.classes = 12;
+        generator.statements = 48;
+        for (Map.Entry<String, String> entry : generator.generate().entrySet())
+            Files.writeString(dir.resolve(entry.getKey() + ".jack"), entry.getValue());
+        return dir;
+    }
+
+    //不用缓存,同时输出 vm 和 xml;返回退出码,Main 打印的内容留在 report 中
+    private int compile(Path corpus, String optimize, String... threads) throws IOException {
+        List<String> args = new ArrayList<>(List.of(threads));
+        if (!optimize.isEmpty())
+            args.add(optimize);
+        args.addAll(List.of("--emit=vm,xml", "--no-cache", corpus.toString()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Main.Options options = Main.Options.parse(args.toArray(new String[0]));
+        options.out = new PrintStream(out, true, StandardCharsets.UTF_8);
+        int status = Main.run(options);
+        report = out.toString(StandardCharsets.UTF_8);
+        return status;
+    }
+
+    private static void assertSameOutputs(Path expected, Path actual) throws IOException {
+        int files = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(expected, "*.jack.{vm,xml}")) {
+            for (Path file : stream) {
+                Path other = actual.resolve(file.getFileName());
+                assertTrue(Files.exists(other), "missing " + other);
+                assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(other), file.getFileName() + " differs");
+                files++;
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(actual, "*.jack.{vm,xml}")) {
+            for (Path ignored : stream)
+                files--;
+        }
+        assertEquals(0, files, "different number of outputs");
+    }
+}
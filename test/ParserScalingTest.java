@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//解析是线性的,每次放大 10 倍
+//- JackParser 看 token 的次数和 token 数之比不随规模变化(按范围反复扫描的解析器会随文件变长而增长);
+//  计数是确定的,1k、10k、100k 行,在默认的测试里运行
+//- 耗时不超过 MAX_TIME_RATIO 倍,平方级会是 100 倍;要到 1M 行(几百 MB 的堆)才看得出来,结果又受机器负载影响,
+//  所以标成 perf,默认不运行,用 mvn -B test -Pperf 单独运行
+//token 提前准备好,只测 JackParser
+class ParserScalingTest {
+    private static final int[] LINES = {1_000, 10_000, 100_000};
+    private static final int[] TIMED_LINES = {1_000, 10_000, 100_000, 1_000_000};
+    private static final double MAX_INSPECTION_GROWTH = 1.01;
+    private static final double MAX_TIME_RATIO = 15;
+    private static final int RUNS = 3;
+    private static final int LINES_PER_SUBROUTINE = 10;
+
+    @Test
+    void inspectionsAreLinearInLines() {
+        double[] perToken = new double[LINES.length];
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < LINES.length; i++) {
+            TokenBuffer input = tokenize(source(LINES[i]));
+            JackParser parser = new JackParser();
+            assertEquals(LINES[i] / LINES_PER_SUBROUTINE, parser.parse(input).subroutines.size());
+            perToken[i] = (double) parser.inspections() / input.size();
+            report.append(String.format(Locale.ROOT, " %d lines: %.3f inspections/token;", LINES[i], perToken[i]));
+        }
+        for (int i = 1; i < LINES.length; i++) {
+            assertTrue(perToken[i] <= perToken[i - 1] * MAX_INSPECTION_GROWTH, String.format(Locale.ROOT,
+                    "token inspections per token grew from %d to %d lines:%s", LINES[i - 1], LINES[i], report));
+        }
+    }
+
+    //1M 行的语法树进不了新生代,GC 的耗时取决于堆里还有什么(同一个 JVM 里先跑过别的测试时会多出好几倍),
+    //所以减掉 GC 的时间,只比较解析本身;每个规模取几次里最短的耗时
+    @Test
+    @Tag("perf")
+    void parseTimeIsLinearInLines() {
+        TokenBuffer[] inputs = new TokenBuffer[TIMED_LINES.length];
+        for (int i = 0; i < TIMED_LINES.length; i++)
+            inputs[i] = tokenize(source(TIMED_LINES[i]));
+        //先用中等规模的输入预热
+        for (int i = 0; i < 5; i++)
+            new JackParser().parse(inputs[2]);
+
+        long[] nanos = new long[TIMED_LINES.length];
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < TIMED_LINES.length; i++) {
+            nanos[i] = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                //上一次的语法树先回收掉,不算在这一次的耗时里
+                System.gc();
+                long gcStart = gcMillis();
+                long start = System.nanoTime();
+                new JackParser().parse(inputs[i]);
+                long elapsed = System.nanoTime() - start - (gcMillis() - gcStart) * 1_000_000;
+                nanos[i] = Math.min(nanos[i], Math.max(elapsed, 1));
+            }
+            report.append(String.format(Locale.ROOT, " %d lines: %.2f ms without GC;", TIMED_LINES[i], nanos[i] / 1e6));
+        }
+        //1k 行只有零点几毫秒,主要是固定开销,耗时从 10k 行开始比较
+        for (int i = 2; i < TIMED_LINES.length; i++) {
+            double ratio = (double) nanos[i] / nanos[i - 1];
+            assertTrue(ratio < MAX_TIME_RATIO, String.format(Locale.ROOT, "%d -> %d lines took %.1fx longer:%s",
+                    TIMED_LINES[i - 1], TIMED_LINES[i], ratio, report));
+        }
+    }
+
+    //一个类,每个 subroutine 正好 LINES_PER_SUBROUTINE 行,包含嵌套的 while/if、数组和带括号的表达式
+    static String source(int lines) {
+        StringBuilder sb = new StringBuilder("class Big {\n");
+        for (int i = 0; i < lines / LINES_PER_SUBROUTINE; i++) {
+            sb.append("    function int f").append(i).append("(int a, Array b) {\n");
+            sb.append("        var int x;\n");
+            sb.append("        let x = (a + ((b[a] * 2) - (a / 3)));\n");
+            sb.append("        while ((x < 100) & (~(x = a))) {\n");
+            sb.append("            if (((x & 1) = 0) | (b[x - 1] > 0)) { let b[x] = Big.f0(x, b) + x; }\n");
+            sb.append("            else { let x = x + ((a - 1) * (x + 2)); }\n");
+            sb.append("            let x = x + 1;\n");
+            sb.append("        }\n");
+            sb.append("        return x;\n");
+            sb.append("    }\n");
+        }
+        return sb.append("}\n").toString();
+    }
+
+    //所有收集器累计的 GC 时间
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(gc.getCollectionTime(), 0);
+        return millis;
+    }
+
+    private static TokenBuffer tokenize(String source) {
+        char[] chars = JackSource.decode(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+        return new JackTokenizer(chars, new SymbolPool()).getTokens();
+    }
+}
@@ -0,0 +1,208 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//每条规则一个测试: 同一段 jack 代码分别不优化和只用这条规则优化,在 VmInterpreter 上运行,输出和返回值必须相同,
+//而且规则确实改写过;编译时不折叠常量(CompilationEngine 的 optimize 为 false),只看窥孔优化本身
+//测试方法以规则名命名(push-pop -> pushPop),DEFAULT_RULES 里的每条规则都要有
+class PeepholeOptimizerTest {
+    @Test
+    void pushPop() {
+        check(PeepholeOptimizer.PUSH_POP, List.of(), """
+                var int x;
+                let x = 3;
+                let x = x;
+                do Output.printInt(x);
+                return x;
+                """);
+    }
+
+    @Test
+    void doubleNegation() {
+        check(PeepholeOptimizer.DOUBLE_NEGATION, List.of(), """
+                var int x, y;
+                let y = 1234;
+                let x = ~(~y);
+                do Output.printInt(x);
+                let x = -(-y);
+                do Output.printInt(x);
+                return x;
+                """);
+    }
+
+    @Test
+    void constantBranch() {
+        check(PeepholeOptimizer.CONSTANT_BRANCH, List.of(), """
+                var int x;
+                if (false) {
+                    let x = 1;
+                } else {
+                    let x = 2;
+                }
+                while (false) {
+                    let x = 3;
+                }
+                do Output.printInt(x);
+                return x;
+                """);
+    }
+
+    //~ 是按位取反: x 是 5 时 ~x 和 x 都不是 0,不能把 if (~x) 改写成 x 为 0 时跳转
+    @Test
+    void negatedBranch() {
+        check(PeepholeOptimizer.NEGATED_BRANCH, List.of(), """
+                var int x;
+                let x = 5;
+                if (~x) {
+                    do Output.printInt(1);
+                } else {
+                    do Output.printInt(2);
+                }
+                if (~(x = 5)) {
+                    do Output.printInt(3);
+                } else {
+                    do Output.printInt(4);
+                }
+                if (~(x < 3)) {
+                    do Output.printInt(5);
+                }
+                return x;
+                """);
+    }
+
+    @Test
+    void negatedBranchKeepsNonBooleanCondition() {
+        String source = wrap("""
+                var int x;
+                let x = 5;
+                if (~x) {
+                    do Output.printInt(1);
+                } else {
+                    do Output.printInt(2);
+                }
+                return x;
+                """);
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(new VmEmitter(), List.of(PeepholeOptimizer.NEGATED_BRANCH));
+        String optimized = compile(source, optimizer);
+        assertEquals(0, optimizer.removed());
+        assertEquals("1 -> 5", run(optimized));
+    }
+
+    @Test
+    void arrayStore() {
+        check(PeepholeOptimizer.ARRAY_STORE, List.of(), """
+                var Array a;
+                var int x;
+                let a = Array.new(4);
+                let x = 7;
+                let a[1] = x;
+                let a[2] = a[1];
+                do Output.printInt(a[1] + a[2]);
+                return a[2];
+                """);
+    }
+
+    //void 函数的返回值调用的地方不用,比较的是调用之后的状态
+    @Test
+    void voidReturn() {
+        String source = """
+                class Test {
+                    static int count;
+                    function int main() {
+                        do Test.bump();
+                        do Test.bump();
+                        do Output.printInt(count);
+                        return count;
+                    }
+                    function void bump() {
+                        let count = count + 1;
+                        do Test.show();
+                        return;
+                    }
+                    function void show() {
+                        do Output.printInt(count);
+                        return;
+                    }
+                }
+                """;
+        compare(source, PeepholeOptimizer.VOID_RETURN, List.of());
+    }
+
+    //goto L; label L 只会在别的规则改写之后出现: if (true) 的 if-goto 变成 goto,后面的 goto 执行不到
+    @Test
+    void jumpToNext() {
+        check(PeepholeOptimizer.JUMP_TO_NEXT, List.of(PeepholeOptimizer.CONSTANT_BRANCH, PeepholeOptimizer.UNREACHABLE), """
+                var int x;
+                if (true) {
+                    let x = 1;
+                }
+                do Output.printInt(x);
+                return x;
+                """);
+    }
+
+    @Test
+    void unreachable() {
+        check(PeepholeOptimizer.UNREACHABLE, List.of(), """
+                var int x;
+                let x = 4;
+                do Output.printInt(x);
+                return x;
+                do Output.printInt(9);
+                return 9;
+                """);
+    }
+
+    @Test
+    void everyDefaultRuleIsTested() {
+        for (PeepholeOptimizer.Rule rule : PeepholeOptimizer.DEFAULT_RULES) {
+            StringBuilder method = new StringBuilder();
+            for (String part : rule.name.split("-"))
+                method.append(method.length() == 0 ? part : Character.toUpperCase(part.charAt(0)) + part.substring(1));
+            assertDoesNotThrow(() -> PeepholeOptimizerTest.class.getDeclaredMethod(method.toString()), "no test for rule " + rule.name);
+        }
+    }
+
+    //body 是 Test.main 的函数体
+    private static void check(PeepholeOptimizer.Rule rule, List<PeepholeOptimizer.Rule> setup, String body) {
+        compare(wrap(body), rule, setup);
+    }
+
+    private static void compare(String source, PeepholeOptimizer.Rule rule, List<PeepholeOptimizer.Rule> setup) {
+        List<PeepholeOptimizer.Rule> rules = new ArrayList<>(setup);
+        rules.add(rule);
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(new VmEmitter(), rules);
+        String before = compile(source, null);
+        String after = compile(source, optimizer);
+        assertTrue(optimizer.removedByRule().getOrDefault(rule.name, 0) > 0, rule.name + " did not fire:\n" + after);
+        assertEquals(run(before), run(after), rule.name + " changed behavior:\n" + after);
+    }
+
+    private static String wrap(String body) {
+        return "class Test {\n    function int main() {\n" + body.indent(8) + "    }\n}\n";
+    }
+
+    //optimizer 为 null 时不优化
+    private static String compile(String source, PeepholeOptimizer optimizer) {
+        char[] chars = JackSource.decode(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+        JackNode.ClassNode classNode = new JackParser().parse(new JackTokenizer(chars, new SymbolPool()).getTokens());
+        VmEmitter out = optimizer == null ? new VmEmitter() : optimizer;
+        new CompilationEngine(false, false).compile(classNode, out);
+        out.flush();
+        return out.toString();
+    }
+
+    //输出和返回值
+    private static String run(String vm) {
+        VmInterpreter interpreter = new VmInterpreter().load("Test", vm);
+        int result = interpreter.run("Test.main", 100_000);
+        return interpreter.output() + "-> " + result;
+    }
+}
@@ -0,0 +1,85 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//--string-pool: 同一个程序不用和用字符串池各编译一次,输出和返回值必须相同,再数 String.new 被调用的次数
+class StringPoolTest {
+    private static final Map<String, String> SOURCES = Map.of("Main", """
+            class Main {
+                static int a, b;
+                function int main() {
+                    var int i;
+                    let a = 11;
+                    let b = 22;
+                    while (i < 5) {
+                        do Output.printString("loop");
+                        let i = i + 1;
+                    }
+                    do Output.printString("ab");
+                    do Main.other();
+                    do Output.printString("ab");
+                    do Other.show();
+                    do Output.printInt(a);
+                    do Output.printInt(b);
+                    return Other.count();
+                }
+                function void other() {
+                    do Output.printString("ab");
+                    do Output.printString("cd");
+                    return;
+                }
+                function void unused() {
+                    do Output.printString("never");
+                    return;
+                }
+            }
+            """, "Other", """
+            class Other {
+                static int shown;
+                function void show() {
+                    let shown = shown + 1;
+                    do Output.printString("ab");
+                    do Output.printString("ab");
+                    return;
+                }
+                function int count() {
+                    return shown;
+                }
+            }
+            """);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void poolMatchesPerUseStrings() throws IOException {
+        CompiledProgram plain = CompiledProgram.compile(dir.resolve("plain"), SOURCES, "--emit=vm,asm");
+        CompiledProgram pooled = CompiledProgram.compile(dir.resolve("pooled"), SOURCES, "--emit=vm,asm", "--string-pool");
+        String expected = plain.runVm();
+        assertEquals(expected, pooled.runVm(), "--string-pool changed the result");
+        assertEquals(expected, pooled.runAsm(), "asm differs from vm with --string-pool");
+        //5 次 loop,Main 里 3 次 ab、1 次 cd,Other 里 2 次 ab
+        assertEquals(11, plain.interpreter().calls("String.new"));
+        //每个类的每个不同的字符串常量只创建一次,在循环里也一样;没有调用过的 unused 里的字符串不创建
+        assertEquals(4, pooled.interpreter().calls("String.new"));
+        assertEquals(4, pooled.cpu().calls("String.new"));
+    }
+
+    //字符串的 static 排在类自己声明的 static 之后,同一个字符串常量共用一个;Main 的 a、b 是 0、1,loop/ab/cd/never 是 2..5
+    @Test
+    void slotsFollowClassStatics() throws IOException {
+        CompiledProgram.compile(dir, SOURCES, "--string-pool");
+        String main = Files.readString(dir.resolve("Main.jack.vm"));
+        assertTrue(main.contains("pop static 2") && main.contains("pop static 3") && main.contains("pop static 4")
+                && main.contains("pop static 5") && !main.contains("static 6"), main);
+        String other = Files.readString(dir.resolve("Other.jack.vm"));
+        assertTrue(other.contains("pop static 1") && !other.contains("static 2"), other);
+    }
+}
@@ -0,0 +1,219 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//--inline: 同一个程序不内联和内联各编译一次,在 VmInterpreter 上运行,输出和返回值必须相同;
+//再按 Main 打印的 "inline: 调用者 <- 被调函数" 检查展开了哪些调用点、哪些因为规则没有展开
+class VmInlinerTest {
+    //比默认的 8 大,带循环和提前 return 的函数也能展开
+    private static final int MAX_SIZE = 20;
+
+    @TempDir
+    Path dir;
+
+    //方法先把 pointer 0 换成对象,展开结束后恢复调用者的 this
+    @Test
+    void getterAndSetter() throws IOException {
+        CompiledProgram inlined = check(Map.of("Main", """
+                class Main {
+                    function int main() {
+                        var Box a, b;
+                        let a = Box.new(5);
+                        let b = Box.new(7);
+                        do a.set(a.get() + 10);
+                        do Output.printInt(a.get());
+                        do Output.printInt(a.plus(b));
+                        do Output.printInt(b.plus(a));
+                        return a.get() - b.get();
+                    }
+                }
+                """, "Box", """
+                class Box {
+                    field int v;
+                    constructor Box new(int x) {
+                        let v = x;
+                        return this;
+                    }
+                    method int get() {
+                        return v;
+                    }
+                    method void set(int x) {
+                        let v = x;
+                        return;
+                    }
+                    method int plus(Box other) {
+                        return other.get() + v;
+                    }
+                }
+                """));
+        assertInlined(inlined, "Main.main <- Box.get");
+        assertInlined(inlined, "Main.main <- Box.set");
+        assertInlined(inlined, "Box.plus <- Box.get");
+    }
+
+    @Test
+    void functionWithLocals() throws IOException {
+        CompiledProgram inlined = check(main("""
+                var int t;
+                let t = 3;
+                do Output.printInt(Main.mix(t, 4));
+                do Output.printInt(Main.mix(Main.mix(1, 2), t));
+                return t;
+                """, """
+                function int mix(int a, int b) {
+                    var int t;
+                    let t = a + a;
+                    return t - b;
+                }
+                """));
+        assertInlined(inlined, "Main.main <- Main.mix");
+    }
+
+    //每个调用点的标签加上自己的前缀,和调用者自己的标签、同一个函数的另一次展开都不冲突
+    @Test
+    void calleeWithLoop() throws IOException {
+        CompiledProgram inlined = check(main("""
+                var int i, total;
+                while (i < 3) {
+                    let total = total + Main.count(i + 2);
+                    let i = i + 1;
+                }
+                do Output.printInt(Main.count(5));
+                return total;
+                """, """
+                function int count(int n) {
+                    var int i;
+                    while (i < n) {
+                        let i = i + 1;
+                    }
+                    return i;
+                }
+                """));
+        assertInlined(inlined, "Main.main <- Main.count");
+    }
+
+    //不在末尾的 return 跳到展开结束的 END 标签,返回值留在栈顶
+    @Test
+    void calleeWithEarlyReturn() throws IOException {
+        CompiledProgram inlined = check(main("""
+                do Output.printInt(Main.sign(-4));
+                do Output.printInt(Main.sign(0));
+                do Output.printInt(Main.sign(9));
+                return Main.sign(-1) + Main.sign(1);
+                """, """
+                function int sign(int x) {
+                    if (x < 0) {
+                        return -1;
+                    }
+                    return 1;
+                }
+                """));
+        assertInlined(inlined, "Main.main <- Main.sign");
+    }
+
+    //参数和局部变量放在 temp 3..7,一共只有 5 个位置
+    @Test
+    void rejectsMoreThanFiveSlots() throws IOException {
+        CompiledProgram inlined = check(main("""
+                do Output.printInt(Main.five(1, 2));
+                return Main.six(1, 2, 3);
+                """, """
+                function int five(int a, int b) {
+                    var int c, d, e;
+                    let c = a;
+                    return c + b;
+                }
+                function int six(int a, int b, int c) {
+                    var int d, e, f;
+                    let d = a + b;
+                    return d + c;
+                }
+                """));
+        assertInlined(inlined, "Main.main <- Main.five");
+        assertNotInlined(inlined, "Main.main <- Main.six");
+    }
+
+    //别的类的 static 在调用者的 .vm 里是调用者自己的 static;同一个类里可以展开
+    @Test
+    void rejectsCrossClassStatic() throws IOException {
+        CompiledProgram inlined = check(Map.of("Main", """
+                class Main {
+                    static int n;
+                    function int main() {
+                        let n = 100;
+                        do Counter.bump();
+                        do Counter.bump();
+                        do Output.printInt(Counter.get());
+                        do Output.printInt(Counter.twice());
+                        return n;
+                    }
+                }
+                """, "Counter", """
+                class Counter {
+                    static int n;
+                    function void bump() {
+                        let n = n + 1;
+                        return;
+                    }
+                    function int get() {
+                        return n;
+                    }
+                    function int twice() {
+                        return Counter.get() + n;
+                    }
+                }
+                """));
+        assertNotInlined(inlined, "Main.main <- Counter.bump");
+        assertNotInlined(inlined, "Main.main <- Counter.get");
+        assertInlined(inlined, "Counter.twice <- Counter.get");
+    }
+
+    //outer 展开了 inner 之后自己也成了叶子函数,但它已经用到 temp 3 以上,再展开到 main 里会和 main 的展开冲突
+    @Test
+    void callerOfInlinedCalleeIsNotInlinedAgain() throws IOException {
+        CompiledProgram inlined = check(main("""
+                var int x;
+                let x = Main.inner(2);
+                do Output.printInt(Main.outer(x, 5));
+                return Main.outer(Main.inner(1), x);
+                """, """
+                function int inner(int a) {
+                    return a + 1;
+                }
+                function int outer(int a, int b) {
+                    return Main.inner(b) - a;
+                }
+                """));
+        assertInlined(inlined, "Main.outer <- Main.inner");
+        assertInlined(inlined, "Main.main <- Main.inner");
+        assertNotInlined(inlined, "Main.main <- Main.outer");
+    }
+
+    //Main 类: main 的函数体,后面接着其它的 subroutine;被调函数放在 main 前面,先于 main 被处理
+    private static Map<String, String> main(String body, String subroutines) {
+        return Map.of("Main", "class Main {\n" + subroutines.indent(4)
+                + "    function int main() {\n" + body.indent(8) + "    }\n}\n");
+    }
+
+    private CompiledProgram check(Map<String, String> sources) throws IOException {
+        CompiledProgram plain = CompiledProgram.compile(dir.resolve("plain"), sources);
+        CompiledProgram inlined = CompiledProgram.compile(dir.resolve("inlined"), sources, "--inline=" + MAX_SIZE);
+        assertEquals(plain.runVm(), inlined.runVm(), "--inline changed the result:\n" + inlined.report);
+        return inlined;
+    }
+
+    private static void assertInlined(CompiledProgram program, String site) {
+        assertTrue(program.report.contains("inline: " + site + " ("), site + " was not inlined:\n" + program.report);
+    }
+
+    private static void assertNotInlined(CompiledProgram program, String site) {
+        assertFalse(program.report.contains("inline: " + site + " ("), site + " should not be inlined:\n" + program.report);
+    }
+}
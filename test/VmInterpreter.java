@@ -0,0 +1,287 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//测试用的 vm 解释器: 按课本的内存布局(SP/LCL/ARG/THIS/THAT、temp 5..12、static 从 16 开始、栈从 256 开始)执行 .vm 代码,
+//数值都是 16 位补码;没有定义的函数当作 OS 函数在 Java 里实现,Output 的输出记到 output() 中,用来比较两份代码的行为
+public class VmInterpreter {
+    private static final int SP = 0, LCL = 1, ARG = 2, THIS = 3, THAT = 4;
+    private static final int TEMP = 5, STATIC = 16, STACK = 256, HEAP = 2048;
+
+    private final short[] ram = new short[32768];
+    private final List<VmInstruction> code = new ArrayList<>();
+    //每条指令所在的类,static 段按类分配
+    private final List<String> classes = new ArrayList<>();
+    private final Map<String, Integer> functions = new HashMap<>();
+    //函数名 + "$" + 标签 -> 指令下标,标签的作用域是所在的函数
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, Integer> staticBase = new HashMap<>();
+    private final List<String> functionOf = new ArrayList<>();
+    private final Os os = new Os(ram);
+    private int nextStatic = STATIC;
+    private long steps;
+
+    //加入一个类的 vm 代码
+    public VmInterpreter load(String className, String vm) {
+        String function = null;
+        for (String line : vm.split("\\R")) {
+            if (line.isBlank())
+                continue;
+            VmInstruction instruction = VmInstruction.parse(line);
+            if (instruction.kind == VmInstruction.Kind.FUNCTION) {
+                function = instruction.qualifiedName();
+                functions.put(function, code.size());
+            } else if (instruction.kind == VmInstruction.Kind.LABEL)
+                labels.put(function + "$" + instruction.name, code.size());
+            code.add(instruction);
+            classes.add(className);
+            functionOf.add(function);
+        }
+        staticBase.putIfAbsent(className, nextStatic);
+        nextStatic += 16;
+        return this;
+    }
+
+    //执行 entry(不带参数)直到它返回,返回它的返回值;超过 maxSteps 条指令时抛出异常
+    public int run(String entry, long maxSteps) {
+        ram[SP] = STACK;
+        ram[LCL] = STACK;
+        ram[ARG] = STACK;
+        //返回地址 -1 表示回到解释器
+        int pc = call(entry, 0, -1);
+        while (pc >= 0) {
+            if (++steps > maxSteps)
+                throw new RuntimeException("more than " + maxSteps + " vm instructions");
+            pc = step(pc);
+        }
+        return ram[ram[SP] - 1];
+    }
+
+    public String output() {
+        return os.output();
+    }
+
+    //OS 函数 name 被调用的次数
+    public int calls(String name) {
+        return os.calls(name);
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    private int step(int pc) {
+        VmInstruction instruction = code.get(pc);
+        switch (instruction.kind) {
+            case PUSH:
+                push(read(instruction.segment, instruction.number, pc));
+                return pc + 1;
+            case POP:
+                write(instruction.segment, instruction.number, pc, pop());
+                return pc + 1;
+            case ARITHMETIC:
+                arithmetic(instruction.command);
+                return pc + 1;
+            case LABEL:
+                return pc + 1;
+            case GOTO:
+                return label(pc, instruction);
+            case IF_GOTO:
+                return pop() != 0 ? label(pc, instruction) : pc + 1;
+            case FUNCTION:
+                for (int i = 0; i < instruction.number; i++)
+                    push(0);
+                return pc + 1;
+            case CALL:
+                return call(instruction.qualifiedName(), instruction.number, pc + 1);
+            default:
+                int frame = ram[LCL];
+                int returnAddress = ram[frame - 5];
+                ram[ram[ARG]] = (short) pop();
+                ram[SP] = (short) (ram[ARG] + 1);
+                ram[THAT] = ram[frame - 1];
+                ram[THIS] = ram[frame - 2];
+                ram[ARG] = ram[frame - 3];
+                ram[LCL] = ram[frame - 4];
+                return returnAddress;
+        }
+    }
+
+    private int label(int pc, VmInstruction instruction) {
+        String name = instruction.number < 0 ? instruction.name : instruction.name + instruction.number;
+        Integer target = labels.get(functionOf.get(pc) + "$" + name);
+        if (target == null)
+            throw new RuntimeException("undefined label " + name + " in " + functionOf.get(pc));
+        return target;
+    }
+
+    private int call(String name, int nArgs, int returnAddress) {
+        Integer target = functions.get(name);
+        if (target == null) {
+            int[] args = new int[nArgs];
+            for (int i = nArgs - 1; i >= 0; i--)
+                args[i] = pop();
+            push(os.call(name, args));
+            return returnAddress;
+        }
+        int arg = ram[SP] - nArgs;
+        push(returnAddress);
+        push(ram[LCL]);
+        push(ram[ARG]);
+        push(ram[THIS]);
+        push(ram[THAT]);
+        ram[ARG] = (short) arg;
+        ram[LCL] = ram[SP];
+        return target;
+    }
+
+    private void arithmetic(VmEmitter.Command command) {
+        if (command == VmEmitter.Command.NEG || command == VmEmitter.Command.NOT) {
+            int x = pop();
+            push(command == VmEmitter.Command.NEG ? -x : ~x);
+            return;
+        }
+        int y = pop(), x = pop();
+        switch (command) {
+            case ADD:
+                push(x + y);
+                break;
+            case SUB:
+                push(x - y);
+                break;
+            case AND:
+                push(x & y);
+                break;
+            case OR:
+                push(x | y);
+                break;
+            case EQ:
+                push(x == y ? -1 : 0);
+                break;
+            case GT:
+                push(x > y ? -1 : 0);
+                break;
+            default:
+                push(x < y ? -1 : 0);
+        }
+    }
+
+    private int address(VmEmitter.Segment segment, int index, int pc) {
+        switch (segment) {
+            case LOCAL:
+                return ram[LCL] + index;
+            case ARGUMENT:
+                return ram[ARG] + index;
+            case THIS:
+                return ram[THIS] + index;
+            case THAT:
+                return ram[THAT] + index;
+            case POINTER:
+                return THIS + index;
+            case TEMP:
+                return TEMP + index;
+            case STATIC:
+                return staticBase.get(classes.get(pc)) + index;
+            default:
+                throw new RuntimeException("no address for segment " + segment.name);
+        }
+    }
+
+    private int read(VmEmitter.Segment segment, int index, int pc) {
+        return segment == VmEmitter.Segment.CONSTANT ? index : ram[address(segment, index, pc)];
+    }
+
+    private void write(VmEmitter.Segment segment, int index, int pc, int value) {
+        ram[address(segment, index, pc)] = (short) value;
+    }
+
+    private void push(int value) {
+        ram[ram[SP]] = (short) value;
+        ram[SP]++;
+    }
+
+    private int pop() {
+        ram[SP]--;
+        return ram[ram[SP]];
+    }
+
+    //用到的 OS 函数,在 Java 里实现;HackCpu 也用它。字符串是 [长度, 容量, 字符...],堆从 2048 开始只分配不回收
+    static class Os {
+        private static final Map<String, Integer> ARITY = Map.ofEntries(
+                Map.entry("Math.multiply", 2), Map.entry("Math.divide", 2),
+                Map.entry("Memory.alloc", 1), Map.entry("Memory.deAlloc", 1),
+                Map.entry("Array.new", 1), Map.entry("Array.dispose", 1),
+                Map.entry("String.new", 1), Map.entry("String.appendChar", 2),
+                Map.entry("Output.printInt", 1), Map.entry("Output.printChar", 1),
+                Map.entry("Output.printString", 1), Map.entry("Output.println", 0));
+
+        private final short[] ram;
+        private final StringBuilder output = new StringBuilder();
+        private final Map<String, Integer> calls = new HashMap<>();
+        private int heap = HEAP;
+
+        Os(short[] ram) {
+            this.ram = ram;
+        }
+
+        //参数个数,不是 OS 函数时返回 -1
+        static int arity(String name) {
+            return ARITY.getOrDefault(name, -1);
+        }
+
+        int call(String name, int[] args) {
+            calls.merge(name, 1, Integer::sum);
+            switch (name) {
+                case "Math.multiply":
+                    return (short) (args[0] * args[1]);
+                case "Math.divide":
+                    return args[1] == 0 ? 0 : (short) (args[0] / args[1]);
+                case "Memory.alloc":
+                case "Array.new":
+                    return alloc(args[0]);
+                case "Memory.deAlloc":
+                case "Array.dispose":
+                    return 0;
+                case "String.new":
+                    int s = alloc(args[0] + 2);
+                    ram[s + 1] = (short) args[0];
+                    return s;
+                case "String.appendChar":
+                    ram[args[0] + 2 + ram[args[0]]] = (short) args[1];
+                    ram[args[0]]++;
+                    return args[0];
+                case "Output.printInt":
+                    output.append(args[0]).append(' ');
+                    return 0;
+                case "Output.printChar":
+                    output.append((char) args[0]);
+                    return 0;
+                case "Output.printString":
+                    for (int i = 0; i < ram[args[0]]; i++)
+                        output.append((char) ram[args[0] + 2 + i]);
+                    output.append(' ');
+                    return 0;
+                case "Output.println":
+                    output.append('\n');
+                    return 0;
+                default:
+                    throw new RuntimeException("undefined function " + name);
+            }
+        }
+
+        String output() {
+            return output.toString();
+        }
+
+        int calls(String name) {
+            return calls.getOrDefault(name, 0);
+        }
+
+        private int alloc(int size) {
+            int block = heap;
+            heap += Math.max(size, 1);
+            return block;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+//--link / --link-image: 删掉用不到的函数以后,改写过的 .vm 和合并成一个文件的 .vm 在 VmInterpreter 上的结果都和不链接时相同
+class VmLinkerTest {
+    //Shape.area/scale 只通过对象上的方法调用用到;dead 没有人调用,onlyFromDead 只被 dead 调用
+    private static final Map<String, String> SOURCES = Map.of("Main", """
+            class Main {
+                static int total;
+                function int main() {
+                    var Shape s, t;
+                    let s = Shape.new(3, 4);
+                    let t = Shape.new(5, 6);
+                    let total = s.area() + t.area();
+                    do Output.printInt(total);
+                    do Output.printInt(Shape.made());
+                    return total;
+                }
+                function int dead() {
+                    return Shape.onlyFromDead() + total;
+                }
+            }
+            """, "Shape", """
+            class Shape {
+                field int w, h;
+                static int made, factor;
+                constructor Shape new(int aw, int ah) {
+                    let w = aw;
+                    let h = ah;
+                    let made = made + 1;
+                    let factor = 2;
+                    return this;
+                }
+                method int area() {
+                    return scale(w) * h;
+                }
+                method int scale(int x) {
+                    return x * factor;
+                }
+                method int perimeter() {
+                    return w + w + h + h;
+                }
+                function int made() {
+                    return made;
+                }
+                function int onlyFromDead() {
+                    return factor;
+                }
+            }
+            """);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void dropsUnreachableFunctions() throws IOException {
+        String expected = CompiledProgram.compile(dir.resolve("plain"), SOURCES).runVm();
+        CompiledProgram linked = CompiledProgram.compile(dir.resolve("linked"), SOURCES, "--link");
+        assertTrue(linked.report.contains("link: kept 5 of 8 functions, removed 3 functions"), linked.report);
+
+        String main = Files.readString(linked.dir.resolve("Main.jack.vm"));
+        String shape = Files.readString(linked.dir.resolve("Shape.jack.vm"));
+        assertTrue(main.contains("function Main.main"), main);
+        assertFalse(main.contains("function Main.dead"), main);
+        for (String kept : new String[]{"Shape.new", "Shape.area", "Shape.scale", "Shape.made"})
+            assertTrue(shape.contains("function " + kept + " "), kept + " was dropped:\n" + shape);
+        for (String dropped : new String[]{"Shape.perimeter", "Shape.onlyFromDead"})
+            assertFalse(shape.contains("function " + dropped + " "), dropped + " was kept:\n" + shape);
+        assertEquals(expected, linked.runVm());
+    }
+
+    //合并后各个类的 static 下标错开,整个文件当作一个类加载
+    @Test
+    void imageRunsLikeSeparateFiles() throws IOException {
+        String expected = CompiledProgram.compile(dir.resolve("plain"), SOURCES).runVm();
+        Path image = dir.resolve("image.vm");
+        CompiledProgram.compile(dir.resolve("linked"), SOURCES, "--link-image", image.toString());
+        String vm = Files.readString(image);
+        assertTrue(vm.startsWith("function Main.main"), vm);
+        assertFalse(vm.contains("function Main.dead") || vm.contains("function Shape.perimeter"), vm);
+        //Main 的 total 是 static 0,Shape 的 made/factor 排在后面
+        assertTrue(vm.contains("static 1") && vm.contains("static 2") && !vm.contains("static 3"), vm);
+
+        VmInterpreter interpreter = new VmInterpreter().load("Image", vm);
+        int result = interpreter.run("Main.main", CompiledProgram.MAX_STEPS);
+        assertEquals(expected, interpreter.output() + "-> " + result);
+    }
+}